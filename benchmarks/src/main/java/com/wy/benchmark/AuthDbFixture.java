@@ -0,0 +1,124 @@
+package com.wy.benchmark;
+
+import org.apache.hadoop.hive.conf.HiveConf;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基准测试用的鉴权库，MySQL 模式的 H2 内存库
+ *
+ * 表结构和 README 中的鉴权库一致，只保留鉴权查询用到的列和索引
+ * 每张表的字段名为 c0 c1 c2 ... ，授权用户对每张表的全部字段都有读取权限，拒绝用户没有任何权限
+ */
+public class AuthDbFixture {
+
+    public static final String GRANTED_USER = "bench_granted";
+    public static final String DENIED_USER = "bench_denied";
+    public static final String DB_NAME = "bench";
+
+    //插件用到了 mysql 驱动的流式读取参数，用包装过的 H2 驱动兼容
+    private static final String DRIVER = H2MysqlDriver.class.getName();
+
+    private final String url;
+    //内存库在最后一个连接关闭时会被删掉，所以一直拿着一个连接
+    private final Connection keepAlive;
+
+    /**
+     * @param name 内存库的名字，不同的基准测试用不同的库
+     * @param tables 表的个数，表名为 t0 t1 t2 ...
+     * @param columns 每张表的字段个数
+     */
+    public AuthDbFixture(String name, int tables, int columns) throws SQLException {
+        //连接池会带上mysql驱动的预编译缓存参数，H2 不认识这些参数，所以要忽略未知参数
+        this.url = "jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;IGNORE_UNKNOWN_SETTINGS=TRUE";
+        this.keepAlive = DriverManager.getConnection(url, "sa", "");
+        createSchema();
+        seed(tables, columns);
+    }
+
+    /**
+     * 指向这个库的 hive 配置，鉴权插件和元数据监听的连接池参数都在这里
+     */
+    public HiveConf hiveConf() {
+        HiveConf conf = new HiveConf();
+        conf.set("hive.auth.database.url", url);
+        conf.set("hive.auth.database.driver", DRIVER);
+        conf.set("hive.auth.database.username", "sa");
+        conf.set("hive.auth.database.password", "");
+        conf.set("hive.auth.database.timeout", "30000");
+        conf.set("hive.auth.database.authorizer.hikari.pool.maxsize", "16");
+        conf.set("hive.auth.database.meta.listener.hikari.pool.maxsize", "8");
+        conf.set("hive.auth.database.hikari.pool.minidle", "4");
+        conf.set("hive.auth.database.hikari.pool.idle.timeout", "600000");
+        conf.set("hive.auth.database.hikari.pool.max.lifetime", "1800000");
+        return conf;
+    }
+
+    public static String columnName(int i) {
+        return "c" + i;
+    }
+
+    public static String tableName(int i) {
+        return "t" + i;
+    }
+
+    public static List<String> columnNames(int columns) {
+        List<String> names = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            names.add(columnName(i));
+        }
+        return names;
+    }
+
+    public void close() throws SQLException {
+        keepAlive.close();
+    }
+
+    private void createSchema() throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("create table user_info (user_id varchar(36) primary key, user_name varchar(100) unique)");
+            statement.execute("create table db_tb_info (db_tb_id varchar(36) primary key, user_id varchar(36), " +
+                    "db_tb_name varchar(100) unique, tb_fields text, tb_location varchar(500))");
+            statement.execute("create table db_tb_auth (auth_id varchar(36) primary key, db_tb_id varchar(36), user_id varchar(36), " +
+                    "field varchar(50), auth_flag int, last_time datetime)");
+            statement.execute("create index idx_auth_table on db_tb_auth (db_tb_id)");
+            statement.execute("create index idx_auth_user on db_tb_auth (user_id)");
+            statement.execute("create index idx_auth_field on db_tb_auth (field)");
+            statement.execute("create table auth_change_log (change_id bigint auto_increment primary key, db_tb_id varchar(36), " +
+                    "user_id varchar(36), change_time timestamp default current_timestamp)");
+        }
+    }
+
+    private void seed(int tables, int columns) throws SQLException {
+        try (Statement statement = keepAlive.createStatement()) {
+            statement.execute("insert into user_info values ('u1','" + GRANTED_USER + "'),('u2','" + DENIED_USER + "')");
+        }
+        String fields = String.join(",", columnNames(columns));
+        try (PreparedStatement tableInsert = keepAlive.prepareStatement("insert into db_tb_info values (?,'u1',?,?,?)");
+             PreparedStatement authInsert = keepAlive.prepareStatement(
+                     "insert into db_tb_auth values (?,?,'u1',?,1,dateadd('YEAR',10,current_timestamp))")) {
+            for (int t = 0; t < tables; t++) {
+                String tableId = "tb" + t;
+                tableInsert.setString(1, tableId);
+                tableInsert.setString(2, DB_NAME + "." + tableName(t));
+                tableInsert.setString(3, fields);
+                tableInsert.setString(4, "hdfs://bench/warehouse/" + DB_NAME + ".db/" + tableName(t));
+                tableInsert.addBatch();
+                for (int c = 0; c < columns; c++) {
+                    authInsert.setString(1, tableId + "_" + c);
+                    authInsert.setString(2, tableId);
+                    authInsert.setString(3, columnName(c));
+                    authInsert.addBatch();
+                }
+                authInsert.executeBatch();
+            }
+            tableInsert.executeBatch();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.wy.benchmark;
+
+import com.wy.auth.MyHiveAuthorization;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzContext;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzPluginException;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveOperationType;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HivePrivilegeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 查询语句的完整鉴权过程 MyHiveAuthorization.checkPrivileges
+ *
+ * 元数据服务用桩代替，鉴权库用 H2 内存库，所以测出来的是插件自身的开销加上一次本地的 SQL 执行
+ * 真实环境中鉴权库的网络往返会放大 查库次数 的差别，对比不同模式时要注意这一点
+ *
+ * mode 对应插件的几种鉴权方式：
+ *   direct   一张表一个并行任务查鉴权库，不启用任何缓存
+ *   cached   direct 加上鉴权结果缓存、表信息缓存(默认配置)
+ *   batch    一个语句的所有表一次查询
+ *   index    字段权限位图索引
+ *   snapshot 内存权限快照
+ *   memo     cached 加上内存权限快照和语句级通过结果缓存(语句级缓存只在有快照时启用)，只影响 allowed
+ *
+ * 4 个线程同时鉴权，模拟 hiveserver2 上多个会话并发编译语句，拒绝的语句不能影响其他语句正在用的连接
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CheckPrivilegesBenchmark {
+
+    @Param({"direct", "cached", "batch", "index", "snapshot", "memo"})
+    public String mode;
+
+    //一个语句访问的表个数
+    @Param({"1", "20"})
+    public int tables;
+
+    //每张表访问的字段个数
+    @Param({"10", "200"})
+    public int columns;
+
+    private AuthDbFixture fixture;
+    private MyHiveAuthorization grantedAuthorizer;
+    private MyHiveAuthorization deniedAuthorizer;
+    private List<HivePrivilegeObject> inputs;
+    private HiveAuthzContext context;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new AuthDbFixture("check_privileges", tables, columns);
+        HiveConf conf = fixture.hiveConf();
+        boolean cached = "cached".equals(mode) || "memo".equals(mode);
+        conf.set("hive.auth.database.authorizer.cache.maxsize", cached ? "10000" : "0");
+        conf.set("hive.auth.database.authorizer.table.cache.maxsize", cached ? "50000" : "0");
+        conf.set("hive.auth.database.authorizer.memo.maxsize", "memo".equals(mode) ? "10000" : "0");
+        conf.set("hive.auth.database.authorizer.index.maxsize", "index".equals(mode) ? "10000" : "0");
+        conf.setBoolean("hive.auth.database.authorizer.batch.enable", "batch".equals(mode));
+        conf.setBoolean("hive.auth.database.authorizer.snapshot.enable", "snapshot".equals(mode) || "memo".equals(mode));
+
+        Map<String, Table> metastore = new HashMap<>();
+        inputs = new ArrayList<>(tables);
+        List<String> columnNames = AuthDbFixture.columnNames(columns);
+        for (int t = 0; t < tables; t++) {
+            String tableName = AuthDbFixture.tableName(t);
+            metastore.put(AuthDbFixture.DB_NAME + "." + tableName, HiveStubs.table(AuthDbFixture.DB_NAME, tableName, columns, "bench_owner"));
+            inputs.add(new HivePrivilegeObject(HivePrivilegeObject.HivePrivilegeObjectType.TABLE_OR_VIEW,
+                    AuthDbFixture.DB_NAME, tableName, null, columnNames, null));
+        }
+
+        HiveAuthzContext.Builder builder = new HiveAuthzContext.Builder();
+        builder.setCommandString("select * from bench.t0");
+        context = builder.build();
+
+        grantedAuthorizer = new MyHiveAuthorization(HiveStubs.clientFactory(HiveStubs.metastoreClient(metastore)), conf,
+                HiveStubs.authenticator(AuthDbFixture.GRANTED_USER), null);
+        deniedAuthorizer = new MyHiveAuthorization(HiveStubs.clientFactory(HiveStubs.metastoreClient(metastore)), conf,
+                HiveStubs.authenticator(AuthDbFixture.DENIED_USER), null);
+
+        //快照是后台加载的，等加载完成之后再开始测
+        if ("snapshot".equals(mode) || "memo".equals(mode)) {
+            Thread.sleep(2000);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    /**
+     * 有全部权限的用户，鉴权通过
+     */
+    @Benchmark
+    public void allowed() throws Exception {
+        grantedAuthorizer.checkPrivileges(HiveOperationType.QUERY, inputs, Collections.emptyList(), context);
+    }
+
+    /**
+     * 没有任何权限的用户，鉴权拒绝
+     */
+    @Benchmark
+    public String denied() throws Exception {
+        try {
+            deniedAuthorizer.checkPrivileges(HiveOperationType.QUERY, inputs, Collections.emptyList(), context);
+        } catch (HiveAuthzPluginException e) {
+            return e.getMessage();
+        }
+        throw new IllegalStateException("没有权限的用户鉴权通过了");
+    }
+}
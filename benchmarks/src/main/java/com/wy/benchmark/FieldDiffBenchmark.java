@@ -0,0 +1,95 @@
+package com.wy.benchmark;
+
+import com.wy.utils.FieldDiff;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.IHMSHandler;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.events.PreAlterTableEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 改表时的字段比较 FieldDiff
+ *
+ * 宽表改一个字段也要把新旧两份字段列表完整比较一遍，这里看字段个数对耗时和内存分配的影响
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FieldDiffBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int columns;
+
+    private PreAlterTableEvent unchanged;
+    private PreAlterTableEvent addColumn;
+    private PreAlterTableEvent dropColumn;
+    private PreAlterTableEvent changeType;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        IHMSHandler handler = HiveStubs.hmsHandler(new Configuration(false));
+        Table oldTable = HiveStubs.table(AuthDbFixture.DB_NAME, "wide", columns, "bench_owner");
+
+        unchanged = new PreAlterTableEvent(oldTable, oldTable.deepCopy(), handler);
+
+        Table added = oldTable.deepCopy();
+        added.getSd().getCols().add(new FieldSchema("added_column", "string", null));
+        addColumn = new PreAlterTableEvent(oldTable, added, handler);
+
+        Table dropped = oldTable.deepCopy();
+        dropped.getSd().getCols().remove(columns / 2);
+        dropColumn = new PreAlterTableEvent(oldTable, dropped, handler);
+
+        Table retyped = oldTable.deepCopy();
+        retyped.getSd().getCols().get(columns / 2).setType("struct<a:int,b:array<string>>");
+        changeType = new PreAlterTableEvent(oldTable, retyped, handler);
+    }
+
+    /**
+     * 只改了表属性，字段没有变化，这是改表事件中最常见的情况
+     */
+    @Benchmark
+    public FieldDiff unchanged() {
+        return new FieldDiff(unchanged);
+    }
+
+    /**
+     * 改表监听中先做的结构判断，字段没有变化时到这里就结束了
+     */
+    @Benchmark
+    public boolean unchangedSameSchema() {
+        return FieldDiff.sameSchema(unchanged.getOldTable(), unchanged.getNewTable());
+    }
+
+    @Benchmark
+    public FieldDiff addColumn() {
+        return new FieldDiff(addColumn);
+    }
+
+    @Benchmark
+    public FieldDiff dropColumn() {
+        return new FieldDiff(dropColumn);
+    }
+
+    @Benchmark
+    public FieldDiff changeType() {
+        return new FieldDiff(changeType);
+    }
+}
@@ -0,0 +1,81 @@
+package com.wy.benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * 包装 H2 驱动，兼容插件中 mysql 驱动特有的用法
+ *
+ * 插件用 setFetchSize(Integer.MIN_VALUE) 让 mysql 驱动流式读取，H2 不接受负数的 fetchSize 会直接报错
+ * 这里把负数的 fetchSize 忽略掉，其他调用原样交给 H2
+ */
+public class H2MysqlDriver implements Driver {
+
+    private final Driver delegate = new org.h2.Driver();
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        Connection connection = delegate.connect(url, info);
+        return connection == null ? null : wrap(Connection.class, connection);
+    }
+
+    @Override
+    public boolean acceptsURL(String url) throws SQLException {
+        return delegate.acceptsURL(url);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) throws SQLException {
+        return delegate.getPropertyInfo(url, info);
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return delegate.getMajorVersion();
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return delegate.getMinorVersion();
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return delegate.jdbcCompliant();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    /**
+     * 连接创建出来的语句也要包装，语句的类型取方法声明的返回类型，比如 PreparedStatement、CallableStatement
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T wrap(Class<T> type, T target) {
+        return (T) Proxy.newProxyInstance(H2MysqlDriver.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if ("setFetchSize".equals(method.getName()) && (Integer) args[0] < 0) {
+                return null;
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+                return wrap((Class<Object>) method.getReturnType(), result);
+            }
+            return result;
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package com.wy.benchmark;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.IHMSHandler;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.security.HiveAuthenticationProvider;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveMetastoreClientFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 基准测试用的 hive 对象桩
+ *
+ * IMetaStoreClient、IHMSHandler、HiveAuthenticationProvider 的方法非常多，插件只用到其中几个
+ * 所以用动态代理实现，只响应用到的方法，其他方法直接抛异常，插件用到了新的方法时能马上发现
+ */
+public class HiveStubs {
+
+    private HiveStubs() {
+    }
+
+    /**
+     * 一张普通的外部表，字段为 c0 c1 c2 ... ，带一个分区字段 dt
+     */
+    public static Table table(String dbName, String tableName, int columns, String owner) {
+        List<FieldSchema> cols = new ArrayList<>(columns);
+        for (int i = 0; i < columns; i++) {
+            cols.add(new FieldSchema(AuthDbFixture.columnName(i), "string", null));
+        }
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setCols(cols);
+        sd.setLocation("hdfs://bench/warehouse/" + dbName + ".db/" + tableName);
+        Table table = new Table();
+        table.setDbName(dbName);
+        table.setTableName(tableName);
+        table.setOwner(owner);
+        table.setTableType("EXTERNAL_TABLE");
+        table.setSd(sd);
+        table.setPartitionKeys(new ArrayList<>(Collections.singletonList(new FieldSchema("dt", "string", null))));
+        return table;
+    }
+
+    /**
+     * 表的一个分区，路径在表路径下面
+     */
+    public static Partition partition(Table table, String dt) {
+        StorageDescriptor sd = new StorageDescriptor(table.getSd());
+        sd.setLocation(table.getSd().getLocation() + "/dt=" + dt);
+        Partition partition = new Partition();
+        partition.setDbName(table.getDbName());
+        partition.setTableName(table.getTableName());
+        partition.setValues(Collections.singletonList(dt));
+        partition.setSd(sd);
+        return partition;
+    }
+
+    /**
+     * 只读的元数据客户端，表信息来自传入的集合
+     * @param tables 库.表 -> 表信息
+     */
+    public static IMetaStoreClient metastoreClient(Map<String, Table> tables) {
+        return metastoreClient(tables, 0);
+    }
+
+    /**
+     * 只读的元数据客户端，每次获取表信息的调用都先等待一段时间，模拟一次 thrift 调用的网络往返和元数据服务的处理
+     * @param tables 库.表 -> 表信息
+     * @param latencyMicros 每次调用的耗时，微秒
+     */
+    public static IMetaStoreClient metastoreClient(Map<String, Table> tables, long latencyMicros) {
+        return proxy(IMetaStoreClient.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getTable":
+                    if (args.length == 2) {
+                        rpc(latencyMicros);
+                        Table table = tables.get(args[0] + "." + args[1]);
+                        if (table == null) {
+                            throw new NoSuchObjectException(args[0] + "." + args[1]);
+                        }
+                        return table;
+                    }
+                    break;
+                case "getTableObjectsByName":
+                    if (args.length == 2) {
+                        rpc(latencyMicros);
+                        List<Table> result = new ArrayList<>();
+                        for (Object name : (List<?>) args[1]) {
+                            Table table = tables.get(args[0] + "." + name);
+                            if (table != null) {
+                                result.add(table);
+                            }
+                        }
+                        return result;
+                    }
+                    break;
+                case "close":
+                    return null;
+                default:
+            }
+            throw new UnsupportedOperationException("基准测试桩没有实现 IMetaStoreClient." + method.getName());
+        });
+    }
+
+    private static void rpc(long latencyMicros) {
+        if (latencyMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+        }
+    }
+
+    public static HiveMetastoreClientFactory clientFactory(IMetaStoreClient client) {
+        return () -> client;
+    }
+
+    public static HiveAuthenticationProvider authenticator(String userName) {
+        return proxy(HiveAuthenticationProvider.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUserName":
+                    return userName;
+                case "getGroupNames":
+                    return Collections.emptyList();
+                case "destroy":
+                case "setConf":
+                case "setSessionState":
+                    return null;
+                default:
+            }
+            throw new UnsupportedOperationException("基准测试桩没有实现 HiveAuthenticationProvider." + method.getName());
+        });
+    }
+
+    /**
+     * 元数据服务的处理类，前置监听只用到了它的配置
+     */
+    public static IHMSHandler hmsHandler(Configuration conf) {
+        return proxy(IHMSHandler.class, (proxy, method, args) -> {
+            if ("getConf".equals(method.getName())) {
+                return conf;
+            }
+            throw new UnsupportedOperationException("基准测试桩没有实现 IHMSHandler." + method.getName());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(HiveStubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName() + " stub";
+                }
+            }
+            return handler.invoke(proxy, method, args == null ? new Object[0] : args);
+        });
+    }
+}
@@ -0,0 +1,138 @@
+package com.wy.benchmark;
+
+import com.wy.auth.MyHiveAuthorization;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzContext;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveOperationType;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HivePrivilegeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个语句涉及很多分区时，获取表信息的方式对鉴权耗时的影响
+ *
+ * 一个查询扫了几百个分区时，hive给的每个分区都是一个权限对象，同一张表会出现很多次
+ *   perObject        原来的方式，每个权限对象调用一次 getTable
+ *   perDatabase      现在的方式，按 库.表 去重之后每个库调用一次 getTableObjectsByName
+ *   checkPrivileges  现在的完整鉴权过程，元数据获取之外还包括查鉴权库(H2 内存库)
+ * 前两个只算元数据获取，用来对比两种方式本身，第三个用来看元数据获取在整个鉴权中还占多少
+ *
+ * 元数据服务用带延迟的桩代替，latencyMicros 是一次 thrift 调用的耗时，同机房一般在几百微秒到几毫秒
+ * 不启用任何缓存，每次都要访问元数据服务和鉴权库
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetastoreFetchBenchmark {
+
+    //一个语句访问的表个数
+    @Param({"20"})
+    public int tables;
+
+    //每张表扫描的分区个数，也就是同一张表的权限对象个数
+    @Param({"1", "15"})
+    public int partitions;
+
+    //一次元数据调用的耗时，微秒
+    @Param({"200", "1000"})
+    public long latencyMicros;
+
+    private AuthDbFixture fixture;
+    private IMetaStoreClient metastoreClient;
+    private MyHiveAuthorization authorizer;
+    private List<HivePrivilegeObject> inputs;
+    private HiveAuthzContext context;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new AuthDbFixture("metastore_fetch", tables, 10);
+        HiveConf conf = fixture.hiveConf();
+        conf.set("hive.auth.database.authorizer.cache.maxsize", "0");
+        conf.set("hive.auth.database.authorizer.table.cache.maxsize", "0");
+
+        Map<String, Table> metastore = new HashMap<>();
+        inputs = new ArrayList<>(tables * partitions);
+        List<String> columnNames = AuthDbFixture.columnNames(10);
+        for (int t = 0; t < tables; t++) {
+            String tableName = AuthDbFixture.tableName(t);
+            metastore.put(AuthDbFixture.DB_NAME + "." + tableName, HiveStubs.table(AuthDbFixture.DB_NAME, tableName, 10, "bench_owner"));
+            for (int p = 0; p < partitions; p++) {
+                inputs.add(new HivePrivilegeObject(HivePrivilegeObject.HivePrivilegeObjectType.TABLE_OR_VIEW,
+                        AuthDbFixture.DB_NAME, tableName, null, columnNames, null));
+            }
+        }
+        metastoreClient = HiveStubs.metastoreClient(metastore, latencyMicros);
+
+        HiveAuthzContext.Builder builder = new HiveAuthzContext.Builder();
+        builder.setCommandString("select * from bench.t0");
+        context = builder.build();
+
+        authorizer = new MyHiveAuthorization(HiveStubs.clientFactory(metastoreClient), conf,
+                HiveStubs.authenticator(AuthDbFixture.GRANTED_USER), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    /**
+     * 原来的方式，每个权限对象一次 getTable
+     */
+    @Benchmark
+    public void perObject(Blackhole blackhole) throws Exception {
+        for (HivePrivilegeObject input : inputs) {
+            blackhole.consume(metastoreClient.getTable(input.getDbname(), input.getObjectName()));
+        }
+    }
+
+    /**
+     * 现在的方式，去重之后按库批量获取，和插件中的分组方式一样
+     */
+    @Benchmark
+    public void perDatabase(Blackhole blackhole) throws Exception {
+        Map<String, List<String>> dbGroups = new LinkedHashMap<>();
+        for (HivePrivilegeObject input : inputs) {
+            List<String> group = dbGroups.computeIfAbsent(input.getDbname(), k -> new ArrayList<>());
+            if (!group.contains(input.getObjectName())) {
+                group.add(input.getObjectName());
+            }
+        }
+        for (Map.Entry<String, List<String>> group : dbGroups.entrySet()) {
+            blackhole.consume(metastoreClient.getTableObjectsByName(group.getKey(), group.getValue()));
+        }
+    }
+
+    /**
+     * 现在的完整鉴权过程
+     */
+    @Benchmark
+    public void checkPrivileges() throws Exception {
+        authorizer.checkPrivileges(HiveOperationType.QUERY, inputs, Collections.emptyList(), context);
+    }
+}
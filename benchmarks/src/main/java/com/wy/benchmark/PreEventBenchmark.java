@@ -0,0 +1,99 @@
+package com.wy.benchmark;
+
+import com.wy.meta.MyMetaStorePreEventListener;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.IHMSHandler;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.metastore.events.PreAddPartitionEvent;
+import org.apache.hadoop.hive.metastore.events.PreAlterTableEvent;
+import org.apache.hadoop.hive.metastore.events.PreDropTableEvent;
+import org.apache.hadoop.hive.metastore.events.PreEventContext;
+import org.apache.hadoop.hive.metastore.events.PreReadTableEvent;
+import org.apache.hadoop.hive.shims.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 元数据服务前置监听 MyMetaStorePreEventListener.onEvent 对几种常见事件的分发
+ *
+ * 元数据服务的每个请求都会先经过这里，包括最频繁的读表，所以这里的固定开销会被放大到所有元数据请求上
+ * 事件都是合成的，owner 是当前进程的用户，所以 owner 校验都能通过
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PreEventBenchmark {
+
+    @Param({"READ_TABLE", "DROP_TABLE", "ALTER_TABLE", "ADD_PARTITION"})
+    public String event;
+
+    //表的字段个数，影响改表事件
+    @Param({"10", "1000"})
+    public int columns;
+
+    private AuthDbFixture fixture;
+    private MyMetaStorePreEventListener listener;
+    private PreEventContext context;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new AuthDbFixture("pre_event", 1, columns);
+        Configuration conf = fixture.hiveConf();
+        listener = new MyMetaStorePreEventListener(conf);
+        IHMSHandler handler = HiveStubs.hmsHandler(conf);
+
+        Table table = HiveStubs.table(AuthDbFixture.DB_NAME, AuthDbFixture.tableName(0), columns, Utils.getUGI().getUserName());
+        switch (event) {
+            case "READ_TABLE":
+                context = new PreReadTableEvent(table, handler);
+                break;
+            case "DROP_TABLE":
+                context = new PreDropTableEvent(table, false, handler);
+                break;
+            case "ALTER_TABLE":
+                Table newTable = table.deepCopy();
+                newTable.putToParameters("comment", "benchmark");
+                context = new PreAlterTableEvent(table, newTable, handler);
+                break;
+            case "ADD_PARTITION":
+                List<Partition> partitions = new ArrayList<>();
+                for (int i = 0; i < 24; i++) {
+                    partitions.add(HiveStubs.partition(table, "2025-06-17-" + i));
+                }
+                context = new PreAddPartitionEvent(table, partitions, handler);
+                break;
+            default:
+                throw new IllegalArgumentException("不支持的事件 " + event);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public PreEventContext onEvent() throws Exception {
+        listener.onEvent(context);
+        return context;
+    }
+}
@@ -0,0 +1,422 @@
+package com.wy.audit;
+
+import com.wy.metrics.AuthMetrics;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HivePrivilegeObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 鉴权审计日志，记录每一次鉴权的 用户、操作类型、表、字段、结果、拒绝原因、耗时
+ *
+ * 鉴权线程上只做一件事：把这次鉴权的几个引用填进预先分配好的环形缓冲区的一个槽位，不拼字符串、不写文件、不加锁
+ * 一个后台线程把缓冲区中的记录格式化之后，用 NIO 的 FileChannel 批量写入本地文件，文件按大小滚动
+ * 缓冲区满了的时候直接丢弃新记录并计数，不会让鉴权等待写文件，丢弃的条数会写进审计文件，也会出现在指标 AuditDropped 中
+ *
+ * 环形缓冲区是多生产者单消费者的有界队列，每个槽位带一个序号：
+ *   序号 == 写入位置 时槽位空闲，生产者用 CAS 抢到写入位置后填数据，再把序号改成 写入位置+1 发布给消费者
+ *   序号 == 读取位置+1 时槽位可读，消费者读完清空引用，再把序号改成 读取位置+容量 还给生产者
+ *
+ * 后台线程写空缓冲区之后一直休眠，不定时醒来空转，生产者发布记录时发现后台线程在休眠才唤醒它
+ * 后台线程先标记休眠再检查一次缓冲区，生产者先发布记录再检查标记，两边都是volatile读写，不会漏掉唤醒
+ */
+public class AuditLog {
+    private static final Log LOG = LogFactory.getLog(AuditLog.class);
+
+    //整个hiveserver2进程只有一个实例，由第一个会话初始化
+    private static volatile AuditLog INSTANCE;
+
+    //审计文件名，滚动之后是 hive-auth-audit.log.1 hive-auth-audit.log.2 ...
+    static final String FILE_NAME = "hive-auth-audit.log";
+
+    //文件写入缓冲区大小
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final Slot[] slots;
+    private final int mask;
+    //生产者的下一个写入位置
+    private final AtomicLong tail = new AtomicLong();
+    //消费者的下一个读取位置，只有后台线程读写
+    private long head;
+    //缓冲区满了丢弃的条数
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final File dir;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    //下面的对象只有后台线程使用
+    private FileChannel channel;
+    private long fileSize;
+    private long droppedWritten;
+    private final StringBuilder line = new StringBuilder(1024);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    //时间格式化只精确到秒，同一秒内的记录复用格式化的结果，毫秒单独拼接
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final Date date = new Date();
+    private long formattedSecond = -1;
+    private String formattedTime;
+
+    private volatile boolean running = true;
+    //后台线程是否已经写空了缓冲区、准备休眠或者正在休眠
+    private volatile boolean sleeping;
+    private final Thread drainer;
+
+    private AuditLog(File dir, int capacity, long maxFileSize, int maxFiles) {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        //容量取不小于配置值的2的幂次，位置对容量取模可以用位运算
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+
+        drainer = new Thread(this::drain, "hive-auth-audit");
+        drainer.setDaemon(true);
+        drainer.start();
+        //hiveserver2正常停止时把缓冲区中剩下的记录写完
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "hive-auth-audit-shutdown"));
+    }
+
+    /**
+     * 获取进程级别的审计日志，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param dir 审计文件目录，为空时表示不启用
+     * @param capacity 环形缓冲区的条数
+     * @param maxFileSize 单个审计文件的大小上限 字节
+     * @param maxFiles 保留的历史文件个数
+     * @return 不启用时返回null
+     */
+    public static AuditLog getInstance(String dir, int capacity, long maxFileSize, int maxFiles) {
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (AuditLog.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new AuditLog(new File(dir), capacity, maxFileSize, maxFiles);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 记录一次鉴权，在鉴权线程上调用，不会阻塞
+     * 传入的集合只保存引用，由后台线程格式化，调用之后不能再修改
+     * @param user 用户
+     * @param operation 操作类型
+     * @param inputs 上游对象
+     * @param outputs 下游对象
+     * @param decision 鉴权结果
+     * @param reason 拒绝或出错的原因，通过时为null
+     * @param latencyNanos 鉴权耗时 纳秒
+     * @return 缓冲区满了被丢弃时返回false
+     */
+    public boolean record(String user, String operation, List<HivePrivilegeObject> inputs, List<HivePrivilegeObject> outputs,
+                          AuthMetrics.Decision decision, String reason, long latencyNanos) {
+        long pos = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) (pos & mask)];
+            long diff = slot.sequence - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                //这个槽位上一圈的记录还没有被写走，说明缓冲区满了
+                dropped.incrementAndGet();
+                AuthMetrics.getInstance().auditDropped();
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.user = user;
+        slot.operation = operation;
+        slot.inputs = inputs;
+        slot.outputs = outputs;
+        slot.decision = decision;
+        slot.reason = reason;
+        slot.latencyNanos = latencyNanos;
+        slot.sequence = pos + 1;
+        //缓冲区从空变成非空，后台线程在休眠，唤醒它
+        if (sleeping) {
+            LockSupport.unpark(drainer);
+        }
+        return true;
+    }
+
+    /**
+     * 停止后台线程，并把缓冲区中剩下的记录写完
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 后台线程：有记录就一直写，写空了把缓冲区刷到文件，然后休眠到有新记录或者关闭
+     */
+    private void drain() {
+        while (true) {
+            boolean stopping = !running;
+            int count = 0;
+            Slot slot;
+            while ((slot = poll()) != null) {
+                write(slot);
+                release(slot);
+                count++;
+            }
+            writeDropped();
+            flush();
+            if (stopping) {
+                closeChannel();
+                return;
+            }
+            if (count == 0) {
+                sleeping = true;
+                //标记之后再确认一次，标记之前发布的记录生产者可能没有看到标记，不会来唤醒
+                if (running && poll() == null) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    private Slot poll() {
+        Slot slot = slots[(int) (head & mask)];
+        return slot.sequence == head + 1 ? slot : null;
+    }
+
+    private void release(Slot slot) {
+        slot.user = null;
+        slot.operation = null;
+        slot.inputs = null;
+        slot.outputs = null;
+        slot.decision = null;
+        slot.reason = null;
+        slot.sequence = head + slots.length;
+        head++;
+    }
+
+    /**
+     * 一条记录一行，字段用 | 分隔：
+     * 时间|用户|操作类型|结果|耗时(微秒)|上游表[字段,...];...|下游表;...|原因
+     */
+    private void write(Slot slot) {
+        line.setLength(0);
+        appendTime(slot.time);
+        line.append('|')
+                .append(slot.user).append('|')
+                .append(slot.operation).append('|')
+                .append(slot.decision).append('|')
+                .append(slot.latencyNanos / 1000).append('|');
+        appendObjects(slot.inputs, true);
+        line.append('|');
+        appendObjects(slot.outputs, false);
+        line.append('|');
+        if (slot.reason != null) {
+            //原因中可能带有换行，替换掉保证一条记录一行
+            for (int i = 0; i < slot.reason.length(); i++) {
+                char c = slot.reason.charAt(i);
+                line.append(c == '\n' || c == '\r' || c == '|' ? ' ' : c);
+            }
+        }
+        line.append('\n');
+        append(line);
+    }
+
+    private void appendTime(long time) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            date.setTime(second * 1000);
+            formattedTime = dateFormat.format(date);
+            formattedSecond = second;
+        }
+        int millis = (int) (time % 1000);
+        line.append(formattedTime).append('.');
+        if (millis < 100) {
+            line.append('0');
+        }
+        if (millis < 10) {
+            line.append('0');
+        }
+        line.append(millis);
+    }
+
+    private void appendObjects(List<HivePrivilegeObject> objects, boolean withColumns) {
+        if (objects == null) {
+            return;
+        }
+        for (int i = 0; i < objects.size(); i++) {
+            HivePrivilegeObject object = objects.get(i);
+            if (i > 0) {
+                line.append(';');
+            }
+            if (object.getDbname() != null) {
+                line.append(object.getDbname()).append('.');
+            }
+            line.append(object.getObjectName());
+            List<String> columns = object.getColumns();
+            if (withColumns && columns != null) {
+                line.append('[');
+                for (int j = 0; j < columns.size(); j++) {
+                    if (j > 0) {
+                        line.append(',');
+                    }
+                    line.append(columns.get(j));
+                }
+                line.append(']');
+            }
+        }
+    }
+
+    /**
+     * 有新的丢弃时写一行丢弃的总数
+     */
+    private void writeDropped() {
+        long total = dropped.get();
+        if (total == droppedWritten) {
+            return;
+        }
+        line.setLength(0);
+        appendTime(System.currentTimeMillis());
+        line.append("|-|-|DROPPED|")
+                .append(total - droppedWritten).append("|||审计缓冲区已满，累计丢弃 ").append(total).append(" 条记录\n");
+        droppedWritten = total;
+        append(line);
+    }
+
+    /**
+     * 把一行编码到写入缓冲区，缓冲区满了先写文件
+     */
+    private void append(CharSequence text) {
+        CharBuffer chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, writeBuffer, true);
+            if (!result.isOverflow()) {
+                break;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * 写入缓冲区中的内容写到文件，写之前检查是否需要滚动
+     */
+    private void flush() {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        try {
+            if (channel == null || fileSize + writeBuffer.remaining() > maxFileSize && fileSize > 0) {
+                rotate();
+            }
+            while (writeBuffer.hasRemaining()) {
+                fileSize += channel.write(writeBuffer);
+            }
+        } catch (IOException e) {
+            //写文件失败时这一批记录丢弃，关闭文件下次重新打开，不影响鉴权
+            LOG.warn("鉴权审计日志写入失败 " + e.getMessage());
+            closeChannel();
+        } finally {
+            writeBuffer.clear();
+        }
+    }
+
+    /**
+     * 当前文件超过大小上限时依次后移历史文件，最老的删除，然后打开新文件
+     * 第一次打开时接着写已有的文件
+     */
+    private void rotate() throws IOException {
+        boolean opening = channel == null;
+        closeChannel();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("无法创建审计日志目录 " + dir);
+        }
+        File current = new File(dir, FILE_NAME);
+        if (!opening || current.length() >= maxFileSize) {
+            Files.deleteIfExists(new File(dir, FILE_NAME + "." + maxFiles).toPath());
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                File from = new File(dir, FILE_NAME + "." + i);
+                if (from.exists()) {
+                    Files.move(from.toPath(), new File(dir, FILE_NAME + "." + (i + 1)).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (current.exists()) {
+                if (maxFiles > 0) {
+                    Files.move(current.toPath(), new File(dir, FILE_NAME + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(current.toPath());
+                }
+            }
+        }
+        channel = FileChannel.open(current.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("鉴权审计日志关闭失败 " + e.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * 环形缓冲区的槽位，预先分配，反复复用
+     */
+    private static class Slot {
+        private volatile long sequence;
+        private long time;
+        private String user;
+        private String operation;
+        private List<HivePrivilegeObject> inputs;
+        private List<HivePrivilegeObject> outputs;
+        private AuthMetrics.Decision decision;
+        private String reason;
+        private long latencyNanos;
+
+        private Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
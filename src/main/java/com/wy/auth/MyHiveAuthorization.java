@@ -1,24 +1,46 @@
 package com.wy.auth;
 
-import com.wy.utils.MysqlUtil;
+import com.wy.audit.AuditLog;
+import com.wy.cache.DecisionMemo;
+import com.wy.cache.DenyCache;
+import com.wy.cache.FieldAuthCache;
+import com.wy.cache.PermissionIndex;
+import com.wy.cache.PermissionReplica;
+import com.wy.cache.PermissionSnapshot;
+import com.wy.cache.TableMetaCache;
+import com.wy.cache.UserVisibility;
+import com.wy.cache.VisibilityCache;
+import com.wy.exception.AuthDeniedException;
+import com.wy.metrics.AuthMetrics;
+import com.wy.utils.AuthDbConfig;
+import com.wy.utils.AuthDbRegistry;
+import com.wy.utils.AuthorizerConfig;
 import com.wy.utils.SqlFieldAuthCheckUtil;
+import com.wy.utils.StatementDeadline;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.conf.HiveConf;
 import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.NoSuchObjectException;
 import org.apache.hadoop.hive.metastore.api.Table;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.security.HiveAuthenticationProvider;
 import org.apache.hadoop.hive.ql.security.authorization.plugin.*;
 import org.apache.thrift.TException;
 
-import java.math.BigInteger;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * hive 鉴权类
@@ -38,9 +60,35 @@ public class MyHiveAuthorization implements HiveAuthorizer {
     private final HiveAuthenticationProvider hiveAuthProvider;
     private final HiveAuthzSessionContext hiveAuthzSessionContext;
 
-    // MyHiveAuthorization 类中公用一个持久化的任务并行线程池和数据库连接池
-    private ExecutorService executor;
-    private MysqlUtil mysqlUtil;
+    // 整个hiveserver2进程共用的任务并行线程池和数据库连接池，以及它们的使用凭证
+    //鉴权库连接池的配置，每次用到连接池时按它从 AuthDbRegistry 获取
+    private AuthDbConfig authDbConfig;
+    // 字段鉴权通过结果的缓存，整个hiveserver2进程共用一个，为null时说明没有启用
+    private FieldAuthCache fieldAuthCache;
+    // 字段权限位图索引，整个hiveserver2进程共用一个，为null时说明没有启用，启用后字段鉴权不再使用 fieldAuthCache
+    private PermissionIndex permissionIndex;
+    // 内存权限快照，整个hiveserver2进程共用一个，为null时说明没有启用，启用后快照中有权限的表不再查鉴权库
+    private PermissionReplica permissionReplica;
+    // 字段鉴权拒绝结果的缓存，整个hiveserver2进程共用一个，为null时说明没有启用
+    private DenyCache denyCache;
+    // 语句级别的鉴权通过结果缓存，整个hiveserver2进程共用一个，为null时说明没有启用
+    private DecisionMemo decisionMemo;
+    // 配置了语句级缓存但没有启用内存权限快照时，只提示一次
+    private static final AtomicBoolean MEMO_DISABLED_WARNED = new AtomicBoolean(false);
+    // 元数据服务中表信息的缓存，整个hiveserver2进程共用一个，为null时说明没有启用
+    private TableMetaCache tableMetaCache;
+    // 是否使用批量鉴权，一个语句的所有表用一个查询完成鉴权，而不是一张表一个并行任务
+    private boolean batchCheck;
+    // 一个语句鉴权的总期限 毫秒，0 表示不限制，以及其中元数据获取阶段最多占的百分比
+    private long statementTimeout;
+    private int metastoreTimeoutPercent;
+    // 鉴权耗时、结果、连接池状态的指标，整个hiveserver2进程共用一个
+    private final AuthMetrics metrics = AuthMetrics.getInstance();
+    // 鉴权审计日志，整个hiveserver2进程共用一个，为null时说明没有启用
+    private AuditLog auditLog;
+    // show tables / show databases 是否按用户过滤，以及没有内存权限快照时用的可见性缓存，不过滤时为null
+    private boolean showFilter;
+    private VisibilityCache visibilityCache;
 
     /*
     准备一个自定义的全字段标识，按需来就行，但是这里后面没有具体使用
@@ -68,72 +116,79 @@ public class MyHiveAuthorization implements HiveAuthorizer {
         this.hiveAuthProvider = authenticator;
         this.hiveAuthzSessionContext = ctx;
 
-        //初始化来连接池和线程池的配置参数
-        String url;
-        String driver;
-        Long timeout;
-        String username;
-        String password;
-        int hp_maxsize;
-        int hp_minidle;
-        long hp_id_timeout;
-        long hp_lefttime;
-
         /*
-        初始化鉴权库的连接池参数
+        解析并校验鉴权插件的参数，包括鉴权库的连接池参数和下面各个缓存、快照、审计日志的参数
 
         此外，这里留一个关键注释：后面用到鉴权库连接池的地方，都会额外读取一遍配置，按情况而定是否校验数据
         因为虽然写在了统一的MysqlUtil中，但是由于不同的类它们实例话并不再一个Java虚拟机进程里面
          */
-        url = hiveConf.get("hive.auth.database.url");
-        driver = hiveConf.get("hive.auth.database.driver");
-        username = hiveConf.get("hive.auth.database.username");
-        password = hiveConf.get("hive.auth.database.password");
-
-        //数据库连接超时时间
-        BigInteger timeout_bi = new BigInteger(hiveConf.get("hive.auth.database.timeout"));
-        if ( timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0   ){
-            throw new HiveAuthzPluginException("鉴权连接池连接超时时间超过预期Long值");
+        AuthorizerConfig config;
+        try {
+            config = AuthorizerConfig.fromConf(hiveConf);
+        } catch (IllegalArgumentException e) {
+            throw new HiveAuthzPluginException(e.getMessage());
         }
-        timeout = timeout_bi.longValue();
+        authDbConfig = config.getAuthDbConfig();
 
-        //数据库连接池大小校验
-        BigInteger hp_maxsize_bi = new BigInteger(hiveConf.get("hive.auth.database.authorizer.hikari.pool.maxsize"));
-        if ( hp_maxsize_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_maxsize_bi.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0 ){
-            throw new HiveAuthzPluginException("鉴权连接池大小超过预期Int值");
-        }
-        hp_maxsize = hp_maxsize_bi.intValue();
+        fieldAuthCache = FieldAuthCache.getInstance(config.getCacheMaxSize(), config.getCacheTtl());
+        permissionIndex = PermissionIndex.getInstance(config.getIndexMaxSize(), config.getIndexTtl());
+        tableMetaCache = TableMetaCache.getInstance(config.getTableCacheMaxSize(), config.getTableCacheTtl());
+
+        batchCheck = config.isBatchCheck();
+        statementTimeout = config.getStatementTimeout();
+        metastoreTimeoutPercent = config.getMetastoreTimeoutPercent();
+
+        /*
+         获取共享的定长线程池和连接池 , 线程池长度  与 数据库连接池的大小 保持一致，这样每个任务都能那个一个连接
+         这里留一个关键注释：
+            MyHiveAuthorization 这个类会在会用连接hive后执行第一个sql时被初始化，生命周期就是当前会话的开始到结束
+            一个会话实例化一个。这个插件最开始的时候采用了任务级别的池对象，但是开启一个交互式会话鉴权会有点慢
+            后来改成了每个会话持有一套池对象，但是会话多了之后空闲连接和线程太多，而且会话结束也没有地方关闭它们
+            所以现在是整个hiveserver2进程内配置相同的会话共用一套，由 AuthDbRegistry 管理
+            这里先获取一次，第一个会话时创建连接池并预先建好连接，之后每次鉴权用到时再 enter ，用完 release
+            配置不同的资源超过上限时最久没用的会被淘汰，会话下一次 enter 时会重新获取
+         */
+        AuthDbRegistry.enter(authDbConfig, authDbConfig.getMaxSize()).release();
 
-        //数据库连接池空闲连接大小校验
-        BigInteger hp_minidle_bi = new BigInteger(hiveConf.get("hive.auth.database.hikari.pool.minidle"));
-        if ( hp_minidle_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_minidle_bi.compareTo(BigInteger.valueOf( hp_maxsize_bi.intValue() / 2 )) > 0   ){
-            throw new HiveAuthzPluginException("鉴权连接池空闲连接大小超过预期Int值");
+        if (config.isSnapshotEnabled()) {
+            String imageDir = config.getSnapshotImageDir();
+            permissionReplica = PermissionReplica.getInstance(authDbConfig, config.getSnapshotInterval(),
+                    imageDir.isEmpty() ? null : Paths.get(imageDir), config.getSnapshotImageMinInterval());
         }
-        hp_minidle = hp_minidle_bi.intValue();
 
-        //数据库连接池空闲超时校验
-        BigInteger hp_id_timeout_bi = new BigInteger(hiveConf.get("hive.auth.database.hikari.pool.idle.timeout"));
-        if ( hp_id_timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_id_timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0  ){
-            throw new HiveAuthzPluginException("鉴权连接池空闲超时时间超过预期Long值");
+        //启用了权限快照时，快照刷新发现权限变化的表，马上作废这些表的通过结果
+        if (fieldAuthCache != null && permissionReplica != null) {
+            permissionReplica.addChangeListener(fieldAuthCache);
         }
-        hp_id_timeout = hp_id_timeout_bi.longValue();
 
-        //数据库连接池连接最大存活时间校验
-        BigInteger hp_lefttime_bi = new BigInteger(hiveConf.get("hive.auth.database.hikari.pool.max.lifetime"));
-        if (  hp_lefttime_bi.compareTo(hp_id_timeout_bi) < 0 || hp_lefttime_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0 ) {
-            throw new HiveAuthzPluginException("鉴权连接池连接存在时间超过预期Long值");
+        denyCache = DenyCache.getInstance(config.getDenyCacheMaxSize(), config.getDenyCacheTtl());
+        //启用了权限快照时，快照刷新发现权限变化的表，马上作废这些表的拒绝结果
+        if (denyCache != null && permissionReplica != null) {
+            permissionReplica.addChangeListener(denyCache);
         }
-        hp_lefttime = hp_lefttime_bi.longValue();
 
         /*
-         创建定长线程池 , 线程池长度  与 数据库连接池的大小 保持一致，这样每个任务都能那个一个连接
-         这里留一个关键注释：
-            MyHiveAuthorization 这个类会在会用连接hive后执行第一个sql时被初始化，生命周期就是当前会话的开始到结束
-            一个会话实例化一个，因此使用持久化在类属性中的线程池和连接池。
-            当然这个插件最开始的时候采用了任务级别的池对象，但是在后面的使用中发现开启一个交互式会话鉴权会有点慢，所以改写法了
+         语句级通过结果缓存只在启用了内存权限快照时启用，快照刷新发现权限变化的表，马上作废涉及这些表的语句
+         没有快照时没有任何地方能知道外部权限系统回收了权限，回收的权限要等一个存活时间才生效
+         整条语句直接放行的影响比单个字段的缓存大，所以这种情况下不启用，只提示一次
          */
-        executor = Executors.newFixedThreadPool(hp_maxsize);
-        mysqlUtil = new MysqlUtil(url,driver,timeout,username,password,hp_maxsize,hp_minidle,hp_id_timeout,hp_lefttime);
+        if (permissionReplica != null) {
+            decisionMemo = DecisionMemo.getInstance(config.getMemoMaxSize(), config.getMemoTtl());
+            if (decisionMemo != null) {
+                permissionReplica.addChangeListener(decisionMemo);
+            }
+        } else if (config.getMemoMaxSize() > 0 && MEMO_DISABLED_WARNED.compareAndSet(false, true)) {
+            //和下面一样用System输出，构建时日志类还没有生效
+            System.out.println("hive.auth.database.authorizer.memo.maxsize 需要同时开启 hive.auth.database.authorizer.snapshot.enable ，语句级鉴权结果缓存没有启用");
+        }
+
+        auditLog = AuditLog.getInstance(config.getAuditDir(), config.getAuditBufferSize(),
+                config.getAuditFileSize(), config.getAuditFileCount());
+
+        showFilter = config.isShowFilter();
+        if (showFilter) {
+            visibilityCache = VisibilityCache.getInstance(config.getShowFilterMaxSize(), config.getShowFilterTtl());
+        }
 
         //这里用System输出，而不用日志类，是因为该类被工厂模式实例化构建时日志类还没有生效
         System.out.println("Hive Authz Plugin Initialized! 鉴权组件接入! ");
@@ -152,19 +207,67 @@ public class MyHiveAuthorization implements HiveAuthorizer {
     @Override
     public void checkPrivileges(HiveOperationType hiveOpType, List<HivePrivilegeObject> inputHObjs,
                                 List<HivePrivilegeObject> outputHObjs, HiveAuthzContext context) throws HiveAuthzPluginException, HiveAccessControlException {
+        //按操作类型记录鉴权耗时，并区分 通过、拒绝、出错 三种结果，启用了审计日志的话同时写一条审计记录
+        long start = System.nanoTime();
+        AuthMetrics.Decision decision = null;
+        String reason = null;
+        try {
+            doCheckPrivileges(hiveOpType, inputHObjs, outputHObjs, context);
+            decision = AuthMetrics.Decision.ALLOWED;
+        } catch (AuthDeniedException e) {
+            decision = AuthMetrics.Decision.DENIED;
+            reason = e.getMessage();
+            throw e;
+        } catch (HiveAuthzPluginException | HiveAccessControlException | RuntimeException e) {
+            decision = AuthMetrics.Decision.ERROR;
+            reason = e.getMessage();
+            throw e;
+        } finally {
+            if (decision != null) {
+                metrics.recordDecision(hiveOpType.name(), start, decision);
+                if (auditLog != null) {
+                    auditLog.record(hiveAuthProvider.getUserName(), hiveOpType.name(), inputHObjs, outputHObjs, decision, reason, System.nanoTime() - start);
+                }
+            }
+        }
+    }
 
-        LOG.info("当前操作类型是：" + hiveOpType + " 用户SQL为："+context.getCommandString() + " 用户身份："+hiveAuthProvider.getUserName());
+    /**
+     * 鉴权的具体过程，参数和 checkPrivileges 一样
+     * 明确拒绝时抛出 AuthDeniedException ，其他的 HiveAuthzPluginException 都是鉴权过程出错
+     */
+    private void doCheckPrivileges(HiveOperationType hiveOpType, List<HivePrivilegeObject> inputHObjs,
+                                   List<HivePrivilegeObject> outputHObjs, HiveAuthzContext context) throws HiveAuthzPluginException, HiveAccessControlException {
+
+        //每个语句都会走到这里，拼接完整sql的开销不小，鉴权的结果在审计日志中记录，这里只在调试时输出
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("当前操作类型是：" + hiveOpType + " 用户SQL为："+context.getCommandString() + " 用户身份："+hiveAuthProvider.getUserName());
+        }
 
         //需要的临时变量
         IMetaStoreClient metastoreClient = null;
-        Table table = null;
+        TableMetaCache.CachedTable table = null;
 
         //对 查询集 和 结果集建表 做鉴权操作
         if (hiveOpType == HiveOperationType.QUERY || hiveOpType == HiveOperationType.CREATETABLE_AS_SELECT) {
-            //后面要鉴权的字段集合 key为 库.表 ，value为字段名集合
-            Map<String, List<String>> checkPrivilegeObject = new HashMap<>();
+            String userName = hiveAuthProvider.getUserName();
+            //同一个用户反复提交的同一个语句，缓存中有通过结果的话直接通过，元数据服务和鉴权库都不用访问
+            String fingerprint = null;
+            if (decisionMemo != null) {
+                fingerprint = DecisionMemo.fingerprint(userName, hiveOpType, inputHObjs, outputHObjs);
+                if (decisionMemo.isAllowed(fingerprint)) {
+                    metrics.memoHit();
+                    return;
+                }
+            }
+            //这个语句的鉴权期限从这里开始计时
+            StatementDeadline deadline = StatementDeadline.start(statementTimeout, metastoreTimeoutPercent);
             //获取一个元数据连接
             metastoreClient = metastoreClientFactory.getHiveMetastoreClient();
+            //这个语句的字段鉴权过程，每一批表信息拿到之后马上提交鉴权，不用等所有表信息都拿到
+            //这个语句用到的共享连接池和线程池，语句结束之前不会被关闭
+            AuthDbRegistry.Handle authDb = AuthDbRegistry.enter(authDbConfig, authDbConfig.getMaxSize());
+            SqlFieldAuthCheckUtil.StatementCheck statementCheck = new SqlFieldAuthCheckUtil.StatementCheck(userName, authDb.getExecutor(), authDb.getMysqlUtil(), fieldAuthCache, permissionIndex, permissionReplica, denyCache, batchCheck, deadline);
 
             try {
                 /*
@@ -178,60 +281,121 @@ public class MyHiveAuthorization implements HiveAuthorizer {
                 不同的hive版本，最好是自己测试一下不同操作触发的枚举类
                 hive3.1.3中insert as select语句 HiveOperationType 是 QUERY
                  */
+                //需要校验owner的下游表，库.表
+                Set<String> outputTables = new HashSet<>();
                 if(hiveOpType == HiveOperationType.QUERY && !inputHObjs.isEmpty() && !outputHObjs.isEmpty()
                         && (  outputHObjs.get(0).getActionType() == HivePrivilegeObject.HivePrivObjectActionType.INSERT_OVERWRITE
                         || outputHObjs.get(0).getActionType() == HivePrivilegeObject.HivePrivObjectActionType.INSERT)){
                     //获取下游表的 库、表名
                     for(HivePrivilegeObject outputHObj: outputHObjs){
-                        String dbName = outputHObj.getDbname();
-                        String tblName = outputHObj.getObjectName();
-                        table = metastoreClient.getTable(dbName, tblName);
-
-                        if ( !table.getOwner().equals(hiveAuthProvider.getUserName()) ){
-                            throw new HiveAuthzPluginException("字段鉴权 - 当前用户:"+hiveAuthProvider.getUserName()+"非owner，目标owner:"+table.getOwner());
-                        }
-
+                        outputTables.add(outputHObj.getDbname() + "." + outputHObj.getObjectName());
                         //如果写权限要放在外部就要鉴权，需要自己改造一下
                         //List<String> checkfieldList = new ArrayList<>();
                         //默认的全字段标识
                         //checkfieldList.add(INSERT_VALUE_TAG);
                         //checkPrivilegeObject.put(dbName + "." + tblName, checkfieldList);
-                        LOG.info("检测到数据落盘表： " + dbName + "." + tblName + " , 操作落盘");
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("检测到数据落盘表： " + outputHObj.getDbname() + "." + outputHObj.getObjectName() + " , 操作落盘");
+                        }
                     }
                 }
 
-                // 前面下游的信息拿到之后，这里还要拿到上游的数据来源表
+                /*
+                前面下游的信息拿到之后，这里还要拿到上游的数据来源表
+                一个查询涉及几百个分区时，同一张表会对应多个权限对象，这里按 库.表 合并，访问字段取并集
+                 */
+                Map<String, Set<String>> inputColumns = new LinkedHashMap<>();
                 for (HivePrivilegeObject inputHObj : inputHObjs) {
                     //拿出查询字段集合和库表名
                     List<String> checkfieldList = inputHObj.getColumns();
-                    String dbName = inputHObj.getDbname();
-                    String tblName = inputHObj.getObjectName();
-
-                    //通过元数据连接获取这个表
-                    table = metastoreClient.getTable(dbName, tblName);
-                    //成功获取到表对象，且表不是临时表，获取到的字段也不为空，当前用户不是查询表的owner，则放到要鉴权的表信息集合中
-                    //isTemporary判断是否是临时表，临时表只在一次session中存在，元数据不存在元数据服务中而是在内存中，比如你with as 的临时表这种
-                    if (null != table && !table.isTemporary() && null != checkfieldList && !checkfieldList.isEmpty() && !table.getOwner().equals(hiveAuthProvider.getUserName())) {
-                        checkPrivilegeObject.put(dbName + "." + tblName, checkfieldList);
+                    Set<String> columns = inputColumns.computeIfAbsent(inputHObj.getDbname() + "." + inputHObj.getObjectName(), k -> new LinkedHashSet<>());
+                    if (checkfieldList != null) {
+                        columns.addAll(checkfieldList);
+                    }
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("检测到查询访问来自于目的表： " + inputHObj.getDbname() + "." + inputHObj.getObjectName() + " , 访问字段：" + checkfieldList);
                     }
-                    LOG.info("检测到查询访问来自于目的表： " + dbName + "." + tblName + " , 访问字段：" + checkfieldList);
+                }
+
+                /*
+                上下游涉及到的所有表去重之后，先从缓存中取，当前会话的临时表用会话自己的元数据连接单独取
+                剩下的按库分组，每个库只调用一次 getTableObjectsByName 批量获取
+                下游表要校验owner，是写操作的判定，不能用缓存中可能已经过时的owner，所以下游表总是从元数据服务取
+                 */
+                Map<String, TableMetaCache.CachedTable> resolved = new HashMap<>();
+                Map<String, List<String>> dbGroups = new LinkedHashMap<>();
+                //用到了当前会话临时表的语句，通过结果不能缓存，其他会话里同名的可能是一张普通表
+                boolean memoizable = true;
+                for (HivePrivilegeObject hObj : concat(inputHObjs, outputHObjs)) {
+                    String dbName = hObj.getDbname();
+                    String tblName = hObj.getObjectName();
+                    String fullName = dbName + "." + tblName;
+                    if (resolved.containsKey(fullName) || (!inputColumns.containsKey(fullName) && !outputTables.contains(fullName))) {
+                        continue;
+                    }
+                    if (TableMetaCache.isSessionTempTable(dbName, tblName)) {
+                        memoizable = false;
+                        long fetchStart = System.nanoTime();
+                        resolved.put(fullName, TableMetaCache.CachedTable.of(metastoreClient.getTable(dbName, tblName)));
+                        metrics.recordPhase(AuthMetrics.Phase.METASTORE_FETCH, fetchStart);
+                        continue;
+                    }
+                    TableMetaCache.CachedTable cached = tableMetaCache == null || outputTables.contains(fullName) ? null : tableMetaCache.getIfPresent(dbName, tblName);
+                    if (cached != null) {
+                        resolved.put(fullName, cached);
+                        continue;
+                    }
+                    List<String> group = dbGroups.computeIfAbsent(dbName, k -> new ArrayList<>());
+                    if (!group.contains(tblName)) {
+                        group.add(tblName);
+                    }
+                }
+
+                //缓存和临时表就能确定的表，直接开始鉴权
+                checkResolvedTables(resolved, inputColumns, outputTables, userName, statementCheck);
+
+                /*
+                需要访问元数据服务的库，在当前线程中用会话的元数据连接逐个库获取，一个库一次调用
+                一个库的表信息拿到之后，马上提交这个库里表的字段鉴权，下一个库的获取和前面库的字段鉴权同时进行
+
+                之前除了第一个库，其他库在线程池中并行获取，但元数据客户端不是线程安全的，线程池的线程上又没有会话，
+                每个库都要以当前用户的身份新建一个元数据连接，每个语句都要多付出几次 thrift 建连和 SASL 认证，
+                这比并行省下的几次 getTableObjectsByName 调用还慢，所以现在所有的库都走会话已有的这一个连接
+
+                这一段最多用到鉴权期限中元数据获取阶段的截止时间
+                元数据调用本身没法中断，由元数据客户端的 hive.metastore.client.socket.timeout 兜底，每个库返回之后检查是否超时
+                 */
+                for (Map.Entry<String, List<String>> group : dbGroups.entrySet()) {
+                    checkResolvedTables(fetchTables(metastoreClient, group.getKey(), group.getValue()), inputColumns, outputTables, userName, statementCheck);
+                    deadline.checkMetastore();
                 }
 
                 //上面需要元数据连接的地方走完，这里关闭元数据连接
                 metastoreClient.close();
 
-                //如果要鉴权的集合不是空的，则开始鉴权
-                if (checkPrivilegeObject.size() != 0) {
-                    LOG.info("开始鉴权");
-                    SqlFieldAuthCheckUtil.checkPermissions(checkPrivilegeObject,hiveAuthProvider.getUserName(),executor,mysqlUtil);
-                    LOG.info("鉴权结束");
+                //等待所有提交的鉴权结束
+                LOG.debug("开始鉴权");
+                statementCheck.await();
+                LOG.debug("鉴权结束");
+
+                //鉴权通过，缓存语句的通过结果，最多存活到语句用到的字段权限中最早到期的那个
+                //有下游表的写语句不缓存，每次都要按元数据服务中当前的owner校验
+                if (fingerprint != null && memoizable && outputTables.isEmpty()) {
+                    Set<String> tables = new HashSet<>(inputColumns.keySet());
+                    tables.addAll(outputTables);
+                    decisionMemo.putAllowed(fingerprint, tables, statementCheck.getGrantExpireAt());
                 }
             }catch (HiveAuthzPluginException e){
+                statementCheck.cancel();
                 throw e;
             }catch (TException e) {
+                statementCheck.cancel();
                 throw new HiveAuthzPluginException("字段鉴权 - 获取表信息失败. ms:" + e.getMessage());
             }catch (Exception e) {
+                statementCheck.cancel();
                 throw new HiveAuthzPluginException("字段鉴权 - 预期外异常 "+e.getMessage());
+            } finally {
+                authDb.release();
             }
 
         } else if ( hiveOpType == HiveOperationType.GRANT_PRIVILEGE || hiveOpType == HiveOperationType.REVOKE_PRIVILEGE
@@ -240,48 +404,139 @@ public class MyHiveAuthorization implements HiveAuthorizer {
                     || hiveOpType == HiveOperationType.SHOW_ROLE_PRINCIPALS || hiveOpType == HiveOperationType.CREATEROLE
                     || hiveOpType == HiveOperationType.SHOW_ROLES) {
             //由于是自定义权限，所以与之相关的语句不再允许执行
-            throw new HiveAuthzPluginException("不支持原生Hive赋权操作");
+            throw new AuthDeniedException("不支持原生Hive赋权操作");
 
         } else if (hiveOpType == HiveOperationType.TRUNCATETABLE ) {
-            //只有表 owner 才有表的写相关的权限
+            //只有表 owner 才有表的写相关的权限，写操作的判定不用表信息缓存，owner可能刚在其他hiveserver2上改过
             String dbName = outputHObjs.get(0).getDbname();
             String tblName = outputHObjs.get(0).getObjectName();
             try {
                 metastoreClient = metastoreClientFactory.getHiveMetastoreClient();
-                table = metastoreClient.getTable(dbName, tblName);
+                long fetchStart = System.nanoTime();
+                table = TableMetaCache.CachedTable.of(metastoreClient.getTable(dbName, tblName));
+                metrics.recordPhase(AuthMetrics.Phase.METASTORE_FETCH, fetchStart);
                 metastoreClient.close();
                 if ( !hiveAuthProvider.getUserName().equals( table.getOwner() )){
-                    throw new HiveAuthzPluginException("清空表数据需要owner权限");
+                    throw new AuthDeniedException("清空表数据需要owner权限");
                 }
             } catch (TException e) {
                 throw new HiveAuthzPluginException("鉴权 , 获取表信息失败. ms:" + e.getMessage());
             }
 
         } else if (hiveOpType == HiveOperationType.DESCTABLE) {
+            //展示表详情同样只有owner可以，和清空表一样不用表信息缓存，否则改owner之后原来的owner还能继续看一个存活时间
             String dbName = inputHObjs.get(0).getDbname();
             String tblName = inputHObjs.get(0).getObjectName();
             try {
                 metastoreClient = metastoreClientFactory.getHiveMetastoreClient();
-                table = metastoreClient.getTable(dbName, tblName);
+                long fetchStart = System.nanoTime();
+                table = TableMetaCache.CachedTable.of(metastoreClient.getTable(dbName, tblName));
+                metrics.recordPhase(AuthMetrics.Phase.METASTORE_FETCH, fetchStart);
                 metastoreClient.close();
                 if ( !hiveAuthProvider.getUserName().equals( table.getOwner() ) ){
-                    throw new HiveAuthzPluginException("展示表详情信息数据需要owner权限");
+                    throw new AuthDeniedException("展示表详情信息数据需要owner权限");
                 }
             } catch (TException e) {
                 throw new HiveAuthzPluginException("鉴权 , 获取表信息失败. ms:" + e.getMessage());
             }
 
         } else if (hiveOpType == HiveOperationType.ALTERPARTITION_LOCATION) {
-            throw new HiveAuthzPluginException("不允许更改分区存储路径");
+            throw new AuthDeniedException("不允许更改分区存储路径");
         } else {
             //没有任何需要，关闭元数据连接
             if (metastoreClient != null) {
                 metastoreClient.close();
             }
 
+            //其他操作可能会删表、改owner，这里把涉及到的表从缓存中去掉，减少后面读操作的鉴权用到旧的owner的时间
+            //这里还在DDL执行之前，并发的语句可能马上又把旧的owner放回缓存，所以写操作的owner校验都不走缓存
+            if ((tableMetaCache != null || decisionMemo != null || fieldAuthCache != null) && outputHObjs != null) {
+                for (HivePrivilegeObject outputHObj : outputHObjs) {
+                    if (outputHObj.getType() == HivePrivilegeObject.HivePrivilegeObjectType.TABLE_OR_VIEW) {
+                        if (tableMetaCache != null) {
+                            tableMetaCache.invalidate(outputHObj.getDbname(), outputHObj.getObjectName());
+                        }
+                        if (decisionMemo != null) {
+                            decisionMemo.invalidateTable(outputHObj.getDbname() + "." + outputHObj.getObjectName());
+                        }
+                        //删表重建、改字段之后同名的表已经不是原来那张，缓存的通过结果也一起作废
+                        if (fieldAuthCache != null) {
+                            fieldAuthCache.invalidateTable(outputHObj.getDbname() + "." + outputHObj.getObjectName());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 对已经拿到表信息的一批表做鉴权：下游表校验owner，上游表筛选出需要字段鉴权的提交鉴权
+     * 会在线程池中被并发调用，所以只读传入的集合
+     * @param tables 库.表 -> 表信息
+     * @param inputColumns 上游表 库.表 -> 访问字段
+     * @param outputTables 需要校验owner的下游表
+     * @param userName 当前用户
+     * @param statementCheck 当前语句的字段鉴权过程
+     * @throws HiveAuthzPluginException 下游表owner校验不通过
+     */
+    private static void checkResolvedTables(Map<String, TableMetaCache.CachedTable> tables, Map<String, Set<String>> inputColumns,
+                                            Set<String> outputTables, String userName, SqlFieldAuthCheckUtil.StatementCheck statementCheck) throws HiveAuthzPluginException {
+        //后面要鉴权的字段集合 key为 库.表 ，value为字段名集合
+        Map<String, List<String>> checkPrivilegeObject = new HashMap<>();
+        for (Map.Entry<String, TableMetaCache.CachedTable> entry : tables.entrySet()) {
+            String fullName = entry.getKey();
+            TableMetaCache.CachedTable table = entry.getValue();
+
+            if ( outputTables.contains(fullName) && !table.getOwner().equals(userName) ){
+                throw new AuthDeniedException("字段鉴权 - 当前用户:"+userName+"非owner，目标owner:"+table.getOwner());
+            }
+
+            Set<String> checkfieldList = inputColumns.get(fullName);
+            //成功获取到表对象，且表不是临时表，获取到的字段也不为空，当前用户不是查询表的owner，则放到要鉴权的表信息集合中
+            //isTemporary判断是否是临时表，临时表只在一次session中存在，元数据不存在元数据服务中而是在内存中，比如你with as 的临时表这种
+            if (null != checkfieldList && !table.isTemporary() && !checkfieldList.isEmpty() && !table.getOwner().equals(userName)) {
+                checkPrivilegeObject.put(fullName, new ArrayList<>(checkfieldList));
+            }
+        }
+        if (!checkPrivilegeObject.isEmpty()) {
+            statementCheck.submit(checkPrivilegeObject);
+        }
+    }
+
+    /**
+     * 一次调用获取一个库下的多张表，获取到的表顺便放入表信息缓存
+     * @param metastoreClient 元数据客户端
+     * @param dbName 库名
+     * @param tblNames 表名
+     * @return 库.表 -> 表信息
+     * @throws TException 获取失败，或者有表在元数据服务中不存在
+     */
+    private Map<String, TableMetaCache.CachedTable> fetchTables(IMetaStoreClient metastoreClient, String dbName, List<String> tblNames) throws TException {
+        Map<String, TableMetaCache.CachedTable> result = new HashMap<>(tblNames.size());
+        long fetchStart = System.nanoTime();
+        List<Table> tables = metastoreClient.getTableObjectsByName(dbName, tblNames);
+        metrics.recordPhase(AuthMetrics.Phase.METASTORE_FETCH, fetchStart);
+        for (Table table : tables) {
+            if (tableMetaCache != null) {
+                tableMetaCache.put(table);
+            }
+            result.put(table.getDbName() + "." + table.getTableName(), TableMetaCache.CachedTable.of(table));
+        }
+        //批量接口对不存在的表不会报错而是直接忽略，这里和单表获取时保持一致，找不到就报错
+        for (String tblName : tblNames) {
+            if (!result.containsKey(dbName + "." + tblName)) {
+                throw new NoSuchObjectException(dbName + "." + tblName + " table not found");
+            }
         }
+        return result;
     }
 
+    private static List<HivePrivilegeObject> concat(List<HivePrivilegeObject> a, List<HivePrivilegeObject> b) {
+        List<HivePrivilegeObject> all = new ArrayList<>(a.size() + b.size());
+        all.addAll(a);
+        all.addAll(b);
+        return all;
+    }
 
     /**
      * 这个方法用来获取当前权限控制器的版本
@@ -364,11 +619,82 @@ public class MyHiveAuthorization implements HiveAuthorizer {
     /**
      * 展示资源列表的时候触发，比如运行了 show tablse 这种
      * 可以在这里完成有某些权限的展示过滤
+     *
+     * hiveserver2 使用V2鉴权插件时，会自动把 hive.metastore.filter.hook 设置为 AuthorizationMetaStoreFilterHook
+     * 它在 show tables、show databases 以及jdbc元数据接口列库表的时候，把结果包装成权限对象传进来
+     * 开启过滤之后只留下 当前用户是owner或者有权限的表，以及至少有一张这样的表的库
+     * 用户能看到哪些库表在内存中按用户预先算好，几万个对象的过滤也只是每个对象一次哈希查找，不会逐个查鉴权库
      */
     @Override
     public List<HivePrivilegeObject> filterListCmdObjects(List<HivePrivilegeObject> list, HiveAuthzContext hiveAuthzContext) throws HiveAuthzPluginException, HiveAccessControlException {
-        LOG.info("filterListCmdObjects 被触发，入参：" + list);
-        return list;
+        if (!showFilter || list == null || list.isEmpty()) {
+            return list;
+        }
+        String userName = hiveAuthProvider.getUserName();
+        UserVisibility visibility = getVisibility(userName);
+
+        List<HivePrivilegeObject> visible = new ArrayList<>();
+        /*
+         这个方法是hive的元数据过滤钩子在会话的元数据客户端列完库表之后调用的
+         这里用的也是会话自己的客户端，而且只在需要查库的owner时才获取，不能关闭
+         */
+        IMetaStoreClient metastoreClient = null;
+        try {
+            for (HivePrivilegeObject hObj : list) {
+                switch (hObj.getType()) {
+                    case DATABASE:
+                        if (visibility.isDatabaseVisible(hObj.getDbname())) {
+                            visible.add(hObj);
+                            break;
+                        }
+                        //自己是owner但还没有任何表的库在鉴权库中查不到，按元数据服务中库的owner判断
+                        if (metastoreClient == null) {
+                            metastoreClient = metastoreClientFactory.getHiveMetastoreClient();
+                        }
+                        if (userName.equals(visibilityCache.getDatabaseOwner(metastoreClient, hObj.getDbname()))) {
+                            visible.add(hObj);
+                        }
+                        break;
+                    case TABLE_OR_VIEW:
+                        if (visibility.isTableVisible(hObj.getDbname(), hObj.getObjectName())) {
+                            visible.add(hObj);
+                        }
+                        break;
+                    default:
+                        //函数之类的其他对象不在鉴权库的管理范围内，不过滤
+                        visible.add(hObj);
+                }
+            }
+        } catch (TException e) {
+            throw new HiveAuthzPluginException("库表列表过滤 - 元数据服务获取库信息异常 " + e.getMessage());
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("库表列表过滤 用户：" + userName + " 过滤前：" + list.size() + " 过滤后：" + visible.size());
+        }
+        return visible;
+    }
+
+    /**
+     * 获取用户能看到的库和表，内存权限快照可用时直接用快照中的，否则用可见性缓存
+     * @throws HiveAuthzPluginException 查询鉴权库失败
+     */
+    private UserVisibility getVisibility(String userName) throws HiveAuthzPluginException {
+        if (permissionReplica != null) {
+            PermissionSnapshot snapshot = permissionReplica.getSnapshot();
+            if (snapshot != null) {
+                return snapshot.getVisibility(userName);
+            }
+        }
+        AuthDbRegistry.Handle authDb = AuthDbRegistry.enter(authDbConfig, authDbConfig.getMaxSize());
+        try {
+            return visibilityCache.get(userName, authDb.getMysqlUtil(), StatementDeadline.start(statementTimeout, metastoreTimeoutPercent).queryTimeoutSeconds());
+        } catch (SQLTimeoutException e) {
+            throw new HiveAuthzPluginException("库表列表过滤 - 鉴权库查询超时，可以稍后重试或调整 hive.auth.database.authorizer.statement.timeout");
+        } catch (SQLException e) {
+            throw new HiveAuthzPluginException("库表列表过滤 - 鉴权库查询异常 " + e.getMessage());
+        } finally {
+            authDb.release();
+        }
     }
 
     /**
@@ -0,0 +1,205 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveOperationType;
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HivePrivilegeObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 语句级别的鉴权通过结果缓存
+ *
+ * 调度系统上的报表任务每隔几分钟用同一个用户提交一模一样的sql，每次传进来的上下游对象也完全一样
+ * FieldAuthCache 只省掉了查鉴权库这一步，获取表信息、按表合并字段、提交并行任务、等待结果这些还是每次都要做一遍
+ * 这里按 用户 + 操作类型 + 排好序的上游表和字段 + 排好序的下游表和写入方式 算出语句的指纹，缓存整个语句的通过结果
+ * 同样的语句再来时直接通过，不访问元数据服务，也不访问鉴权库
+ *
+ * 只缓存通过的结果，拒绝的结果由 DenyCache 负责，条目的存活时间取下面几个中最早的：
+ * 1、配置的存活时间，owner变更等元数据的变化最多这么长时间生效，和表信息缓存一样
+ * 2、语句用到的所有字段权限中最早的到期时间，权限到期之后绝对不会因为缓存而继续放行
+ * 3、快照刷新发现某张表权限变化后，马上作废涉及这张表的所有语句
+ *
+ * 第3点是回收的权限及时生效的唯一途径，所以只有启用了内存权限快照时 MyHiveAuthorization 才会启用这个缓存
+ * 没有快照时只能靠当前hiveserver2的写操作作废下游表，外部回收的权限要等一个存活时间才生效
+ */
+public class DecisionMemo implements PermissionReplica.ChangeListener {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile DecisionMemo INSTANCE;
+
+    //key 为语句指纹
+    private final Cache<String, Decision> cache;
+    private final long ttl;
+
+    private DecisionMemo(long maxSize, long ttl) {
+        this.ttl = ttl;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的缓存实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 缓存最大条目数，小于等于0时表示不启用缓存
+     * @param ttl 缓存条目最长存活时间 毫秒
+     * @return 不启用缓存时返回null
+     */
+    public static DecisionMemo getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (DecisionMemo.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new DecisionMemo(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 计算语句的指纹
+     * 同一张表的多个权限对象(比如多个分区)按表合并、字段取并集，表和字段都排序，和鉴权时的合并方式一致
+     * 所以对象顺序不同、分区不同、字段顺序不同的同一类语句算出来的指纹相同
+     * @param username 用户
+     * @param hiveOpType 操作类型
+     * @param inputHObjs 上游对象
+     * @param outputHObjs 下游对象
+     * @return 语句指纹
+     */
+    public static String fingerprint(String username, HiveOperationType hiveOpType,
+                                     List<HivePrivilegeObject> inputHObjs, List<HivePrivilegeObject> outputHObjs) {
+        //表的个数不多，用 TreeMap 排序；字段可能有上千个，先收集到列表里再整体排序
+        Map<String, List<String>> inputs = new TreeMap<>();
+        for (HivePrivilegeObject inputHObj : inputHObjs) {
+            List<String> columns = inputs.computeIfAbsent(inputHObj.getType() + ":" + inputHObj.getDbname() + "." + inputHObj.getObjectName(), k -> new ArrayList<>());
+            if (inputHObj.getColumns() != null) {
+                columns.addAll(inputHObj.getColumns());
+            }
+        }
+        Set<String> outputs = new TreeSet<>();
+        for (HivePrivilegeObject outputHObj : outputHObjs) {
+            outputs.add(outputHObj.getType() + ":" + outputHObj.getDbname() + "." + outputHObj.getObjectName() + ":" + outputHObj.getActionType());
+        }
+
+        StringBuilder key = new StringBuilder();
+        key.append(username).append('\u0001').append(hiveOpType).append('\u0001');
+        for (Map.Entry<String, List<String>> entry : inputs.entrySet()) {
+            key.append(entry.getKey()).append('[');
+            /*
+            hive 传进来的字段通常已经是排好序的，数组排序(TimSort)对有序的输入只需要扫一遍
+            比每个字段插入一次 TreeSet 快得多，排序之后相邻的重复字段跳过，效果和 TreeSet 去重一样
+             */
+            String[] columns = entry.getValue().toArray(new String[0]);
+            Arrays.sort(columns);
+            String previous = null;
+            for (String column : columns) {
+                if (!column.equals(previous)) {
+                    key.append(column).append(',');
+                    previous = column;
+                }
+            }
+            key.append(']');
+        }
+        key.append('\u0001');
+        for (String output : outputs) {
+            key.append(output).append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * 判断这个语句是否有尚未过期的通过结果
+     * @param fingerprint 语句指纹
+     * @return true 说明缓存命中并且通过
+     */
+    public boolean isAllowed(String fingerprint) {
+        Decision decision = cache.getIfPresent(fingerprint);
+        if (decision == null) {
+            return false;
+        }
+        //到了语句用到的权限中最早的到期时间，即便缓存自己的ttl还没到也要作废
+        if (decision.expireAt <= System.currentTimeMillis()) {
+            cache.invalidate(fingerprint);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 记录一个语句的通过结果
+     * @param fingerprint 语句指纹
+     * @param tables 语句涉及的 库.表 ，这些表的权限变化时作废
+     * @param grantExpireAt 语句用到的字段权限中最早的到期时间戳(毫秒)，没有用到字段权限时为 Long.MAX_VALUE
+     */
+    public void putAllowed(String fingerprint, Set<String> tables, long grantExpireAt) {
+        long now = System.currentTimeMillis();
+        long expireAt = Math.min(now + ttl, grantExpireAt);
+        if (expireAt <= now) {
+            return;
+        }
+        cache.put(fingerprint, new Decision(tables, expireAt));
+    }
+
+    /**
+     * 作废涉及某张表的所有语句，当前会话改了表的owner、删了表的时候用
+     * @param table 库.表
+     */
+    public void invalidateTable(String table) {
+        if (cache.size() == 0) {
+            return;
+        }
+        cache.asMap().values().removeIf(decision -> decision.tables.contains(table));
+    }
+
+    /**
+     * 权限快照刷新时发现这些表的权限发生了变化
+     * @param tables 库.表
+     */
+    @Override
+    public void tablesChanged(Collection<String> tables) {
+        if (tables.isEmpty() || cache.size() == 0) {
+            return;
+        }
+        Set<String> changed = tables instanceof Set ? (Set<String>) tables : new HashSet<>(tables);
+        cache.asMap().values().removeIf(decision -> {
+            for (String table : decision.tables) {
+                if (changed.contains(table)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * 权限快照全量加载了，不知道具体哪些表发生了变化，全部作废
+     */
+    @Override
+    public void allChanged() {
+        cache.invalidateAll();
+    }
+
+    private static class Decision {
+        private final Set<String> tables;
+        private final long expireAt;
+
+        private Decision(Set<String> tables, long expireAt) {
+            this.tables = tables;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 字段鉴权不通过结果的进程级缓存
+ *
+ * 没有权限的用户经常用调度系统或者脚本反复重试同一个查询，每次重试都要把整套鉴权流程走一遍
+ * 并行查询鉴权库、再用可滚动结果集把 已有权限 拼到报错信息里，结果每次都是一样的拒绝
+ * 这里把拒绝的结果连同拼好的报错信息一起缓存，同样的 用户 + 表 + 字段 再来时直接抛出，不访问鉴权库
+ *
+ * 和 FieldAuthCache 相反，拒绝的结果要在用户拿到权限之后马上失效，所以：
+ * 1、存活时间应该配置得很短，默认 5秒
+ * 2、启用了内存权限快照时，快照每次刷新发现某张表的权限有变化，就作废这张表所有的拒绝结果
+ *    也就是新增的权限最多一个快照刷新间隔就能生效，不用等这里的存活时间
+ */
+public class DenyCache implements PermissionReplica.ChangeListener {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile DenyCache INSTANCE;
+
+    //key 为 用户 + 库.表 + 排好序的字段
+    private final Cache<String, Denial> cache;
+
+    private DenyCache(long maxSize, long ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的缓存实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 缓存最大条目数，小于等于0时表示不启用缓存
+     * @param ttl 缓存条目最长存活时间 毫秒
+     * @return 不启用缓存时返回null
+     */
+    public static DenyCache getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (DenyCache.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new DenyCache(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 获取这个用户对这个表的这批字段缓存的拒绝结果
+     * @param username 用户
+     * @param table 库.表
+     * @param fields 访问的字段
+     * @return 拒绝时的报错信息，没有缓存返回null
+     */
+    public String getDenial(String username, String table, List<String> fields) {
+        Denial denial = cache.getIfPresent(buildKey(username, table, fields));
+        return denial == null ? null : denial.message;
+    }
+
+    /**
+     * 记录一次鉴权不通过的结果
+     * @param username 用户
+     * @param table 库.表
+     * @param fields 访问的字段
+     * @param message 拒绝时的报错信息
+     */
+    public void putDenial(String username, String table, List<String> fields, String message) {
+        cache.put(buildKey(username, table, fields), new Denial(table, message));
+    }
+
+    /**
+     * 权限快照刷新时发现这些表的权限发生了变化
+     * @param tables 库.表
+     */
+    @Override
+    public void tablesChanged(Collection<String> tables) {
+        if (tables.isEmpty() || cache.size() == 0) {
+            return;
+        }
+        Set<String> changed = tables instanceof Set ? (Set<String>) tables : new HashSet<>(tables);
+        cache.asMap().values().removeIf(denial -> changed.contains(denial.table));
+    }
+
+    /**
+     * 权限快照全量加载了，不知道具体哪些表发生了变化，全部作废
+     */
+    @Override
+    public void allChanged() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 拼接缓存的key，字段去重并排序，这样字段顺序不同的同一个查询也能命中
+     */
+    private static String buildKey(String username, String table, List<String> fields) {
+        StringBuilder key = new StringBuilder();
+        key.append(username).append('\u0001').append(table).append('\u0001');
+        for (String field : new TreeSet<>(fields)) {
+            key.append(field).append(',');
+        }
+        return key.toString();
+    }
+
+    private static class Denial {
+        private final String table;
+        private final String message;
+
+        private Denial(String table, String message) {
+            this.table = table;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 字段鉴权通过结果的进程级缓存
+ *
+ * MyHiveAuthorization 是一个会话一个实例，而这个缓存是整个 hiveserver2 进程共用一份
+ * 所以同一个用户在不同会话里面反复查询同一张表的同一批字段时，只有第一次会去鉴权库查
+ *
+ * 这里只缓存鉴权通过的结果，没有权限的情况不缓存，用户拿到权限之后马上就能生效
+ * 缓存条目的过期时间取 配置的ttl 和 这批字段权限中最早的到期时间(last_time) 两者较小的那个
+ * 这样权限到期之后绝对不会因为缓存而继续放行
+ *
+ * 回收的权限什么时候生效：
+ * 1、启用了内存权限快照时，快照刷新发现某张表的权限有变化，就作废这张表所有的通过结果，最多一个快照刷新间隔
+ * 2、没有启用快照时，只有经过当前hiveserver2的写操作会作废下游表的结果，外部权限系统回收的权限最多要等一个ttl
+ * 所以默认不启用(cache.maxsize 为 0)
+ *
+ * 缓存容器用的是 guava 的 Cache，hive 和 hadoop 的lib下本身就带着，不需要额外引入依赖
+ * 容量达到上限后按最近最少使用的顺序淘汰，没有按访问频率的准入策略，一次性扫过大量冷门表的查询会把热点结果挤出去
+ */
+public class FieldAuthCache implements PermissionReplica.ChangeListener {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile FieldAuthCache INSTANCE;
+
+    //key 为 用户 + 库.表 + 排好序的字段 ， value 为这个结果的到期时间戳(毫秒)
+    private final Cache<String, Long> cache;
+    private final long ttl;
+
+    private FieldAuthCache(long maxSize, long ttl) {
+        this.ttl = ttl;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的缓存实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 缓存最大条目数，小于等于0时表示不启用缓存
+     * @param ttl 缓存条目最长存活时间 毫秒
+     * @return 不启用缓存时返回null
+     */
+    public static FieldAuthCache getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (FieldAuthCache.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new FieldAuthCache(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 判断这个用户对这个表的这批字段，是否有尚未过期的通过结果
+     * 命中时返回这个通过结果的到期时间，调用方可以据此推算依赖这个结果的其他缓存能存活多久
+     * @param username 用户
+     * @param table 库.表
+     * @param fields 访问的字段
+     * @return 通过结果的到期时间戳(毫秒)，没有命中返回0
+     */
+    public long allowedUntil(String username, String table, List<String> fields) {
+        String key = buildKey(username, table, fields);
+        Long expireAt = cache.getIfPresent(key);
+        if (expireAt == null) {
+            return 0;
+        }
+        //到了权限的到期时间，即便缓存自己的ttl还没到也要作废
+        if (expireAt <= System.currentTimeMillis()) {
+            cache.invalidate(key);
+            return 0;
+        }
+        return expireAt;
+    }
+
+    /**
+     * 记录一次鉴权通过的结果
+     * @param username 用户
+     * @param table 库.表
+     * @param fields 访问的字段
+     * @param grantTtl 这批字段中最早到期的权限还剩多少毫秒
+     */
+    public void putAllowed(String username, String table, List<String> fields, long grantTtl) {
+        long liveTime = Math.min(ttl, grantTtl);
+        if (liveTime <= 0) {
+            return;
+        }
+        cache.put(buildKey(username, table, fields), System.currentTimeMillis() + liveTime);
+    }
+
+    /**
+     * 作废某张表相关的所有缓存，表权限发生变化的时候用
+     * @param table 库.表
+     */
+    public void invalidateTable(String table) {
+        String part = '\u0001' + table + '\u0001';
+        cache.asMap().keySet().removeIf(key -> key.contains(part));
+    }
+
+    /**
+     * 权限快照刷新时发现这些表的权限发生了变化
+     * @param tables 库.表
+     */
+    @Override
+    public void tablesChanged(Collection<String> tables) {
+        if (tables.isEmpty() || cache.size() == 0) {
+            return;
+        }
+        Set<String> changed = tables instanceof Set ? (Set<String>) tables : new HashSet<>(tables);
+        cache.asMap().keySet().removeIf(key -> changed.contains(tableOf(key)));
+    }
+
+    /**
+     * 权限快照全量加载了，不知道具体哪些表发生了变化，全部作废
+     */
+    @Override
+    public void allChanged() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 从缓存的key中取出 库.表
+     */
+    private static String tableOf(String key) {
+        int start = key.indexOf('\u0001') + 1;
+        return key.substring(start, key.indexOf('\u0001', start));
+    }
+
+    /**
+     * 拼接缓存的key，字段去重并排序，这样字段顺序不同的同一个查询也能命中
+     */
+    private static String buildKey(String username, String table, List<String> fields) {
+        StringBuilder key = new StringBuilder();
+        key.append(username).append('\u0001').append(table).append('\u0001');
+        for (String field : new TreeSet<>(fields)) {
+            key.append(field).append(',');
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,413 @@
+package com.wy.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 内存权限快照在磁盘上的只读镜像，同一台机器上的多个hiveserver2进程通过内存映射共用
+ *
+ * 镜像由持有快照的那个进程写出，其他进程不在堆上加载权限数据，直接把文件映射进来
+ * 鉴权时在映射的内存上按 表 -> 用户 -> 字段 三层开放寻址哈希查找，每一步都是按偏移量读取，不创建对象
+ * 物理内存中只有操作系统的一份页缓存，再多的hiveserver2进程也只占一份
+ *
+ * 文件格式(大端，偏移量都是相对文件开头的int，0表示空)：
+ * 头部 HEADER_SIZE 字节：魔数、格式版本、代数、变更日志位置、表槽位的偏移量和个数、表个数
+ * 字符串：int字符个数 + 每个字符2字节，查找时直接和java字符串逐个字符比较，不需要解码
+ * 字段记录：字段序号、字段名
+ * 权限记录：用户名、到期时间戳、位图long个数 + 位图、额外字段个数 + 额外字段
+ * 表记录：表名、字段槽位个数 + 槽位、用户槽位个数 + 槽位
+ * 文件末尾是所有表的槽位
+ * 槽位是 (名字的hashCode, 记录的偏移量) 两个int，个数是2的幂，至少空一半
+ * 所有引用都指向前面已经写出的内容，所以写的时候只需要顺序写一遍，最后回填头部
+ *
+ * 写出时先写到同目录下的临时文件，刷盘之后原子改名替换，读的一方要么看到旧文件要么看到新文件
+ * 已经映射的旧文件改名删除之后仍然可以读，直到映射对象被回收，所以换文件时不需要等待正在进行的鉴权
+ *
+ * 这个对象是不可变的，只用绝对位置读取映射内存，多线程同时读取不需要同步
+ */
+public class PermissionImage {
+    private static final int MAGIC = 0x48415049;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    //头部各字段的位置
+    private static final int GENERATION_POS = 8;
+    private static final int CHANGE_ID_POS = 16;
+    private static final int TABLE_SLOTS_POS = 24;
+    private static final int TABLE_SLOT_COUNT_POS = 28;
+    private static final int TABLE_COUNT_POS = 32;
+
+    /**
+     * 镜像不能判定通过时的返回值
+     */
+    public static final long NOT_ALLOWED = -1;
+
+    private final ByteBuffer buffer;
+    private final long generation;
+    private final long changeId;
+    private final int tableSlots;
+    private final int tableSlotCount;
+    private final int tableCount;
+
+    private PermissionImage(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("不是可以识别的权限镜像文件");
+        }
+        this.buffer = buffer;
+        this.generation = buffer.getLong(GENERATION_POS);
+        this.changeId = buffer.getLong(CHANGE_ID_POS);
+        this.tableSlots = buffer.getInt(TABLE_SLOTS_POS);
+        this.tableSlotCount = buffer.getInt(TABLE_SLOT_COUNT_POS);
+        this.tableCount = buffer.getInt(TABLE_COUNT_POS);
+    }
+
+    /**
+     * 只读映射一个镜像文件
+     * @throws IOException 文件不存在、格式不对
+     */
+    public static PermissionImage open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new PermissionImage(buffer);
+        }
+    }
+
+    /**
+     * 只读取镜像文件头部的代数，用来判断文件有没有被替换，不映射整个文件
+     * @return 文件不存在或者格式不对时返回 -1
+     */
+    static long readGeneration(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                //读满头部为止
+            }
+            if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                return -1;
+            }
+            return header.getLong(GENERATION_POS);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 判定用户对表的这批字段是否都有权限，和 PermissionSnapshot.getGrant(..).allows(..) 的结果一致
+     * @param now 当前时间戳(毫秒)
+     * @return 有权限时返回这批权限最早到期的时间戳，没有权限或者权限已经到期返回 NOT_ALLOWED
+     */
+    public long allowedUntil(String username, String table, Collection<String> fields, long now) {
+        int tableOffset = find(tableSlots, tableSlotCount, table, 0);
+        int grantOffset = 0;
+        int columnSlots = 0;
+        int columnSlotCount = 0;
+        if (tableOffset != 0) {
+            int pos = skipString(tableOffset);
+            columnSlotCount = buffer.getInt(pos);
+            columnSlots = pos + 4;
+            pos = columnSlots + columnSlotCount * 8;
+            grantOffset = find(pos + 4, buffer.getInt(pos), username, 0);
+        }
+        //表不存在或者用户对表没有任何权限，相当于一个没有任何字段的权限
+        if (grantOffset == 0) {
+            return fields.isEmpty() ? Long.MAX_VALUE : NOT_ALLOWED;
+        }
+
+        int pos = skipString(grantOffset);
+        long expireAt = buffer.getLong(pos);
+        if (expireAt <= now) {
+            return NOT_ALLOWED;
+        }
+        int words = buffer.getInt(pos + 8);
+        int bitmap = pos + 12;
+        int extra = bitmap + words * 8;
+        for (String field : fields) {
+            int column = find(columnSlots, columnSlotCount, field, 4);
+            if (column != 0) {
+                int ordinal = buffer.getInt(column);
+                int word = ordinal >>> 6;
+                if (word >= words || (buffer.getLong(bitmap + word * 8) & (1L << ordinal)) == 0) {
+                    return NOT_ALLOWED;
+                }
+            } else if (!containsString(extra, field)) {
+                return NOT_ALLOWED;
+            }
+        }
+        return expireAt;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getChangeId() {
+        return changeId;
+    }
+
+    public int tableCount() {
+        return tableCount;
+    }
+
+    /**
+     * 映射的字节数
+     */
+    public int size() {
+        return buffer.capacity();
+    }
+
+    /**
+     * 在一组槽位中按开放寻址查找
+     * @param nameSkip 记录开头到名字之间的字节数
+     * @return 记录的偏移量，没有找到返回0
+     */
+    private int find(int slots, int slotCount, String key, int nameSkip) {
+        if (slotCount == 0) {
+            return 0;
+        }
+        int hash = key.hashCode();
+        int mask = slotCount - 1;
+        for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+            int slot = slots + i * 8;
+            int offset = buffer.getInt(slot + 4);
+            if (offset == 0) {
+                return 0;
+            }
+            if (buffer.getInt(slot) == hash && equalsString(offset + nameSkip, key)) {
+                return offset;
+            }
+        }
+    }
+
+    private boolean equalsString(int offset, String s) {
+        int length = buffer.getInt(offset);
+        if (length != s.length()) {
+            return false;
+        }
+        int pos = offset + 4;
+        for (int i = 0; i < length; i++) {
+            if (buffer.getChar(pos + i * 2) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean containsString(int offset, String s) {
+        int count = buffer.getInt(offset);
+        int pos = offset + 4;
+        for (int i = 0; i < count; i++) {
+            if (equalsString(pos, s)) {
+                return true;
+            }
+            pos = skipString(pos);
+        }
+        return false;
+    }
+
+    private int skipString(int offset) {
+        return offset + 4 + buffer.getInt(offset) * 2;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * 把快照写成镜像文件，先写临时文件再原子替换
+     * @param file 镜像文件
+     * @param generation 代数，读的一方按它判断文件有没有被替换
+     * @return 文件的字节数
+     * @throws IOException 写文件异常，或者镜像超过2G
+     */
+    static long write(Path file, PermissionSnapshot snapshot, long generation) throws IOException {
+        Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                Output out = new Output(channel);
+                out.skip(HEADER_SIZE);
+
+                Map<String, PermissionSnapshot.TableEntry> tables = snapshot.tables();
+                int tableSlotCount = slotCount(tables.size());
+                int[] tableSlots = new int[tableSlotCount * 2];
+                for (Map.Entry<String, PermissionSnapshot.TableEntry> table : tables.entrySet()) {
+                    int offset = writeTable(out, table.getKey(), table.getValue());
+                    putSlot(tableSlots, table.getKey(), offset);
+                }
+                int tableSlotsPos = out.position();
+                out.putInts(tableSlots);
+                size = out.finish();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(0, MAGIC);
+                header.putInt(4, FORMAT_VERSION);
+                header.putLong(GENERATION_POS, generation);
+                header.putLong(CHANGE_ID_POS, snapshot.getChangeId());
+                header.putInt(TABLE_SLOTS_POS, tableSlotsPos);
+                header.putInt(TABLE_SLOT_COUNT_POS, tableSlotCount);
+                header.putInt(TABLE_COUNT_POS, tables.size());
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return size;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * 写出一张表的字段记录、权限记录和表记录
+     * @return 表记录的偏移量
+     */
+    private static int writeTable(Output out, String name, PermissionSnapshot.TableEntry entry) throws IOException {
+        TableColumns columns = entry.columns();
+        int[] columnSlots = new int[slotCount(columns.size()) * 2];
+        //重复的字段名以第一个为准，和 TableColumns 一致
+        Set<String> seen = new HashSet<>(columns.size() * 2);
+        for (int i = 0; i < columns.size(); i++) {
+            String column = columns.name(i);
+            if (seen.add(column)) {
+                int offset = out.position();
+                out.putInt(i);
+                out.putString(column);
+                putSlot(columnSlots, column, offset);
+            }
+        }
+
+        Map<String, TableGrant> grants = entry.grants();
+        int[] userSlots = new int[slotCount(grants.size()) * 2];
+        for (Map.Entry<String, TableGrant> grant : grants.entrySet()) {
+            int offset = out.position();
+            TableGrant tableGrant = grant.getValue();
+            out.putString(grant.getKey());
+            out.putLong(tableGrant.getExpireAt());
+            long[] words = tableGrant.getGranted().toLongArray();
+            out.putInt(words.length);
+            for (long word : words) {
+                out.putLong(word);
+            }
+            out.putInt(tableGrant.getExtraGranted().size());
+            for (String field : tableGrant.getExtraGranted()) {
+                out.putString(field);
+            }
+            putSlot(userSlots, grant.getKey(), offset);
+        }
+
+        int offset = out.position();
+        out.putString(name);
+        out.putInt(columnSlots.length / 2);
+        out.putInts(columnSlots);
+        out.putInt(userSlots.length / 2);
+        out.putInts(userSlots);
+        return offset;
+    }
+
+    /**
+     * 放n个元素需要的槽位个数，2的幂并且至少空一半
+     */
+    private static int slotCount(int n) {
+        return n == 0 ? 0 : Integer.highestOneBit(n) << 2;
+    }
+
+    private static void putSlot(int[] slots, String key, int offset) {
+        int hash = key.hashCode();
+        int mask = slots.length / 2 - 1;
+        int i = spread(hash) & mask;
+        while (slots[i * 2 + 1] != 0) {
+            i = (i + 1) & mask;
+        }
+        slots[i * 2] = hash;
+        slots[i * 2 + 1] = offset;
+    }
+
+    /**
+     * 带缓冲的顺序写，记录当前写到的位置
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+        private long position;
+
+        private Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private int position() throws IOException {
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("权限镜像超过2G，不能写出镜像文件");
+            }
+            return (int) position;
+        }
+
+        private void skip(int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+            position += n;
+        }
+
+        private void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+            position += 4;
+        }
+
+        private void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+            position += 8;
+        }
+
+        private void putInts(int[] values) throws IOException {
+            for (int v : values) {
+                putInt(v);
+            }
+        }
+
+        private void putString(String s) throws IOException {
+            putInt(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                ensure(2);
+                buffer.putChar(s.charAt(i));
+            }
+            position += s.length() * 2L;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * @return 写出的总字节数
+         */
+        private long finish() throws IOException {
+            position();
+            flush();
+            return position;
+        }
+    }
+}
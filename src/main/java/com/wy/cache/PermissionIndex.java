@@ -0,0 +1,217 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wy.metrics.AuthMetrics;
+import com.wy.utils.MysqlUtil;
+import com.wy.utils.SqlInList;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 进程级的字段权限位图索引
+ *
+ * 按 用户 + 库.表 缓存这个用户对这张表当前有效的全部字段权限(TableGrant)，用字段序号位图表示
+ * 和 FieldAuthCache 按 访问字段组合 缓存鉴权结果不同，这里缓存的是权限本身
+ * 所以同一张表不管查哪些字段，只要加载过一次，之后都是内存中的位图比较
+ *
+ * 加载时只查两类数据：表的字段列表(db_tb_info.tb_fields，所有用户共用)，以及用户对表的有效权限
+ * 一个语句涉及的多张表在一个连接上一次查完
+ *
+ * 每个用户权限的有效期取 配置的ttl 和 其中最早到期的权限 两者较小的那个，过期后重新加载
+ * 外部权限系统在鉴权库中回收的权限，最多在ttl之后生效
+ * 新增的权限则由调用方在内存判定为没有权限时重新加载一次来保证马上生效
+ */
+public class PermissionIndex {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile PermissionIndex INSTANCE;
+
+    //库.表 -> 表字段列表
+    private final Cache<String, TableColumns> tableColumns;
+    //用户 + 库.表 -> 有效字段权限
+    private final Cache<String, TableGrant> grants;
+    private final long ttl;
+
+    private PermissionIndex(long maxSize, long ttl) {
+        this.ttl = ttl;
+        this.tableColumns = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .build();
+        this.grants = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的索引实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 最多缓存多少个 用户+表 的权限，小于等于0时表示不启用
+     * @param ttl 权限缓存的最长存活时间 毫秒
+     * @return 不启用时返回null
+     */
+    public static PermissionIndex getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (PermissionIndex.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new PermissionIndex(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 只从内存中获取，不会访问鉴权库
+     * @return 没有加载过，或者已经过期时返回null
+     */
+    public TableGrant getIfPresent(String username, String table) {
+        String key = key(username, table);
+        TableGrant grant = grants.getIfPresent(key);
+        if (grant == null) {
+            return null;
+        }
+        if (grant.isExpired(System.currentTimeMillis())) {
+            grants.invalidate(key);
+            return null;
+        }
+        return grant;
+    }
+
+    /**
+     * 从鉴权库加载一个用户对一批表的权限，并放入索引
+     * @param username 用户
+     * @param tables 库.表
+     * @param mysqlUtil 鉴权库连接池
+     * @param queryTimeout 每个查询的超时秒数，超时后由驱动取消查询并抛出 SQLTimeoutException，0 表示不限制
+     * @return 库.表 -> 权限，鉴权库中不存在的表也会有一个没有任何权限的对象
+     * @throws SQLException 查询鉴权库异常
+     */
+    public Map<String, TableGrant> load(String username, Collection<String> tables, MysqlUtil mysqlUtil, int queryTimeout) throws SQLException {
+        Map<String, TableGrant> result = new HashMap<>(tables.size());
+        if (tables.isEmpty()) {
+            return result;
+        }
+
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            long jdbcStart = System.nanoTime();
+
+            //1、表字段列表，缓存中没有的才查
+            Map<String, TableColumns> columnsMap = new HashMap<>(tables.size());
+            List<String> missingColumns = new ArrayList<>();
+            for (String table : tables) {
+                TableColumns columns = tableColumns.getIfPresent(table);
+                if (columns == null) {
+                    missingColumns.add(table);
+                } else {
+                    columnsMap.put(table, columns);
+                }
+            }
+            if (!missingColumns.isEmpty()) {
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select db_tb_name,tb_fields from db_tb_info where db_tb_name in (" + SqlInList.placeholders(missingColumns.size()) + ")");
+                preparedStatement.setQueryTimeout(queryTimeout);
+                SqlInList.bind(preparedStatement, 1, missingColumns);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    TableColumns columns = TableColumns.of(resultSet.getString("tb_fields"));
+                    tableColumns.put(resultSet.getString("db_tb_name"), columns);
+                    columnsMap.put(resultSet.getString("db_tb_name"), columns);
+                }
+                resultSet.close();
+                preparedStatement.close();
+            }
+
+            //2、用户对这些表当前有效的全部字段权限
+            Map<String, BitSet> grantedMap = new HashMap<>(tables.size());
+            Map<String, Set<String>> extraMap = new HashMap<>();
+            Map<String, Long> ttlMap = new HashMap<>(tables.size());
+            List<String> tableList = new ArrayList<>(tables);
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select b.db_tb_name,a.field,timestampdiff(SECOND,NOW(),a.last_time) as grant_ttl " +
+                    "from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id " +
+                    "inner join user_info c on a.user_id=c.user_id " +
+                    "where c.user_name=? and b.db_tb_name in (" + SqlInList.placeholders(tableList.size()) + ") " +
+                    "and a.last_time>=NOW() and a.auth_flag>=1 ",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            preparedStatement.setQueryTimeout(queryTimeout);
+            preparedStatement.setString(1, username);
+            SqlInList.bind(preparedStatement, 2, tableList);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                String table = resultSet.getString("db_tb_name");
+                String field = resultSet.getString("field");
+                TableColumns columns = columnsMap.getOrDefault(table, TableColumns.EMPTY);
+                int ordinal = columns.ordinal(field);
+                if (ordinal >= 0) {
+                    grantedMap.computeIfAbsent(table, k -> new BitSet(columns.size())).set(ordinal);
+                } else {
+                    extraMap.computeIfAbsent(table, k -> new HashSet<>()).add(field);
+                }
+                ttlMap.merge(table, resultSet.getLong("grant_ttl") * 1000, Math::min);
+            }
+            resultSet.close();
+            preparedStatement.close();
+            AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.JDBC, jdbcStart);
+
+            //3、组装成权限对象放入索引
+            long now = System.currentTimeMillis();
+            for (String table : tables) {
+                long liveTime = Math.min(ttl, ttlMap.getOrDefault(table, Long.MAX_VALUE));
+                TableGrant grant = new TableGrant(columnsMap.getOrDefault(table, TableColumns.EMPTY),
+                        grantedMap.getOrDefault(table, new BitSet()),
+                        extraMap.getOrDefault(table, new HashSet<>()),
+                        now + liveTime);
+                if (liveTime > 0) {
+                    grants.put(key(username, table), grant);
+                }
+                result.put(table, grant);
+            }
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+        return result;
+    }
+
+    /**
+     * 作废某张表相关的所有权限和字段列表，表结构或者权限发生变化的时候用
+     * @param table 库.表
+     */
+    public void invalidateTable(String table) {
+        tableColumns.invalidate(table);
+        String suffix = '\u0001' + table;
+        grants.asMap().keySet().removeIf(key -> key.endsWith(suffix));
+    }
+
+    /**
+     * 作废全部数据
+     */
+    public void invalidateAll() {
+        tableColumns.invalidateAll();
+        grants.invalidateAll();
+    }
+
+    private static String key(String username, String table) {
+        return username + '\u0001' + table;
+    }
+}
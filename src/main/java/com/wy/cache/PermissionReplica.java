@@ -0,0 +1,503 @@
+package com.wy.cache;
+
+import com.wy.utils.AuthDbConfig;
+import com.wy.utils.AuthDbRegistry;
+import com.wy.utils.MysqlUtil;
+import com.wy.utils.SqlInList;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 鉴权库权限数据在hiveserver2进程内的只读副本
+ *
+ * 启动后在后台线程中把 db_tb_info、db_tb_auth、user_info 全量加载成一个 PermissionSnapshot
+ * 之后每隔一段时间读取一次鉴权库的变更日志 auth_change_log，只重新加载发生变化的表，生成新快照后整体替换
+ * 鉴权线程拿到的永远是一个完整、不可变的快照，字段鉴权直接在内存中判定，不需要访问鉴权库
+ * 鉴权库看到的只有每个hiveserver2每隔几秒一次的增量查询，而不是每个语句每张表一次查询
+ *
+ * 全量加载时用流式读取，数据一行一行的从服务端取回来累加到快照里，不会在客户端先缓存几百万行的结果集
+ *
+ * 几个需要注意的地方：
+ * 1、外部权限系统回收的权限，最多在一个刷新间隔之后生效
+ * 2、变更日志的自增序号是在写入时分配的，但事务提交的顺序不一定和序号一致，序号小的可能后提交
+ *    所以每次增量都从上上次读到的位置开始读，每个变更会被应用两次，重复应用没有副作用
+ *    另外每隔一小时做一次全量加载兜底，防止超过一个刷新间隔才提交的长事务被漏掉
+ * 3、连续刷新失败超过一定时间后，快照视为不可用，鉴权自动退回查询鉴权库的方式，不会用一个过时的快照一直放行
+ *
+ * 配置了镜像目录时，同一台机器上的多个hiveserver2进程共用一份磁盘上的权限镜像 PermissionImage
+ * 用目录下的锁文件选出一个写出进程，只有它按上面的方式加载快照，快照变化之后写出新的镜像，没有变化时只更新镜像文件的修改时间
+ * 镜像每次都是整个重写并刷盘，其他进程重新映射之后所有缓存都要作废，所以两次写出之间至少间隔 image.min.interval
+ * 间隔内的变化攒到下一次一起写出，非写出进程上回收的权限最多要 刷新间隔 + 写出最小间隔 才生效
+ * 其他进程不加载快照，每个刷新间隔检查一次镜像文件，被替换了就重新映射，鉴权直接在映射的内存上判定
+ * 写出进程退出后锁被释放，下一个刷新的进程接手
+ * 重启的进程在自己的快照加载完成之前先用已有的镜像，镜像文件太久没有更新时和快照一样视为不可用
+ */
+public class PermissionReplica {
+    private static final Log LOG = LogFactory.getLog(PermissionReplica.class);
+
+    //兜底的全量加载间隔 1小时
+    private static final long FULL_RELOAD_INTERVAL = 3600000L;
+    //连续多少个刷新间隔没有刷新成功，快照就不能再用了
+    private static final int MAX_STALE_INTERVALS = 10;
+    //按表id重新加载时 in 条件中一次最多放多少个id，取2的幂次，满批时 SqlInList 不用补齐
+    private static final int RELOAD_BATCH = 512;
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile PermissionReplica INSTANCE;
+
+    private final MysqlUtil mysqlUtil;
+    private final long interval;
+    private final ScheduledExecutorService scheduler;
+
+    //当前的快照，全量加载完成之前为null
+    private volatile PermissionSnapshot snapshot;
+    //最近一次刷新成功的时间
+    private volatile long lastRefreshTime;
+    //下一次增量开始读的位置，也就是上上次读到的位置
+    private long settledChangeId;
+    //最近一次全量加载的时间，以及是否需要马上全量加载
+    private long lastFullLoadTime;
+    private boolean needFullLoad = true;
+    //快照刷新时需要知道哪些表权限发生变化的缓存
+    private final Set<ChangeListener> listeners = new CopyOnWriteArraySet<>();
+
+    //权限镜像文件和写出进程的锁文件，没有配置镜像目录时为null
+    private final Path imageFile;
+    private final Path lockFile;
+    //拿到锁之后一直持有到进程退出
+    private FileChannel lockChannel;
+    private FileLock imageLock;
+    //当前映射的镜像，写出进程在自己的快照加载完成之后不再映射
+    private volatile PermissionImage image;
+    //镜像文件的修改时间，写出进程每次刷新成功都会更新它
+    private volatile long imageModifiedTime;
+    //写出进程上一次写出的代数，写出的快照，以及写出的时间
+    private long imageGeneration;
+    private PermissionSnapshot publishedSnapshot;
+    private long imagePublishedAt;
+    //两次写出镜像之间的最小间隔 毫秒
+    private final long imageMinInterval;
+
+    private PermissionReplica(AuthDbConfig config, long interval, Path imageDir, long imageMinInterval) {
+        this.interval = interval;
+        this.imageMinInterval = imageMinInterval;
+        if (imageDir == null) {
+            this.imageFile = null;
+            this.lockFile = null;
+        } else {
+            this.imageFile = imageDir.resolve("permission.image");
+            this.lockFile = imageDir.resolve("permission.image.lock");
+            try {
+                Files.createDirectories(imageDir);
+            } catch (IOException e) {
+                LOG.warn("权限镜像目录创建失败 " + imageDir + " " + e.getMessage());
+            }
+            //已经有镜像的话马上映射进来，重启之后不用等全量加载
+            followImage();
+        }
+        //和鉴权插件共用进程级别的连接池，快照跟随进程的生命周期，这套连接池不会被淘汰
+        this.mysqlUtil = AuthDbRegistry.acquirePinned(config, config.getMaxSize(), "AuthorizerPool").getMysqlUtil();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hive-auth-snapshot-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        //第一次执行就是全量加载，放在后台线程里，不阻塞第一个会话，加载完成之前鉴权走原来的方式
+        this.scheduler.scheduleWithFixedDelay(this::refresh, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 获取进程级别的副本实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param config 鉴权库连接池配置
+     * @param interval 增量刷新间隔 毫秒
+     * @param imageDir 权限镜像目录，为null时不启用镜像
+     * @param imageMinInterval 两次写出镜像之间的最小间隔 毫秒
+     */
+    public static PermissionReplica getInstance(AuthDbConfig config, long interval, Path imageDir, long imageMinInterval) {
+        if (INSTANCE == null) {
+            synchronized (PermissionReplica.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new PermissionReplica(config, interval, imageDir, imageMinInterval);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 获取当前可用的快照
+     * @return 还没有加载完成，或者太久没有刷新成功时返回null，调用方应该退回查询鉴权库
+     */
+    public PermissionSnapshot getSnapshot() {
+        PermissionSnapshot current = snapshot;
+        if (current == null || System.currentTimeMillis() - lastRefreshTime > interval * MAX_STALE_INTERVALS) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * 获取当前可用的权限镜像，只有在 getSnapshot 返回null时才需要使用
+     * @return 没有启用镜像、还没有镜像，或者镜像太久没有更新时返回null
+     */
+    public PermissionImage getImage() {
+        PermissionImage current = image;
+        if (current == null || System.currentTimeMillis() - imageModifiedTime > interval * MAX_STALE_INTERVALS) {
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * 注册权限变化的监听，同一个对象注册多次只算一次
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 后台线程定时执行的刷新，异常只记录日志，保留原来的快照等下一次刷新
+     */
+    private void refresh() {
+        if (imageFile != null && !isImageWriter()) {
+            followImage();
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            if (needFullLoad || snapshot == null || now - lastFullLoadTime > FULL_RELOAD_INTERVAL) {
+                fullLoad();
+            } else {
+                deltaLoad();
+            }
+            lastRefreshTime = System.currentTimeMillis();
+        } catch (Exception e) {
+            LOG.warn("鉴权快照刷新失败，保留原快照等待下次刷新 " + e.getMessage());
+            return;
+        }
+        if (imageFile != null) {
+            publishImage();
+        }
+    }
+
+    /**
+     * 尝试成为镜像的写出进程，锁被其他进程持有时返回false，下次刷新再试
+     */
+    private boolean isImageWriter() {
+        if (imageLock != null) {
+            return true;
+        }
+        try {
+            if (lockChannel == null) {
+                lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            imageLock = lockChannel.tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            LOG.warn("获取权限镜像锁失败 " + lockFile + " " + e.getMessage());
+            return false;
+        }
+        if (imageLock != null) {
+            LOG.info("当前进程成为权限镜像的写出进程 " + imageFile);
+        }
+        return imageLock != null;
+    }
+
+    /**
+     * 写出进程刷新成功之后调用，快照和上次写出的不一样并且距离上次写出超过最小间隔时写出新的镜像
+     * 否则只更新镜像文件的修改时间，表示写出进程还活着，没有写出的变化留到下一次
+     */
+    private void publishImage() {
+        PermissionSnapshot current = snapshot;
+        try {
+            long start = System.currentTimeMillis();
+            if (!Files.exists(imageFile) || current != publishedSnapshot && start - imagePublishedAt >= imageMinInterval) {
+                long generation = Math.max(start, imageGeneration + 1);
+                long size = PermissionImage.write(imageFile, current, generation);
+                imageGeneration = generation;
+                publishedSnapshot = current;
+                imagePublishedAt = start;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("权限镜像写出完成 代数：" + generation + " 大小：" + size + " 耗时：" + (System.currentTimeMillis() - start) + "ms");
+                }
+            } else {
+                Files.setLastModifiedTime(imageFile, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            //自己已经有快照了，不再需要映射镜像
+            image = null;
+        } catch (IOException e) {
+            LOG.warn("权限镜像写出失败，其他进程在镜像过期之后退回查询鉴权库 " + e.getMessage());
+        }
+    }
+
+    /**
+     * 非写出进程定时检查镜像文件，被替换了就重新映射，映射的内存在旧镜像对象被回收时释放
+     */
+    private void followImage() {
+        try {
+            long generation = PermissionImage.readGeneration(imageFile);
+            if (generation < 0) {
+                return;
+            }
+            PermissionImage current = image;
+            if (current == null || current.getGeneration() != generation) {
+                PermissionImage next = PermissionImage.open(imageFile);
+                image = next;
+                //不知道哪些表变化了，按全部变化通知
+                for (ChangeListener listener : listeners) {
+                    listener.allChanged();
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("映射权限镜像 代数：" + next.getGeneration() + " 表个数：" + next.tableCount() + " 变更日志位置：" + next.getChangeId());
+                }
+            }
+            imageModifiedTime = Files.getLastModifiedTime(imageFile).toMillis();
+        } catch (IOException e) {
+            LOG.warn("权限镜像映射失败 " + imageFile + " " + e.getMessage());
+        }
+    }
+
+    /**
+     * 全量加载
+     */
+    private void fullLoad() throws SQLException {
+        long start = System.currentTimeMillis();
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+
+            //1、先记下变更日志的位置，加载过程中发生的变更由下一次增量再应用一次
+            long changeId = 0;
+            PreparedStatement preparedStatement = connection.prepareStatement("select ifnull(max(change_id),0) from auth_change_log");
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                changeId = resultSet.getLong(1);
+            }
+            resultSet.close();
+            preparedStatement.close();
+
+            //2、所有表的字段列表和owner
+            Map<String, PermissionSnapshot.TableEntry.Builder> builders = new HashMap<>();
+            preparedStatement = streamingStatement(connection, tableSql(""));
+            readTables(preparedStatement, builders);
+
+            //3、所有当前有效的权限
+            preparedStatement = streamingStatement(connection, grantSql(""));
+            long rows = readGrants(preparedStatement, builders);
+
+            snapshot = PermissionSnapshot.build(changeId, builders);
+            settledChangeId = changeId;
+            lastFullLoadTime = System.currentTimeMillis();
+            needFullLoad = false;
+            for (ChangeListener listener : listeners) {
+                listener.allChanged();
+            }
+            LOG.info("鉴权快照全量加载完成 表个数：" + builders.size() + " 权限条数：" + rows + " 变更日志位置：" + changeId + " 耗时：" + (lastFullLoadTime - start) + "ms");
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 增量加载：读取变更日志中变化的表，加上快照中有权限已经到期的表，逐批重新加载
+     */
+    private void deltaLoad() throws SQLException {
+        PermissionSnapshot current = snapshot;
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+
+            //1、变更日志的范围，没有新的变更并且上次的变更已经应用过两次，就只需要处理到期的权限
+            long minId = 0;
+            long maxId = 0;
+            PreparedStatement preparedStatement = connection.prepareStatement("select ifnull(min(change_id),0),ifnull(max(change_id),0) from auth_change_log");
+            ResultSet resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                minId = resultSet.getLong(1);
+                maxId = resultSet.getLong(2);
+            }
+            resultSet.close();
+            preparedStatement.close();
+
+            //变更日志被清理到了还没有读过的位置，中间的变更已经无从知晓，只能全量加载
+            if (minId > settledChangeId + 1) {
+                LOG.info("鉴权变更日志已被清理到 " + minId + " ，快照位置为 " + settledChangeId + " ，下次刷新全量加载");
+                needFullLoad = true;
+                return;
+            }
+
+            //2、发生变化的表id
+            Set<String> changedIds = current.expiredTableIds(System.currentTimeMillis());
+            if (maxId > settledChangeId) {
+                preparedStatement = streamingStatement(connection,
+                        "select db_tb_id,user_id from auth_change_log where change_id>? and change_id<=?");
+                preparedStatement.setLong(1, settledChangeId);
+                preparedStatement.setLong(2, maxId);
+                resultSet = preparedStatement.executeQuery();
+                boolean userChanged = false;
+                while (resultSet.next()) {
+                    String tableId = resultSet.getString("db_tb_id");
+                    if (tableId != null) {
+                        changedIds.add(tableId);
+                    } else if (resultSet.getString("user_id") != null) {
+                        userChanged = true;
+                    }
+                }
+                resultSet.close();
+                preparedStatement.close();
+
+                //用户改名或者被删除，影响的是这个用户所有的权限，这种情况很少，直接全量加载
+                if (userChanged) {
+                    needFullLoad = true;
+                    return;
+                }
+            }
+
+            //3、逐批重新加载这些表，鉴权库中已经不存在的表在新快照中会被删除
+            Map<String, PermissionSnapshot.TableEntry.Builder> builders = new HashMap<>(changedIds.size() * 2);
+            List<String> idList = new ArrayList<>(changedIds);
+            for (int from = 0; from < idList.size(); from += RELOAD_BATCH) {
+                List<String> ids = idList.subList(from, Math.min(from + RELOAD_BATCH, idList.size()));
+                String in = SqlInList.placeholders(ids.size());
+
+                preparedStatement = streamingStatement(connection, tableSql("where a.db_tb_id in (" + in + ")"));
+                SqlInList.bind(preparedStatement, 1, ids);
+                readTables(preparedStatement, builders);
+
+                preparedStatement = streamingStatement(connection, grantSql("and a.db_tb_id in (" + in + ") "));
+                SqlInList.bind(preparedStatement, 1, ids);
+                readGrants(preparedStatement, builders);
+            }
+
+            if (!changedIds.isEmpty() || maxId != current.getChangeId()) {
+                PermissionSnapshot next = current.apply(maxId, changedIds, builders);
+                snapshot = next;
+                if (!changedIds.isEmpty() && !listeners.isEmpty()) {
+                    //表可能被删除或者新建，所以新旧快照中的表名都要通知
+                    Set<String> changedTables = new HashSet<>(changedIds.size() * 2);
+                    for (String id : changedIds) {
+                        String oldName = current.tableName(id);
+                        if (oldName != null) {
+                            changedTables.add(oldName);
+                        }
+                        String newName = next.tableName(id);
+                        if (newName != null) {
+                            changedTables.add(newName);
+                        }
+                    }
+                    for (ChangeListener listener : listeners) {
+                        listener.tablesChanged(changedTables);
+                    }
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("鉴权快照增量刷新 重新加载表个数：" + changedIds.size() + " 变更日志位置：" + maxId);
+                }
+            }
+            //这次读到的位置要等下一次增量也读过之后才算稳定
+            settledChangeId = current.getChangeId();
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 读取表信息，每张表生成一个构建器
+     */
+    private static void readTables(PreparedStatement preparedStatement, Map<String, PermissionSnapshot.TableEntry.Builder> builders) throws SQLException {
+        ResultSet resultSet = preparedStatement.executeQuery();
+        while (resultSet.next()) {
+            String id = resultSet.getString("db_tb_id");
+            builders.put(id, new PermissionSnapshot.TableEntry.Builder(id, resultSet.getString("db_tb_name"), resultSet.getString("tb_fields"), resultSet.getString("owner_name")));
+        }
+        resultSet.close();
+        preparedStatement.close();
+    }
+
+    /**
+     * 读取权限累加到对应表的构建器中，表信息和权限是两次查询，中间新建的表的权限直接忽略，下次增量会再加载
+     * @return 读取的权限条数
+     */
+    private static long readGrants(PreparedStatement preparedStatement, Map<String, PermissionSnapshot.TableEntry.Builder> builders) throws SQLException {
+        long now = System.currentTimeMillis();
+        long rows = 0;
+        ResultSet resultSet = preparedStatement.executeQuery();
+        while (resultSet.next()) {
+            PermissionSnapshot.TableEntry.Builder builder = builders.get(resultSet.getString("db_tb_id"));
+            if (builder != null) {
+                builder.addGrant(resultSet.getString("user_name"), resultSet.getString("field"), now + resultSet.getLong("grant_ttl") * 1000);
+                rows++;
+            }
+        }
+        resultSet.close();
+        preparedStatement.close();
+        return rows;
+    }
+
+    /**
+     * 查询表信息的sql，owner只用来过滤 show tables 的结果，owner用户改名时变更日志会触发全量加载
+     * @param condition 追加的条件
+     */
+    private static String tableSql(String condition) {
+        return "select a.db_tb_id,a.db_tb_name,a.tb_fields,c.user_name as owner_name " +
+                "from db_tb_info a left join user_info c on a.user_id=c.user_id " + condition;
+    }
+
+    /**
+     * 查询有效权限的sql，和其他鉴权方式的条件保持一致
+     * @param condition 追加的条件
+     */
+    private static String grantSql(String condition) {
+        return "select a.db_tb_id,c.user_name,a.field,timestampdiff(SECOND,NOW(),a.last_time) as grant_ttl " +
+                "from db_tb_auth a inner join user_info c on a.user_id=c.user_id " +
+                "where a.last_time>=NOW() and a.auth_flag>=1 " + condition;
+    }
+
+    /**
+     * 只向前、只读并且fetchSize为Integer.MIN_VALUE，对mysql驱动来说就是流式读取
+     * 注意流式读取的结果集没有读完关闭之前，同一个连接上不能执行其他语句
+     */
+    private static PreparedStatement streamingStatement(Connection connection, String sql) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        preparedStatement.setFetchSize(Integer.MIN_VALUE);
+        return preparedStatement;
+    }
+
+    /**
+     * 快照刷新时权限发生变化的通知，在刷新线程中调用，实现不要做耗时的操作
+     */
+    public interface ChangeListener {
+        /**
+         * 这些表的表信息或者权限发生了变化
+         * @param tables 库.表
+         */
+        void tablesChanged(Collection<String> tables);
+
+        /**
+         * 全量加载了快照，所有表都可能发生了变化
+         */
+        void allChanged();
+    }
+}
@@ -0,0 +1,310 @@
+package com.wy.cache;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 鉴权库全量权限数据在内存中的一个不可变快照
+ *
+ * 包含所有表的字段列表，以及所有用户对所有表当前有效的字段权限
+ * 快照一旦构建完成就不再修改，增量更新时复制出一个新快照再整体替换(copy-on-write)
+ * 所以鉴权线程读取时不需要任何锁
+ *
+ * 复制时只复制外层 表 -> 表数据 的映射，没有发生变化的表数据对象新旧快照共用
+ *
+ * 另外按用户维护了一份 用户 -> 库 -> 能看到的表 的可见性索引，用来过滤 show tables / show databases 的结果
+ * 能看到指的是 用户是表的owner 或者 对表有权限，增量更新时只复制受影响的用户和库，其余部分新旧快照共用
+ */
+public class PermissionSnapshot {
+    public static final PermissionSnapshot EMPTY = new PermissionSnapshot(0, new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+    //构建这个快照时，鉴权库变更日志 auth_change_log 读到的位置
+    private final long changeId;
+    //库.表 -> 表数据
+    private final Map<String, TableEntry> tables;
+    //db_tb_id -> 库.表 ，表被删除时变更日志中只有id
+    private final Map<String, String> tableIds;
+    //用户 -> 库名 -> 这个用户在这个库下能看到的表名
+    private final Map<String, Map<String, Set<String>>> visibility;
+
+    PermissionSnapshot(long changeId, Map<String, TableEntry> tables, Map<String, String> tableIds, Map<String, Map<String, Set<String>>> visibility) {
+        this.changeId = changeId;
+        this.tables = tables;
+        this.tableIds = tableIds;
+        this.visibility = visibility;
+    }
+
+    /**
+     * 获取用户对表的有效权限
+     * @return 不会返回null，表不存在或者用户没有任何权限时返回一个没有任何权限的对象
+     */
+    public TableGrant getGrant(String username, String table) {
+        TableEntry entry = tables.get(table);
+        if (entry == null) {
+            return TableEntry.NO_TABLE_GRANT;
+        }
+        TableGrant grant = entry.grants.get(username);
+        return grant == null ? entry.noGrant : grant;
+    }
+
+    /**
+     * 获取用户能看到的库和表
+     * @return 不会返回null，用户什么都看不到时返回一个空的对象
+     */
+    public UserVisibility getVisibility(String username) {
+        Map<String, Set<String>> tablesByDb = visibility.get(username);
+        return tablesByDb == null ? UserVisibility.NONE : new UserVisibility(tablesByDb);
+    }
+
+    public long getChangeId() {
+        return changeId;
+    }
+
+    public int tableCount() {
+        return tables.size();
+    }
+
+    /**
+     * 所有表，写权限镜像时使用
+     */
+    Map<String, TableEntry> tables() {
+        return tables;
+    }
+
+    /**
+     * 表id对应的 库.表
+     * @return 快照中没有这张表时返回null
+     */
+    String tableName(String id) {
+        return tableIds.get(id);
+    }
+
+    /**
+     * 有权限已经到期的表，这些表需要从鉴权库重新加载
+     * 到期的权限在快照中仍然是有权限的状态，只是鉴权时会因为过期而不用快照判定，重新加载之后才会去掉
+     * @param now 当前时间戳(毫秒)
+     * @return 表id
+     */
+    Set<String> expiredTableIds(long now) {
+        Set<String> ids = new HashSet<>();
+        for (TableEntry entry : tables.values()) {
+            if (entry.expireAt <= now) {
+                ids.add(entry.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 在当前快照的基础上应用增量，返回新快照，当前快照不变
+     * @param changeId 增量读到的变更日志位置
+     * @param changedIds 发生变化的表id
+     * @param reloaded 这些表从鉴权库中重新加载的数据，id不在这里面的说明表已经被删除
+     */
+    PermissionSnapshot apply(long changeId, Set<String> changedIds, Map<String, TableEntry.Builder> reloaded) {
+        Map<String, TableEntry> newTables = new HashMap<>(tables);
+        Map<String, String> newTableIds = new HashMap<>(tableIds);
+        VisibilityEditor editor = new VisibilityEditor(visibility);
+        for (String id : changedIds) {
+            String oldName = newTableIds.remove(id);
+            if (oldName != null) {
+                TableEntry oldEntry = newTables.remove(oldName);
+                if (oldEntry != null) {
+                    editor.remove(oldName, oldEntry);
+                }
+            }
+        }
+        for (TableEntry.Builder builder : reloaded.values()) {
+            TableEntry entry = builder.build();
+            newTables.put(builder.name, entry);
+            newTableIds.put(builder.id, builder.name);
+            editor.add(builder.name, entry);
+        }
+        return new PermissionSnapshot(changeId, newTables, newTableIds, editor.visibility);
+    }
+
+    /**
+     * 由全量加载的数据构建快照
+     */
+    static PermissionSnapshot build(long changeId, Map<String, TableEntry.Builder> builders) {
+        Map<String, TableEntry> newTables = new HashMap<>(builders.size() * 2);
+        Map<String, String> newTableIds = new HashMap<>(builders.size() * 2);
+        VisibilityEditor editor = new VisibilityEditor(new HashMap<>());
+        for (TableEntry.Builder builder : builders.values()) {
+            TableEntry entry = builder.build();
+            newTables.put(builder.name, entry);
+            newTableIds.put(builder.id, builder.name);
+            editor.add(builder.name, entry);
+        }
+        return new PermissionSnapshot(changeId, newTables, newTableIds, editor.visibility);
+    }
+
+    /**
+     * 在旧的可见性索引上做增删，第一次修改某个用户、某个库时才复制它，没有修改的部分和旧快照共用
+     * 所以旧快照上正在进行的过滤不会看到修改到一半的状态
+     */
+    private static class VisibilityEditor {
+        private final Map<String, Map<String, Set<String>>> visibility;
+        //已经复制过的用户，以及已经复制过的 用户 -> 库
+        private final Map<String, Set<String>> copied = new HashMap<>();
+
+        private VisibilityEditor(Map<String, Map<String, Set<String>>> old) {
+            this.visibility = new HashMap<>(old);
+        }
+
+        private void add(String dbTbName, TableEntry entry) {
+            String[] names = UserVisibility.split(dbTbName);
+            if (names == null) {
+                return;
+            }
+            for (String username : entry.visibleTo()) {
+                tables(username, names[0]).add(names[1]);
+            }
+        }
+
+        private void remove(String dbTbName, TableEntry entry) {
+            String[] names = UserVisibility.split(dbTbName);
+            if (names == null) {
+                return;
+            }
+            for (String username : entry.visibleTo()) {
+                Map<String, Set<String>> tablesByDb = visibility.get(username);
+                if (tablesByDb == null || !tablesByDb.containsKey(names[0])) {
+                    continue;
+                }
+                Set<String> dbTables = tables(username, names[0]);
+                dbTables.remove(names[1]);
+                //库下面一张能看到的表都没有了，库也就看不到了
+                if (dbTables.isEmpty()) {
+                    Map<String, Set<String>> userTables = visibility.get(username);
+                    userTables.remove(names[0]);
+                    if (userTables.isEmpty()) {
+                        visibility.remove(username);
+                        copied.remove(username);
+                    } else {
+                        copied.get(username).remove(names[0]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 获取一个用户在一个库下可以修改的表集合，需要时先复制
+         */
+        private Set<String> tables(String username, String dbName) {
+            Set<String> copiedDbs = copied.get(username);
+            Map<String, Set<String>> tablesByDb;
+            if (copiedDbs == null) {
+                Map<String, Set<String>> old = visibility.get(username);
+                tablesByDb = old == null ? new HashMap<>() : new HashMap<>(old);
+                visibility.put(username, tablesByDb);
+                copiedDbs = new HashSet<>();
+                copied.put(username, copiedDbs);
+            } else {
+                tablesByDb = visibility.get(username);
+            }
+            Set<String> dbTables = tablesByDb.get(dbName);
+            if (!copiedDbs.contains(dbName)) {
+                dbTables = dbTables == null ? new HashSet<>() : new HashSet<>(dbTables);
+                tablesByDb.put(dbName, dbTables);
+                copiedDbs.add(dbName);
+            }
+            return dbTables;
+        }
+    }
+
+    /**
+     * 一张表的字段列表和所有用户对它的权限
+     */
+    static class TableEntry {
+        static final TableGrant NO_TABLE_GRANT = new TableGrant(TableColumns.EMPTY, new BitSet(), Collections.<String>emptySet(), Long.MAX_VALUE);
+
+        private final String id;
+        //表的owner，鉴权库中没有记录owner时为null
+        private final String owner;
+        private final Map<String, TableGrant> grants;
+        private final TableGrant noGrant;
+        //这张表所有权限中最早到期的时间戳(毫秒)
+        private final long expireAt;
+
+        private TableEntry(String id, String owner, TableColumns columns, Map<String, TableGrant> grants, long expireAt) {
+            this.id = id;
+            this.owner = owner;
+            this.grants = grants;
+            this.expireAt = expireAt;
+            this.noGrant = new TableGrant(columns, new BitSet(), Collections.<String>emptySet(), Long.MAX_VALUE);
+        }
+
+        TableColumns columns() {
+            return noGrant.getColumns();
+        }
+
+        Map<String, TableGrant> grants() {
+            return grants;
+        }
+
+        /**
+         * 能看到这张表的用户：owner 和所有有权限的用户
+         */
+        private Set<String> visibleTo() {
+            if (owner == null || grants.containsKey(owner)) {
+                return grants.keySet();
+            }
+            Set<String> users = new HashSet<>(grants.keySet());
+            users.add(owner);
+            return users;
+        }
+
+        /**
+         * 加载过程中逐行累加数据用的构建器
+         */
+        static class Builder {
+            final String id;
+            final String name;
+            final TableColumns columns;
+            final String owner;
+            private final Map<String, BitSet> granted = new HashMap<>();
+            private final Map<String, Set<String>> extra = new HashMap<>();
+            private final Map<String, Long> expireAt = new HashMap<>();
+
+            Builder(String id, String name, String tbFields, String owner) {
+                this.id = id;
+                this.name = name;
+                this.columns = TableColumns.of(tbFields);
+                this.owner = owner;
+            }
+
+            /**
+             * 累加一条权限
+             * @param expire 这条权限的到期时间戳(毫秒)
+             */
+            void addGrant(String username, String field, long expire) {
+                int ordinal = columns.ordinal(field);
+                if (ordinal >= 0) {
+                    granted.computeIfAbsent(username, k -> new BitSet(columns.size())).set(ordinal);
+                } else {
+                    extra.computeIfAbsent(username, k -> new HashSet<>()).add(field);
+                    granted.computeIfAbsent(username, k -> new BitSet(columns.size()));
+                }
+                expireAt.merge(username, expire, Math::min);
+            }
+
+            TableEntry build() {
+                Map<String, TableGrant> grants = new HashMap<>(granted.size() * 2);
+                long tableExpireAt = Long.MAX_VALUE;
+                for (Map.Entry<String, BitSet> entry : granted.entrySet()) {
+                    String username = entry.getKey();
+                    long userExpireAt = expireAt.get(username);
+                    grants.put(username, new TableGrant(columns, entry.getValue(),
+                            extra.getOrDefault(username, new HashSet<>()), userExpireAt));
+                    tableExpireAt = Math.min(tableExpireAt, userExpireAt);
+                }
+                return new TableEntry(id, owner, columns, grants, tableExpireAt);
+            }
+        }
+    }
+}
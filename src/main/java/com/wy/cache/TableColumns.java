@@ -0,0 +1,78 @@
+package com.wy.cache;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一张表的字段列表，以及 字段名 -> 字段序号 的映射
+ *
+ * 数据来源于鉴权库 db_tb_info.tb_fields ，它本身就是按表字段顺序英文逗号拼接的
+ * 字段序号就是字段在这个列表中的下标，权限索引中用序号组成的位图来表示一批字段
+ *
+ * 这个对象是不可变的，同一张表的所有用户共用一个
+ */
+public class TableColumns {
+    public static final TableColumns EMPTY = new TableColumns(new String[0]);
+
+    private final String[] names;
+    private final Map<String, Integer> ordinals;
+
+    private TableColumns(String[] names) {
+        this.names = names;
+        Map<String, Integer> map = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            map.putIfAbsent(names[i], i);
+        }
+        this.ordinals = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * 按 tb_fields 的内容构建
+     * @param tbFields 英文逗号分割的字段列表，为空时表示表没有字段信息
+     */
+    public static TableColumns of(String tbFields) {
+        if (tbFields == null || tbFields.isEmpty()) {
+            return EMPTY;
+        }
+        return new TableColumns(tbFields.split(","));
+    }
+
+    /**
+     * 字段序号，不存在返回 -1
+     */
+    public int ordinal(String field) {
+        Integer ordinal = ordinals.get(field);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    public String name(int ordinal) {
+        return names[ordinal];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * 把一批字段转成序号位图
+     * @param fields 字段
+     * @param unknown 不在字段列表中的字段会放到这里，可以为null
+     * @return 序号位图
+     */
+    public BitSet toBitmap(Collection<String> fields, Set<String> unknown) {
+        BitSet bitmap = new BitSet(names.length);
+        for (String field : fields) {
+            int ordinal = ordinal(field);
+            if (ordinal >= 0) {
+                bitmap.set(ordinal);
+            } else if (unknown != null) {
+                unknown.add(field);
+            }
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,83 @@
+package com.wy.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 一个用户对一张表当前有效的字段权限
+ *
+ * 有权限的字段用字段序号位图保存，鉴权时把访问字段也转成位图
+ * 然后 访问字段 减去 已有权限 为空就说明权限足够，一个long就能比较64个字段
+ * 几千个字段的宽表 select * 时也只是几十次按位运算，而不是一个几千个元素的 in 查询
+ *
+ * 鉴权库中 db_tb_auth.field 理论上都在 tb_fields 里面，但为了和直接查库的结果完全一致
+ * 不在字段列表里的已授权字段单独放在一个集合中，正常情况下这个集合是空的
+ *
+ * 这个对象是不可变的
+ */
+public class TableGrant {
+    private final TableColumns columns;
+    private final BitSet granted;
+    private final Set<String> extraGranted;
+    //这批权限中最早到期的那个权限的到期时间戳(毫秒)，到了这个时间整个对象就不能再用了
+    private final long expireAt;
+
+    public TableGrant(TableColumns columns, BitSet granted, Set<String> extraGranted, long expireAt) {
+        this.columns = columns;
+        this.granted = granted;
+        this.extraGranted = extraGranted.isEmpty() ? Collections.<String>emptySet() : extraGranted;
+        this.expireAt = expireAt;
+    }
+
+    /**
+     * 是否对这批字段都有权限
+     */
+    public boolean allows(Collection<String> fields) {
+        Set<String> unknown = new HashSet<>();
+        BitSet requested = columns.toBitmap(fields, unknown);
+        requested.andNot(granted);
+        return requested.isEmpty() && extraGranted.containsAll(unknown);
+    }
+
+    /**
+     * 这批字段中有权限的字段，按传入的顺序返回，用于拼接没有权限时的报错信息
+     */
+    public List<String> grantedAmong(Collection<String> fields) {
+        List<String> result = new ArrayList<>();
+        for (String field : fields) {
+            int ordinal = columns.ordinal(field);
+            if ((ordinal >= 0 && granted.get(ordinal)) || extraGranted.contains(field)) {
+                result.add(field);
+            }
+        }
+        return result;
+    }
+
+    public boolean isExpired(long now) {
+        return expireAt <= now;
+    }
+
+    public long getExpireAt() {
+        return expireAt;
+    }
+
+    public TableColumns getColumns() {
+        return columns;
+    }
+
+    /**
+     * 有权限的字段序号位图，返回的是副本
+     */
+    public BitSet getGranted() {
+        return (BitSet) granted.clone();
+    }
+
+    public Set<String> getExtraGranted() {
+        return extraGranted;
+    }
+}
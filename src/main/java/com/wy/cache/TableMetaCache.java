@@ -0,0 +1,134 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.hadoop.hive.ql.session.SessionState;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 元数据服务中表信息的进程级缓存
+ *
+ * MyHiveAuthorization 的鉴权流程只需要表的 owner、是否临时表、表类型 这三个信息
+ * 原来每个语句的每个上下游对象都要 getTable 一次，每次都是一次到元数据服务的thrift调用
+ * 高峰期元数据服务本身就成了瓶颈，所以这里把这三个信息缓存下来，所有会话共用
+ * 只用于读操作的字段鉴权，清空表、写入下游表、展示表详情这些按owner判定的操作都直接读元数据服务
+ *
+ * 要注意临时表是会话级别的，只存在于当前会话的 SessionState 中，而且可以和正式表同名
+ * 因此当前会话中存在同名临时表时不走缓存，直接用会话自己的元数据客户端去取，取到的结果也不放进缓存
+ */
+public class TableMetaCache {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile TableMetaCache INSTANCE;
+
+    //key 为 库.表
+    private final Cache<String, CachedTable> cache;
+
+    private TableMetaCache(long maxSize, long ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的缓存实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 缓存最大表个数，小于等于0时表示不启用缓存
+     * @param ttl 缓存条目存活时间 毫秒
+     * @return 不启用缓存时返回null
+     */
+    public static TableMetaCache getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            return null;
+        }
+        if (INSTANCE == null) {
+            synchronized (TableMetaCache.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new TableMetaCache(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 只从缓存中获取表信息，不会访问元数据服务，调用方需要自己先排除当前会话的临时表
+     * @return 缓存中没有时返回null
+     */
+    public CachedTable getIfPresent(String dbName, String tblName) {
+        return cache.getIfPresent(key(dbName, tblName));
+    }
+
+    /**
+     * 把已经从元数据服务获取到的表放入缓存，临时表不放
+     */
+    public void put(Table table) {
+        if (table == null || table.isTemporary()) {
+            return;
+        }
+        cache.put(key(table.getDbName(), table.getTableName()), CachedTable.of(table));
+    }
+
+    /**
+     * 作废某张表的缓存，表被删除、更改owner等情况时用
+     */
+    public void invalidate(String dbName, String tblName) {
+        cache.invalidate(key(dbName, tblName));
+    }
+
+    private static String key(String dbName, String tblName) {
+        return (dbName + "." + tblName).toLowerCase();
+    }
+
+    /**
+     * 当前会话中是否存在这个名字的临时表
+     * 会话信息保存在线程变量中，所以只有在会话自己的线程里调用才有意义，其他线程调用永远返回false
+     */
+    public static boolean isSessionTempTable(String dbName, String tblName) {
+        SessionState sessionState = SessionState.get();
+        if (sessionState == null) {
+            return false;
+        }
+        Map<String, Map<String, org.apache.hadoop.hive.ql.metadata.Table>> tempTables = sessionState.getTempTables();
+        if (tempTables == null || dbName == null || tblName == null) {
+            return false;
+        }
+        Map<String, org.apache.hadoop.hive.ql.metadata.Table> dbTempTables = tempTables.get(dbName.toLowerCase());
+        return dbTempTables != null && dbTempTables.containsKey(tblName.toLowerCase());
+    }
+
+    /**
+     * 鉴权需要的表信息，只保留 owner、是否临时表、表类型，不持有整个thrift表对象
+     */
+    public static class CachedTable {
+        private final String owner;
+        private final boolean temporary;
+        private final String tableType;
+
+        private CachedTable(String owner, boolean temporary, String tableType) {
+            this.owner = owner;
+            this.temporary = temporary;
+            this.tableType = tableType;
+        }
+
+        public static CachedTable of(Table table) {
+            return new CachedTable(table.getOwner(), table.isTemporary(), table.getTableType());
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public boolean isTemporary() {
+            return temporary;
+        }
+
+        public String getTableType() {
+            return tableType;
+        }
+    }
+}
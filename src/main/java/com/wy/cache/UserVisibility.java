@@ -0,0 +1,69 @@
+package com.wy.cache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 一个用户能看到的库和表，show tables / show databases 过滤结果时使用
+ *
+ * 能看到的表：用户是表的owner，或者对表至少有一个未到期的字段权限
+ * 能看到的库：库下面至少有一张能看到的表
+ *
+ * 按 库 -> 表名集合 组织，过滤时每个对象只是一两次哈希查找，不访问鉴权库
+ * 对象本身只读，由内存权限快照或者 VisibilityCache 构建
+ */
+public class UserVisibility {
+    static final UserVisibility NONE = new UserVisibility(Collections.<String, Set<String>>emptyMap());
+
+    //库名 -> 表名
+    private final Map<String, Set<String>> tablesByDb;
+
+    UserVisibility(Map<String, Set<String>> tablesByDb) {
+        this.tablesByDb = tablesByDb;
+    }
+
+    /**
+     * 这张表对用户是否可见
+     * @param dbName 库名
+     * @param tblName 表名
+     */
+    public boolean isTableVisible(String dbName, String tblName) {
+        Set<String> tables = tablesByDb.get(dbName);
+        return tables != null && tables.contains(tblName);
+    }
+
+    /**
+     * 这个库对用户是否可见
+     * @param dbName 库名
+     */
+    public boolean isDatabaseVisible(String dbName) {
+        return tablesByDb.containsKey(dbName);
+    }
+
+    /**
+     * 可见的表个数
+     */
+    public int tableCount() {
+        int count = 0;
+        for (Set<String> tables : tablesByDb.values()) {
+            count += tables.size();
+        }
+        return count;
+    }
+
+    /**
+     * 把鉴权库中的 库.表 拆成库名和表名，hive的库名中不会有点，所以按第一个点拆分
+     * @return 长度为2的数组，格式不对时返回null
+     */
+    static String[] split(String dbTbName) {
+        if (dbTbName == null) {
+            return null;
+        }
+        int dot = dbTbName.indexOf('.');
+        if (dot <= 0 || dot == dbTbName.length() - 1) {
+            return null;
+        }
+        return new String[]{dbTbName.substring(0, dot), dbTbName.substring(dot + 1)};
+    }
+}
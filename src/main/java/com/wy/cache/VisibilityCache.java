@@ -0,0 +1,151 @@
+package com.wy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.wy.metrics.AuthMetrics;
+import com.wy.utils.MysqlUtil;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.thrift.TException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 没有启用内存权限快照(或者快照暂时不可用)时，show tables / show databases 过滤用的用户可见性缓存
+ *
+ * 一个用户第一次 show 的时候，用一个流式查询把他是owner的表和有权限的表一次全部查回来，按用户缓存
+ * 之后这个用户的 show 在存活时间内都只是内存中的查找，不管一次列出多少张表都不会逐个去查鉴权库
+ *
+ * 这里只决定 show 的时候能不能看到，不决定能不能查，所以到期或者回收的权限最多存活时间之后才从列表中消失
+ * 真正查询的时候字段鉴权照常进行
+ *
+ * 鉴权库只记录表，用户是owner但是一张表都还没有的库(比如新装集群的default库)从鉴权库中看不出来
+ * 所以这里还按库缓存元数据服务中库的owner，所有用户共用，不管有没有启用内存权限快照都用这一份
+ */
+public class VisibilityCache {
+
+    //整个进程只有一个实例，由第一个会话初始化
+    private static volatile VisibilityCache INSTANCE;
+
+    //用户 -> 能看到的库和表
+    private final Cache<String, UserVisibility> cache;
+    //库 -> 元数据服务中库的owner，没有owner时为空字符串
+    private final Cache<String, String> databaseOwners;
+
+    private VisibilityCache(long maxSize, long ttl) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+        this.databaseOwners = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * 获取进程级别的缓存实例，第一次调用时按传入的参数初始化，之后的参数不再生效
+     * @param maxSize 最多缓存多少个用户，库的owner也最多缓存这么多个库
+     * @param ttl 一个用户可见性的存活时间 毫秒
+     * @throws IllegalArgumentException maxSize 或 ttl 小于等于0
+     */
+    public static VisibilityCache getInstance(long maxSize, long ttl) {
+        if (maxSize <= 0 || ttl <= 0) {
+            throw new IllegalArgumentException("库表可见性缓存的大小和存活时间必须大于0");
+        }
+        if (INSTANCE == null) {
+            synchronized (VisibilityCache.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new VisibilityCache(maxSize, ttl);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * 获取用户能看到的库和表，缓存中没有时从鉴权库加载，同一个用户同时只有一个线程加载
+     * @param username 用户
+     * @param mysqlUtil 鉴权库连接池
+     * @param queryTimeout 查询超时秒数，0 表示不限制
+     * @throws SQLException 查询鉴权库异常
+     */
+    public UserVisibility get(String username, MysqlUtil mysqlUtil, int queryTimeout) throws SQLException {
+        try {
+            return cache.get(username, () -> load(username, mysqlUtil, queryTimeout));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    /**
+     * 获取元数据服务中库的owner，缓存中没有时通过元数据客户端获取
+     * @param metastoreClient 当前会话的元数据客户端
+     * @param dbName 库名
+     * @return 库的owner，没有owner时返回空字符串
+     * @throws TException 元数据服务获取库信息失败
+     */
+    public String getDatabaseOwner(IMetaStoreClient metastoreClient, String dbName) throws TException {
+        try {
+            return databaseOwners.get(dbName.toLowerCase(), () -> {
+                Database database = metastoreClient.getDatabase(dbName);
+                return database.getOwnerName() == null ? "" : database.getOwnerName();
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TException) {
+                throw (TException) e.getCause();
+            }
+            throw new TException(e.getCause());
+        }
+    }
+
+    /**
+     * 一个流式查询查回用户是owner的表和有未到期权限的表，union 去重
+     */
+    private static UserVisibility load(String username, MysqlUtil mysqlUtil, int queryTimeout) throws SQLException {
+        Map<String, Set<String>> tablesByDb = new HashMap<>();
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            long jdbcStart = System.nanoTime();
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select b.db_tb_name from db_tb_info b inner join user_info c on b.user_id=c.user_id where c.user_name=? " +
+                            "union " +
+                            "select b.db_tb_name from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id " +
+                            "inner join user_info c on a.user_id=c.user_id " +
+                            "where c.user_name=? and a.last_time>=NOW() and a.auth_flag>=1",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            preparedStatement.setQueryTimeout(queryTimeout);
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, username);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                String[] names = UserVisibility.split(resultSet.getString(1));
+                if (names != null) {
+                    tablesByDb.computeIfAbsent(names[0], k -> new HashSet<>()).add(names[1]);
+                }
+            }
+            resultSet.close();
+            preparedStatement.close();
+            AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.JDBC, jdbcStart);
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+        return new UserVisibility(tablesByDb);
+    }
+}
@@ -0,0 +1,15 @@
+package com.wy.exception;
+
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzPluginException;
+
+/**
+ * 鉴权插件明确拒绝操作时的异常
+ * 是 HiveAuthzPluginException 的子类，hive 看到的和原来一样，只是插件自己可以把 拒绝 和 鉴权过程出错 区分开
+ */
+public class AuthDeniedException extends HiveAuthzPluginException {
+    private static final long serialVersionUID = 1L;
+
+    public AuthDeniedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,688 @@
+package com.wy.meta;
+
+import com.wy.exception.HiveMetaStoreException;
+import com.wy.utils.MysqlUtil;
+import com.wy.utils.SqlInList;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.conf.HiveConf;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.Database;
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 元数据服务和鉴权库 db_tb_info 之间的全量对账工具，命令行运行
+ *
+ * 建表、删表、改表监听写鉴权库失败时，鉴权库就和元数据服务不一致了，原来只能手动写sql修
+ * 这里把两边的表都按 库.表 排好序，像归并排序一样同时往下走一遍：
+ *   只在元数据服务中有的表，补写表信息
+ *   只在鉴权库中有的表，回收权限、删除分区清单和表信息
+ *   两边都有但字段列表不一致的，回收已经不存在的字段的权限，更新字段列表
+ *
+ * 元数据服务一侧按库并行读取，多个库同时在读，但是按库名顺序交给归并，最多提前读 线程数*2 个库
+ * 鉴权库一侧用一个流式查询按表名的二进制顺序读出来，两边都不需要把所有表放在内存中
+ *   流式查询在整个对账期间一直开着，一个大库读得慢、归并停下来等的时候，mysql这一侧的发送会阻塞
+ *   超过 net_write_timeout (默认60秒) mysql就会中止这个查询，所以读取连接在查询前把这个会话的 net_write_timeout 调大，结束后恢复
+ *   这里没有改成 where db_tb_name > ? limit N 的分页读取，因为归并要求二进制顺序，按二进制排序用不上索引，每一页都要全表排序
+ *
+ * 对账期间DDL照常进行，所以归并发现的差异在写入前会再从元数据服务取一次这些表的最新状态，以最新状态为准
+ * 写入复用异步写入管道的批量语句，每一批在一个事务中提交，这些语句重复执行没有副作用
+ *
+ * 分区清单 db_tb_partition 同步失败时不影响分区操作本身，只记录日志，需要时用 --partitions 指定表单独对账
+ * 分区对账比较的是分区名，元数据服务中有而清单中没有的补写，清单中有而元数据服务中没有的删除，不扫描所有表的分区
+ *
+ * 使用方式：
+ *   hive --service jar hive-auth.jar com.wy.meta.AuthReconciler [--dry-run] [--threads 8] [--batch 1000]
+ *   hive --service jar hive-auth.jar com.wy.meta.AuthReconciler [--dry-run] --partitions 库.表[,库.表...]
+ * --dry-run 只输出差异报告，不写鉴权库
+ */
+public class AuthReconciler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthReconciler.class);
+
+    //鉴权库一侧的流式查询，按二进制顺序排序，和 java 字符串的比较顺序一致，不受表的字符集排序规则影响
+    private static final String SELECT_TABLES = "select a.db_tb_name,a.tb_fields from db_tb_info a order by cast(a.db_tb_name as binary)";
+    //一次从元数据服务取多少张表的详细信息
+    private static final int FETCH_CHUNK = 500;
+
+    private final Callable<IMetaStoreClient> clientFactory;
+    private final Configuration conf;
+    private final MysqlUtil mysqlUtil;
+    private final int threads;
+    private final int batchSize;
+    private final boolean dryRun;
+    private final PrintStream report;
+    //流式读取鉴权库时这个会话的 net_write_timeout 秒
+    private int netWriteTimeout = 3600;
+
+    //每个读取线程一个元数据服务客户端，客户端本身不是线程安全的
+    private final ThreadLocal<IMetaStoreClient> clients = new ThreadLocal<>();
+    private final ConcurrentLinkedQueue<IMetaStoreClient> openedClients = new ConcurrentLinkedQueue<>();
+    private Warehouse warehouse;
+
+    //归并发现的差异，攒够一批之后确认、写入
+    private final Map<String, AuthRow> pending = new LinkedHashMap<>();
+    private final Result result = new Result();
+
+    /**
+     * @param clientFactory 创建元数据服务客户端，每个读取线程调用一次
+     * @param conf 元数据服务的配置，没有路径的表(比如视图)按库路径计算默认路径时使用
+     * @param mysqlUtil 鉴权库连接池，至少要有两个连接，一个流式读取，一个写入
+     * @param threads 并行读取元数据服务的线程数
+     * @param batchSize 一个事务最多写入多少张表的修正
+     * @param dryRun 只输出报告不写入
+     * @param report 差异报告的输出位置，为null时输出到日志
+     */
+    public AuthReconciler(Callable<IMetaStoreClient> clientFactory, Configuration conf, MysqlUtil mysqlUtil,
+                          int threads, int batchSize, boolean dryRun, PrintStream report) {
+        this.clientFactory = clientFactory;
+        this.conf = conf;
+        this.mysqlUtil = mysqlUtil;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.dryRun = dryRun;
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean dryRun = false;
+        int threads = 8;
+        int netWriteTimeout = 3600;
+        int batchSize = 1000;
+        String partitionTables = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("--dry-run".equals(args[i])) {
+                dryRun = true;
+            } else if ("--partitions".equals(args[i]) && i + 1 < args.length) {
+                partitionTables = args[++i];
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = parseInt(args[++i], "--threads");
+            } else if ("--batch".equals(args[i]) && i + 1 < args.length) {
+                batchSize = parseInt(args[++i], "--batch");
+            } else if ("--net-write-timeout".equals(args[i]) && i + 1 < args.length) {
+                netWriteTimeout = parseInt(args[++i], "--net-write-timeout");
+            } else {
+                System.err.println("用法: AuthReconciler [--dry-run] [--threads 8] [--batch 1000] [--net-write-timeout 3600] | [--dry-run] --partitions 库.表[,库.表...]");
+                System.exit(2);
+            }
+        }
+
+        HiveConf conf = new HiveConf();
+        //一个连接流式读取鉴权库，一个连接写入
+        MysqlUtil mysqlUtil = createPool(conf, 2);
+        AuthReconciler reconciler = new AuthReconciler(() -> new HiveMetaStoreClient(conf), conf, mysqlUtil,
+                threads, batchSize, dryRun, System.out);
+        reconciler.netWriteTimeout = netWriteTimeout;
+        try {
+            Result result;
+            if (partitionTables != null) {
+                for (String dbTbName : partitionTables.split(",")) {
+                    if (!dbTbName.trim().isEmpty()) {
+                        reconciler.reconcilePartitions(dbTbName.trim().toLowerCase());
+                    }
+                }
+                result = reconciler.result;
+            } else {
+                result = reconciler.run();
+            }
+            System.out.println(result);
+        } finally {
+            mysqlUtil.close();
+        }
+    }
+
+    /**
+     * 执行一次全量对账
+     * @return 对账结果统计
+     */
+    public Result run() throws TException, SQLException, InterruptedException {
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "hive-auth-reconcile");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Connection readConnection = null;
+        Connection writeConnection = null;
+        try {
+            List<String> databases = new ArrayList<>(client().getAllDatabases());
+            //按 库名. 排序，这样按库依次输出的 库.表 整体也是有序的(库名中不会有点)
+            databases.sort((a, b) -> (a + ".").compareTo(b + "."));
+            LOGGER.info("开始对账 库:{} 读取线程:{} 批次:{} 只输出报告:{}", databases.size(), threads, batchSize, dryRun);
+
+            readConnection = mysqlUtil.getConnection();
+            setNetWriteTimeout(readConnection, String.valueOf(netWriteTimeout));
+            if (!dryRun) {
+                writeConnection = mysqlUtil.getConnection();
+            }
+            PreparedStatement preparedStatement = readConnection.prepareStatement(SELECT_TABLES,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            AuthCursor auth = new AuthCursor(resultSet);
+
+            //按库名顺序提交读取任务，最多提前读 线程数*2 个库，读好的库按顺序交给归并
+            Deque<Future<List<HmsTable>>> window = new ArrayDeque<>();
+            int next = 0;
+            while (next < databases.size() || !window.isEmpty()) {
+                while (next < databases.size() && window.size() < threads * 2) {
+                    String dbName = databases.get(next++);
+                    window.add(pool.submit(() -> readDatabase(dbName)));
+                }
+                List<HmsTable> tables = await(window.poll());
+                for (HmsTable table : tables) {
+                    //鉴权库中排在这张表前面的，元数据服务中都没有
+                    while (auth.current != null && auth.current.name.compareTo(table.name) < 0) {
+                        addPending(auth.current.name, auth.current, writeConnection);
+                        auth.next();
+                    }
+                    if (auth.current != null && auth.current.name.equals(table.name)) {
+                        if (table.fields.equals(auth.current.fields)) {
+                            result.unchanged++;
+                        } else {
+                            addPending(table.name, auth.current, writeConnection);
+                        }
+                        auth.next();
+                    } else {
+                        addPending(table.name, null, writeConnection);
+                    }
+                }
+                result.hmsTables += tables.size();
+            }
+            //元数据服务的表都比完了，鉴权库剩下的表元数据服务中都没有
+            while (auth.current != null) {
+                addPending(auth.current.name, auth.current, writeConnection);
+                auth.next();
+            }
+            result.authTables = auth.count;
+            resultSet.close();
+            preparedStatement.close();
+            flush(writeConnection);
+        } finally {
+            pool.shutdownNow();
+            if (readConnection != null) {
+                setNetWriteTimeout(readConnection, "default");
+            }
+            mysqlUtil.closeConnection(readConnection);
+            mysqlUtil.closeConnection(writeConnection);
+            closeClients();
+        }
+        result.millis = System.currentTimeMillis() - start;
+        LOGGER.info("对账完成 {}", result);
+        return result;
+    }
+
+    /**
+     * 设置读取连接这个会话的 net_write_timeout ，设置失败只影响很大的库，不中止对账
+     * @param value 秒数，或者 default 恢复成全局的值
+     */
+    private static void setNetWriteTimeout(Connection connection, String value) {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("set session net_write_timeout=" + value);
+        } catch (SQLException e) {
+            LOGGER.warn("鉴权库读取连接设置 net_write_timeout={} 失败 {}", value, e.getMessage());
+        }
+    }
+
+    /**
+     * 只对账指定的表，不扫描全量，元数据服务通知日志追赶时使用
+     * 先从鉴权库查出这些表的当前信息，再和全量对账一样从元数据服务确认最新状态之后写入
+     * @param names 库.表
+     */
+    void reconcile(Collection<String> names) throws TException, SQLException, InterruptedException {
+        if (names.isEmpty()) {
+            return;
+        }
+        List<String> list = new ArrayList<>(names);
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            Map<String, AuthRow> authRows = new HashMap<>();
+            for (int from = 0; from < list.size(); from += FETCH_CHUNK) {
+                List<String> chunk = list.subList(from, Math.min(from + FETCH_CHUNK, list.size()));
+                PreparedStatement preparedStatement = connection.prepareStatement(
+                        "select db_tb_name,tb_fields from db_tb_info where db_tb_name in (" + SqlInList.placeholders(chunk.size()) + ")");
+                SqlInList.bind(preparedStatement, 1, chunk);
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    AuthRow authRow = new AuthRow(resultSet.getString(1), resultSet.getString(2));
+                    authRows.put(authRow.name, authRow);
+                }
+                resultSet.close();
+                preparedStatement.close();
+            }
+            for (String name : list) {
+                //两边都没有的表在确认时直接跳过，这里照样放进去
+                addPending(name, authRows.get(name), dryRun ? null : connection);
+            }
+            flush(dryRun ? null : connection);
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 对账一张表的分区清单
+     * 分区名两边都只读名字，只有需要补写的分区才从元数据服务取分区的详细信息拿路径
+     * @param dbTbName 库.表
+     */
+    public void reconcilePartitions(String dbTbName) throws TException, SQLException {
+        int dot = dbTbName.indexOf('.');
+        if (dot <= 0) {
+            throw new IllegalArgumentException("表名格式应为 库.表 " + dbTbName);
+        }
+        String dbName = dbTbName.substring(0, dot);
+        String tblName = dbTbName.substring(dot + 1);
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            String tableId = PartitionInventory.tableId(connection, dbTbName);
+            if (tableId == null) {
+                report("! " + dbTbName + " 鉴权库中没有这张表，先做一次全量对账");
+                return;
+            }
+            Table table = client().getTable(dbName, tblName);
+            Set<String> hmsNames = new HashSet<>(client().listPartitionNames(dbName, tblName, (short) -1));
+
+            Set<String> authNames = new HashSet<>();
+            PreparedStatement preparedStatement = connection.prepareStatement("select part_name from db_tb_partition where db_tb_id=?");
+            preparedStatement.setString(1, tableId);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                authNames.add(resultSet.getString(1));
+            }
+            resultSet.close();
+            preparedStatement.close();
+
+            List<String> missing = new ArrayList<>();
+            for (String name : hmsNames) {
+                if (!authNames.contains(name)) {
+                    missing.add(name);
+                    report("P+ " + dbTbName + " " + name);
+                }
+            }
+            List<String> extra = new ArrayList<>();
+            for (String name : authNames) {
+                if (!hmsNames.contains(name)) {
+                    extra.add(name);
+                    report("P- " + dbTbName + " " + name);
+                }
+            }
+            result.partitionsInserted += missing.size();
+            result.partitionsDeleted += extra.size();
+            if (dryRun) {
+                return;
+            }
+
+            for (int from = 0; from < missing.size(); from += PartitionInventory.CHUNK_SIZE) {
+                List<String> chunk = missing.subList(from, Math.min(from + PartitionInventory.CHUNK_SIZE, missing.size()));
+                List<String> names = new ArrayList<>(chunk.size());
+                List<String> locations = new ArrayList<>(chunk.size());
+                //取详细信息时分区可能已经被删掉了，以取回来的为准
+                for (Partition partition : client().getPartitionsByNames(dbName, tblName, chunk)) {
+                    names.add(PartitionInventory.partName(table, partition));
+                    locations.add(PartitionInventory.partLocation(partition));
+                }
+                if (!names.isEmpty()) {
+                    PartitionInventory.insertChunk(connection, tableId, names, locations);
+                }
+            }
+            for (int from = 0; from < extra.size(); from += PartitionInventory.CHUNK_SIZE) {
+                PartitionInventory.deleteChunk(connection, tableId, extra.subList(from, Math.min(from + PartitionInventory.CHUNK_SIZE, extra.size())));
+            }
+            LOGGER.info("分区清单对账 {} 补写:{} 删除:{}", dbTbName, missing.size(), extra.size());
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 关闭所有元数据服务客户端
+     */
+    void closeClients() {
+        IMetaStoreClient client;
+        while ((client = openedClients.poll()) != null) {
+            client.close();
+        }
+        clients.remove();
+    }
+
+    /**
+     * 读取一个库的所有表，按表名排序
+     */
+    private List<HmsTable> readDatabase(String dbName) throws Exception {
+        IMetaStoreClient client = client();
+        List<String> names = new ArrayList<>(client.getAllTables(dbName));
+        Collections.sort(names);
+        Database database = null;
+        List<HmsTable> tables = new ArrayList<>(names.size());
+        for (int from = 0; from < names.size(); from += FETCH_CHUNK) {
+            List<String> chunk = names.subList(from, Math.min(from + FETCH_CHUNK, names.size()));
+            //按名字批量取回来的表没有顺序保证，取回来之后再按名字排一次
+            List<HmsTable> fetched = new ArrayList<>(chunk.size());
+            for (Table table : client.getTableObjectsByName(dbName, chunk)) {
+                if (database == null && (table.getSd() == null || table.getSd().getLocation() == null || table.getSd().getLocation().isEmpty())) {
+                    database = client.getDatabase(dbName);
+                }
+                fetched.add(toHmsTable(table, database));
+            }
+            fetched.sort((a, b) -> a.name.compareTo(b.name));
+            tables.addAll(fetched);
+        }
+        return tables;
+    }
+
+    /**
+     * 从元数据服务的表对象中取出对账用到的信息，字段列表和路径的处理方式和建表监听一致
+     */
+    private HmsTable toHmsTable(Table table, Database database) throws MetaException {
+        StringBuilder fields = new StringBuilder();
+        List<FieldSchema> cols = table.getSd() == null ? null : table.getSd().getCols();
+        for (List<FieldSchema> list : Arrays.asList(cols, table.getPartitionKeys())) {
+            if (list == null) {
+                continue;
+            }
+            for (FieldSchema field : list) {
+                if (fields.length() > 0) {
+                    fields.append(",");
+                }
+                fields.append(field.getName());
+            }
+        }
+        String location = table.getSd() == null ? null : table.getSd().getLocation();
+        if ((location == null || location.isEmpty()) && database != null) {
+            location = String.valueOf(warehouse().getDefaultTablePath(database, table.getTableName(), false));
+        }
+        return new HmsTable(table.getDbName() + "." + table.getTableName(), table.getOwner(), fields.toString(), location);
+    }
+
+    private void addPending(String name, AuthRow authRow, Connection writeConnection)
+            throws TException, SQLException, InterruptedException {
+        pending.put(name, authRow);
+        if (pending.size() >= batchSize) {
+            flush(writeConnection);
+        }
+    }
+
+    /**
+     * 从元数据服务确认这一批差异表的最新状态，然后在一个事务中写入修正
+     */
+    private void flush(Connection writeConnection) throws TException, SQLException, InterruptedException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        //按库分组，每个库一次请求取回这些表的最新信息
+        Map<String, List<String>> byDb = new LinkedHashMap<>();
+        for (String name : pending.keySet()) {
+            int dot = name.indexOf('.');
+            byDb.computeIfAbsent(name.substring(0, dot), k -> new ArrayList<>()).add(name.substring(dot + 1));
+        }
+        Map<String, HmsTable> current = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : byDb.entrySet()) {
+            try {
+                Database database = null;
+                for (Table table : client().getTableObjectsByName(entry.getKey(), entry.getValue())) {
+                    if (database == null && (table.getSd() == null || table.getSd().getLocation() == null || table.getSd().getLocation().isEmpty())) {
+                        database = client().getDatabase(entry.getKey());
+                    }
+                    HmsTable hmsTable = toHmsTable(table, database);
+                    current.put(hmsTable.name, hmsTable);
+                }
+            } catch (TException e) {
+                //库已经被删除了，这个库下的表都按不存在处理
+                if (!client().getAllDatabases().contains(entry.getKey())) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+
+        List<WriteAheadLog.Record> creates = new ArrayList<>();
+        List<WriteAheadLog.Record> drops = new ArrayList<>();
+        List<WriteAheadLog.Record> alters = new ArrayList<>();
+        for (Map.Entry<String, AuthRow> entry : pending.entrySet()) {
+            String name = entry.getKey();
+            AuthRow authRow = entry.getValue();
+            HmsTable hmsTable = current.get(name);
+            if (hmsTable == null) {
+                if (authRow != null) {
+                    report("- " + name);
+                    drops.add(new WriteAheadLog.Record(WriteAheadLog.Record.DROP_TABLE, name, ""));
+                    result.deleted++;
+                }
+            } else if (authRow == null) {
+                if (hmsTable.owner == null || hmsTable.owner.isEmpty()) {
+                    report("! " + name + " 没有owner，跳过");
+                    result.skipped++;
+                    continue;
+                }
+                report("+ " + name + " owner:" + hmsTable.owner + " 字段:" + hmsTable.fields);
+                creates.add(new WriteAheadLog.Record(WriteAheadLog.Record.CREATE_TABLE,
+                        hmsTable.owner, name, hmsTable.fields, hmsTable.location == null ? "" : hmsTable.location));
+                result.inserted++;
+            } else if (!hmsTable.fields.equals(authRow.fields)) {
+                //鉴权库字段列表中有、元数据服务中已经没有的字段，回收权限
+                Set<String> hmsFields = new HashSet<>(Arrays.asList(hmsTable.fields.split(",")));
+                List<String> args = new ArrayList<>();
+                args.add(name);
+                args.add(hmsTable.fields);
+                if (authRow.fields != null) {
+                    for (String field : authRow.fields.split(",")) {
+                        if (!field.isEmpty() && !hmsFields.contains(field)) {
+                            args.add(field);
+                        }
+                    }
+                }
+                report("~ " + name + " 字段:" + hmsTable.fields
+                        + (args.size() > 2 ? " 回收:" + String.join(",", args.subList(2, args.size())) : ""));
+                alters.add(new WriteAheadLog.Record(WriteAheadLog.Record.ALTER_TABLE, args.toArray(new String[0])));
+                result.fixed++;
+            } else {
+                //归并之后已经被监听修正了
+                result.unchanged++;
+            }
+        }
+        pending.clear();
+
+        if (dryRun || (creates.isEmpty() && drops.isEmpty() && alters.isEmpty())) {
+            return;
+        }
+        writeConnection.setAutoCommit(false);
+        try {
+            if (!drops.isEmpty()) {
+                AuthWriteBehind.writeDrops(writeConnection, drops);
+            }
+            if (!creates.isEmpty()) {
+                AuthWriteBehind.writeCreates(writeConnection, creates);
+            }
+            if (!alters.isEmpty()) {
+                AuthWriteBehind.writeAlters(writeConnection, alters);
+            }
+            writeConnection.commit();
+        } catch (SQLException e) {
+            try {
+                writeConnection.rollback();
+            } catch (SQLException ignored) {
+                //连接本身已经不可用，回滚失败也没有关系，事务不会被提交
+            }
+            throw e;
+        } finally {
+            writeConnection.setAutoCommit(true);
+        }
+        LOGGER.info("对账写入一批 补写:{} 删除:{} 修正字段:{}", creates.size(), drops.size(), alters.size());
+    }
+
+    private synchronized Warehouse warehouse() throws MetaException {
+        if (warehouse == null) {
+            warehouse = new Warehouse(conf);
+        }
+        return warehouse;
+    }
+
+    private void report(String line) {
+        if (report != null) {
+            report.println(line);
+        } else {
+            LOGGER.info(line);
+        }
+    }
+
+    IMetaStoreClient client() throws MetaException {
+        IMetaStoreClient client = clients.get();
+        if (client == null) {
+            try {
+                client = clientFactory.call();
+            } catch (Exception e) {
+                throw new MetaException("元数据服务客户端创建失败 " + e.getMessage());
+            }
+            clients.set(client);
+            openedClients.add(client);
+        }
+        return client;
+    }
+
+    private static List<HmsTable> await(Future<List<HmsTable>> future) throws TException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TException) {
+                throw (TException) e.getCause();
+            }
+            throw new MetaException("读取元数据服务的表出现异常 " + e.getCause());
+        }
+    }
+
+    /**
+     * 对账工具自己的连接池，参数和元数据监听一致，连接数按对账的需要设置
+     */
+    private static MysqlUtil createPool(Configuration config, int poolSize) {
+        BigInteger timeout_bi = new BigInteger(config.get("hive.auth.database.timeout"));
+        if ( timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0   ){
+            throw new HiveMetaStoreException("鉴权连接池连接超时时间超过预期Long值");
+        }
+        return new MysqlUtil(config.get("hive.auth.database.url"), config.get("hive.auth.database.driver"), timeout_bi.longValue(),
+                config.get("hive.auth.database.username"), config.get("hive.auth.database.password"),
+                poolSize, 0, 600000L, 1800000L);
+    }
+
+    private static int parseInt(String value, String name) {
+        BigInteger bi = new BigInteger(value);
+        if ( bi.compareTo(BigInteger.valueOf(1)) < 0 || bi.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0 ){
+            throw new HiveMetaStoreException(name + " 超过预期Int值");
+        }
+        return bi.intValue();
+    }
+
+    /**
+     * 鉴权库一侧的流式读取，同时检查顺序，顺序不对时归并的结果是错的，直接中止
+     */
+    private static class AuthCursor {
+        private final ResultSet resultSet;
+        private AuthRow current;
+        private long count;
+
+        private AuthCursor(ResultSet resultSet) throws SQLException {
+            this.resultSet = resultSet;
+            next();
+        }
+
+        private void next() throws SQLException {
+            AuthRow previous = current;
+            current = null;
+            if (resultSet.next()) {
+                current = new AuthRow(resultSet.getString(1), resultSet.getString(2));
+                count++;
+                if (previous != null && previous.name.compareTo(current.name) >= 0) {
+                    throw new SQLException("鉴权库返回的表名不是按二进制顺序排列的，无法对账: " + previous.name + " -> " + current.name);
+                }
+            }
+        }
+    }
+
+    private static class AuthRow {
+        private final String name;
+        private final String fields;
+
+        private AuthRow(String name, String fields) {
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+
+    private static class HmsTable {
+        private final String name;
+        private final String owner;
+        private final String fields;
+        private final String location;
+
+        private HmsTable(String name, String owner, String fields, String location) {
+            this.name = name;
+            this.owner = owner;
+            this.fields = fields;
+            this.location = location;
+        }
+    }
+
+    /**
+     * 对账结果统计
+     */
+    public static class Result {
+        //元数据服务中的表
+        public long hmsTables;
+        //鉴权库中的表
+        public long authTables;
+        //两边一致的表
+        public long unchanged;
+        //补写到鉴权库的表
+        public long inserted;
+        //从鉴权库删除的表
+        public long deleted;
+        //修正了字段列表的表
+        public long fixed;
+        //没有owner无法补写的表
+        public long skipped;
+        //分区对账补写、删除的分区
+        public long partitionsInserted;
+        public long partitionsDeleted;
+        public long millis;
+
+        @Override
+        public String toString() {
+            return "元数据服务表:" + hmsTables + " 鉴权库表:" + authTables + " 一致:" + unchanged
+                    + " 补写:" + inserted + " 删除:" + deleted + " 修正字段:" + fixed + " 跳过:" + skipped
+                    + " 补写分区:" + partitionsInserted + " 删除分区:" + partitionsDeleted + " 耗时:" + millis + "ms";
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.wy.meta;
+
+import com.wy.utils.MysqlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 元数据监听写鉴权库的异步写入管道
+ *
+ * 原来建表、删表、改表字段之后，都是在元数据服务的处理线程上同步调用鉴权库
+ * 鉴权库一慢，元数据服务上所有的DDL都跟着慢，批量建几千张表的迁移脚本基本就是在等鉴权库
+ *
+ * 现在处理线程只把要做的操作追加到本地的预写日志 WriteAheadLog 中就返回
+ * 后台的写入线程按日志顺序取出操作，攒成一批之后在一个事务中用JDBC批量执行，提交成功后再推进日志的检查点
+ * 元数据服务崩溃或者鉴权库不可用时，没有推进检查点的操作都还在日志里，重启或者恢复后按顺序重放
+ *
+ * 顺序上的保证：
+ *   一批操作中连续的同类操作(比如连续的建表)合在一起，按语句分组批量执行，不同类的操作之间严格按日志顺序
+ *   所以同一张表的 建表 -> 改表 -> 删表 永远按发生的顺序写入鉴权库
+ *   重放时有些操作可能已经写入过了，所以每种操作都写成了重复执行没有副作用的形式
+ *   这个顺序只在一个元数据服务进程内成立。部署多个元数据服务实例时，鉴权库不可用期间在实例A上建的表，如果随后在实例B上被删掉
+ *   B的删表先写入鉴权库，A恢复后重放的建表又会把表信息写回去。所以开启异步写入时必须同时开启 NotificationCatchUp 的事件补偿
+ *   或者定期运行 AuthReconciler 对账，把这类表信息清理掉
+ *
+ * 鉴权库可用但仍然写入失败的操作，先写入预写日志目录下的死信文件 dead-letter.log 再跳过，不会直接丢弃
+ * 死信文件写入失败时不跳过，按鉴权库不可用的方式退避重试
+ *
+ * 这里没有用 InsertTableInfo 和 DeleteTableAndAuth 两个存储过程，因为它们内部自己开启和提交事务，而且会返回结果集，不能放进批量执行里
+ * 用的是和它们效果一致的普通语句
+ */
+public class AuthWriteBehind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AuthWriteBehind.class);
+
+    //建表：用户存在并且表不存在时写入表信息，返回0说明用户不存在或者表已经写入过
+    private static final String INSERT_TABLE = "insert into db_tb_info (db_tb_id, user_id, db_tb_name, tb_fields, tb_location) " +
+            "select UUID(), user_id, ?, ?, ? from user_info where user_name=? " +
+            "and not exists (select 1 from db_tb_info where db_tb_name=?)";
+    //建表时用户不存在，和 InsertTableInfo 一样补一条用户数据
+    private static final String INSERT_USER = "insert into user_info (user_id, user_name) " +
+            "select UUID(), ? from dual where not exists (select 1 from user_info where user_name=?)";
+    //删表：先回收表的所有权限，再删除表信息
+    private static final String DELETE_TABLE_AUTH = "delete a from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id where b.db_tb_name=?";
+    private static final String DELETE_TABLE_PARTITIONS = "delete a from db_tb_partition a inner join db_tb_info b on a.db_tb_id=b.db_tb_id where b.db_tb_name=?";
+    private static final String DELETE_TABLE = "delete from db_tb_info where db_tb_name=?";
+    //改表：回收被删除字段的权限，更新字段列表
+    private static final String DELETE_FIELD_AUTH = "delete a from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id where b.db_tb_name=? and a.field=?";
+    private static final String UPDATE_FIELDS = "update db_tb_info set tb_fields = ? where db_tb_name=? ";
+
+    //鉴权库不可用时的重试间隔上限 30秒
+    private static final long MAX_BACKOFF = 30000L;
+
+    private final WriteAheadLog wal;
+    private final MysqlUtil mysqlUtil;
+    private final int batchSize;
+    //已经写入日志、等待写入鉴权库的操作，和日志中的顺序完全一致
+    private final BlockingQueue<WriteAheadLog.Entry> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * 恢复日志中没有写入鉴权库的操作并启动后台写入线程
+     * @param wal 本地预写日志
+     * @param mysqlUtil 鉴权库连接池
+     * @param batchSize 一个事务最多写入多少个操作
+     * @throws IOException 日志恢复失败
+     */
+    public AuthWriteBehind(WriteAheadLog wal, MysqlUtil mysqlUtil, int batchSize) throws IOException {
+        this.wal = wal;
+        this.mysqlUtil = mysqlUtil;
+        this.batchSize = batchSize;
+        List<WriteAheadLog.Entry> recovered = wal.recover();
+        //上次没有写入鉴权库的建表、删表，路径前缀树从鉴权库加载时读不到，需要在这里补上
+        for (WriteAheadLog.Entry entry : recovered) {
+            WriteAheadLog.Record record = entry.getRecord();
+            if (record.getType() == WriteAheadLog.Record.CREATE_TABLE) {
+                TableLocationTrie.getInstance().add(record.arg(3), record.arg(1));
+            } else if (record.getType() == WriteAheadLog.Record.DROP_TABLE) {
+                TableLocationTrie.getInstance().remove(record.arg(1), record.arg(0));
+            }
+        }
+        this.queue.addAll(recovered);
+
+        Thread writer = new Thread(this::run, "hive-auth-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 追加一个操作，写入本地日志后马上返回，不等待写入鉴权库
+     * @throws IOException 本地日志写入失败
+     */
+    public void append(WriteAheadLog.Record record) throws IOException {
+        //日志追加和入队要在同一个锁里，保证队列里的顺序和日志中的顺序一致
+        synchronized (queue) {
+            queue.add(wal.append(record));
+        }
+    }
+
+    /**
+     * 后台写入线程，攒批、写入、推进检查点，鉴权库不可用时退避重试
+     */
+    private void run() {
+        List<WriteAheadLog.Entry> batch = new ArrayList<>(batchSize);
+        long backoff = 1000L;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                }
+                long start = System.currentTimeMillis();
+                int[] counts = writeBatch(batch);
+                wal.checkpoint(batch.get(batch.size() - 1));
+                LOGGER.info("鉴权库异步写入完成 建表:{} 删表:{} 改表:{} 分区批次:{} 耗时:{}ms 待写入:{}",
+                        counts[WriteAheadLog.Record.CREATE_TABLE], counts[WriteAheadLog.Record.DROP_TABLE],
+                        counts[WriteAheadLog.Record.ALTER_TABLE],
+                        counts[WriteAheadLog.Record.ADD_PARTITIONS] + counts[WriteAheadLog.Record.DROP_PARTITIONS],
+                        System.currentTimeMillis() - start, queue.size());
+                batch.clear();
+                backoff = 1000L;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                //鉴权库可用说明是这一批中的某个操作本身有问题，逐个写入，跳过有问题的操作
+                if (batch.size() > 1 && isDatabaseAvailable()) {
+                    LOGGER.warn("鉴权库批量写入失败，改为逐个写入 " + e.getMessage());
+                    writeOneByOne(batch);
+                    continue;
+                }
+                if (batch.size() == 1 && isDatabaseAvailable()) {
+                    if (skip(batch, e)) {
+                        continue;
+                    }
+                } else {
+                    LOGGER.warn("鉴权库不可用，{}ms 后重试，待写入操作个数:{} {}", backoff, batch.size() + queue.size(), e.getMessage());
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    /**
+     * 逐个写入，写入成功或者被跳过的操作从批次中移除，鉴权库中途又不可用时保留剩下的操作等待重试
+     */
+    private void writeOneByOne(List<WriteAheadLog.Entry> batch) {
+        while (!batch.isEmpty()) {
+            List<WriteAheadLog.Entry> single = new ArrayList<>(batch.subList(0, 1));
+            try {
+                writeBatch(single);
+                wal.checkpoint(single.get(0));
+            } catch (Exception e) {
+                if (!isDatabaseAvailable() || !skip(single, e)) {
+                    return;
+                }
+            }
+            batch.remove(0);
+        }
+    }
+
+    /**
+     * 跳过一个在鉴权库可用的情况下仍然写入失败的操作，写入死信文件由管理员手动处理
+     * @return 是否跳过，死信文件写入失败时不跳过，留在批次中等待重试
+     */
+    private boolean skip(List<WriteAheadLog.Entry> single, Exception e) {
+        try {
+            wal.deadLetter(single.get(0), e.getMessage());
+        } catch (IOException ioe) {
+            LOGGER.error("鉴权库写入失败，死信文件也写入失败，稍后重试 {} {} {}", single.get(0).getRecord(), e.getMessage(), ioe.getMessage());
+            return false;
+        }
+        LOGGER.error("鉴权库写入失败，已写入死信文件并跳过该操作，需要手动处理 {} {}", single.get(0).getRecord(), e.getMessage());
+        try {
+            wal.checkpoint(single.get(0));
+        } catch (IOException ioe) {
+            LOGGER.error("鉴权库预写日志检查点更新失败 " + ioe.getMessage());
+        }
+        single.clear();
+        return true;
+    }
+
+    private boolean isDatabaseAvailable() {
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            return connection.isValid(5);
+        } catch (SQLException e) {
+            return false;
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 在一个事务中写入一批操作
+     * @return 按操作类型统计的个数，下标是操作类型
+     */
+    private int[] writeBatch(List<WriteAheadLog.Entry> batch) throws SQLException {
+        int[] counts = new int[6];
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            connection.setAutoCommit(false);
+            int from = 0;
+            while (from < batch.size()) {
+                //连续的同类操作合成一组
+                byte type = batch.get(from).getRecord().getType();
+                int to = from + 1;
+                while (to < batch.size() && batch.get(to).getRecord().getType() == type) {
+                    to++;
+                }
+                List<WriteAheadLog.Record> run = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    run.add(batch.get(i).getRecord());
+                }
+                switch (type) {
+                    case WriteAheadLog.Record.CREATE_TABLE:
+                        writeCreates(connection, run);
+                        break;
+                    case WriteAheadLog.Record.DROP_TABLE:
+                        writeDrops(connection, run);
+                        break;
+                    case WriteAheadLog.Record.ALTER_TABLE:
+                        writeAlters(connection, run);
+                        break;
+                    case WriteAheadLog.Record.ADD_PARTITIONS:
+                    case WriteAheadLog.Record.DROP_PARTITIONS:
+                        writePartitions(connection, run);
+                        break;
+                    default:
+                        LOGGER.error("未知的鉴权库写入操作，忽略 {}", run);
+                        break;
+                }
+                counts[type >= 0 && type < counts.length ? type : 0] += run.size();
+                from = to;
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            if (connection != null) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                    //连接本身已经不可用，回滚失败也没有关系，事务不会被提交
+                }
+            }
+            throw e;
+        } finally {
+            if (connection != null) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                    //连接归还连接池时会被重置
+                }
+            }
+            mysqlUtil.closeConnection(connection);
+        }
+        return counts;
+    }
+
+    /**
+     * 建表：owner、库.表、字段列表、表路径
+     */
+    static void writeCreates(Connection connection, List<WriteAheadLog.Record> run) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(INSERT_TABLE);
+        for (WriteAheadLog.Record record : run) {
+            setInsertTable(preparedStatement, record);
+            preparedStatement.addBatch();
+        }
+        int[] results = preparedStatement.executeBatch();
+
+        //写入0行的，要么是用户不存在，要么是重放时表已经写入过了
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != 0) {
+                continue;
+            }
+            WriteAheadLog.Record record = run.get(i);
+            PreparedStatement insertUser = connection.prepareStatement(INSERT_USER);
+            insertUser.setString(1, record.arg(0));
+            insertUser.setString(2, record.arg(0));
+            if (insertUser.executeUpdate() > 0) {
+                setInsertTable(preparedStatement, record);
+                preparedStatement.executeUpdate();
+                LOGGER.warn("鉴权库缺失用户数据，已经自动添加，不影响表的创建，但请联系管理员告知这种意外 - 录入表: {} - 补充的owner: {}", record.arg(1), record.arg(0));
+            }
+            insertUser.close();
+        }
+        preparedStatement.close();
+    }
+
+    private static void setInsertTable(PreparedStatement preparedStatement, WriteAheadLog.Record record) throws SQLException {
+        preparedStatement.setString(1, record.arg(1));
+        preparedStatement.setString(2, record.arg(2));
+        preparedStatement.setString(3, record.arg(3));
+        preparedStatement.setString(4, record.arg(0));
+        preparedStatement.setString(5, record.arg(1));
+    }
+
+    /**
+     * 删表：库.表、表路径
+     */
+    static void writeDrops(Connection connection, List<WriteAheadLog.Record> run) throws SQLException {
+        for (String sql : new String[]{DELETE_TABLE_AUTH, DELETE_TABLE_PARTITIONS, DELETE_TABLE}) {
+            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+            for (WriteAheadLog.Record record : run) {
+                preparedStatement.setString(1, record.arg(0));
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+            preparedStatement.close();
+        }
+    }
+
+    /**
+     * 改表：库.表、新的字段列表、被删除的字段...
+     */
+    static void writeAlters(Connection connection, List<WriteAheadLog.Record> run) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(DELETE_FIELD_AUTH);
+        boolean hasDeleted = false;
+        for (WriteAheadLog.Record record : run) {
+            for (int i = 2; i < record.argCount(); i++) {
+                preparedStatement.setString(1, record.arg(0));
+                preparedStatement.setString(2, record.arg(i));
+                preparedStatement.addBatch();
+                hasDeleted = true;
+            }
+        }
+        if (hasDeleted) {
+            preparedStatement.executeBatch();
+        }
+        preparedStatement.close();
+
+        preparedStatement = connection.prepareStatement(UPDATE_FIELDS);
+        for (WriteAheadLog.Record record : run) {
+            preparedStatement.setString(1, record.arg(1));
+            preparedStatement.setString(2, record.arg(0));
+            preparedStatement.addBatch();
+        }
+        preparedStatement.executeBatch();
+        preparedStatement.close();
+    }
+
+    /**
+     * 新增、删除分区，每条记录本身就是一批分区，一条记录一条语句
+     */
+    private void writePartitions(Connection connection, List<WriteAheadLog.Record> run) throws SQLException {
+        //同一个表的分区记录一般是连续的，表id只查一次
+        String lastTable = null;
+        String tableId = null;
+        for (WriteAheadLog.Record record : run) {
+            if (!record.arg(0).equals(lastTable)) {
+                lastTable = record.arg(0);
+                tableId = PartitionInventory.tableId(connection, lastTable);
+            }
+            if (tableId == null) {
+                continue;
+            }
+            if (record.getType() == WriteAheadLog.Record.ADD_PARTITIONS) {
+                List<String> names = new ArrayList<>();
+                List<String> locations = new ArrayList<>();
+                for (int i = 1; i + 1 < record.argCount(); i += 2) {
+                    names.add(record.arg(i));
+                    locations.add(record.arg(i + 1));
+                }
+                PartitionInventory.insertChunk(connection, tableId, names, locations);
+            } else {
+                List<String> names = new ArrayList<>();
+                for (int i = 1; i < record.argCount(); i++) {
+                    names.add(record.arg(i));
+                }
+                PartitionInventory.deleteChunk(connection, tableId, names);
+            }
+        }
+    }
+}
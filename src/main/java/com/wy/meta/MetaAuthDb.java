@@ -0,0 +1,77 @@
+package com.wy.meta;
+
+import com.wy.exception.HiveMetaStoreException;
+import com.wy.utils.AuthDbConfig;
+import com.wy.utils.AuthDbRegistry;
+import com.wy.utils.MetaListenerConfig;
+import com.wy.utils.MysqlUtil;
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 元数据服务进程内共用的鉴权库连接池
+ *
+ * MyMetaStoreEventListener 和 MyMetaStorePreEventListener 原来各自解析一遍 hive.auth.database.* 的参数，各自建一个连接池
+ * 一个元数据服务就有两个同样大小的连接池连着同一个鉴权库，元数据服务一般又部署好几个实例
+ * 现在配置只在第一个监听初始化时校验一次，两个监听和以后元数据服务一侧的其他组件都从这里拿同一个连接池
+ * 异步写入、通知日志追赶这些监听的参数也在这时一起校验，由 MetaListenerConfig 持有
+ * 连接池大小用 hive.auth.database.meta.listener.hikari.pool.maxsize ，按元数据服务的处理线程数设置即可
+ *
+ * 连接池由 AuthDbRegistry 创建和管理，和hiveserver2一侧是同一套机制，元数据服务一侧的连接池固定保留，不参与淘汰
+ * mysql驱动的预编译语句缓存是按连接的，共用一个连接池之后两个监听的语句也都在同一批连接上缓存
+ */
+public class MetaAuthDb {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetaAuthDb.class);
+
+    //整个进程只有一个实例，由第一个监听初始化
+    private static volatile MetaAuthDb INSTANCE;
+
+    private final MetaListenerConfig config;
+    //连接池随进程关闭
+    private final AuthDbRegistry.Handle handle;
+
+    private MetaAuthDb(MetaListenerConfig config) {
+        this.config = config;
+        //元数据服务一侧不用鉴权任务线程池，线程池的线程是提交任务时才创建的，这里不会有多余的线程
+        this.handle = AuthDbRegistry.acquirePinned(config.getAuthDbConfig(), 1, "MetaStorePool");
+    }
+
+    /**
+     * 获取进程级别的实例，第一次调用时按传入的配置校验并创建连接池，之后的配置不再生效
+     * @param conf 元数据服务的配置
+     * @throws HiveMetaStoreException 配置的参数超出预期范围
+     */
+    public static MetaAuthDb getInstance(Configuration conf) throws HiveMetaStoreException {
+        if (INSTANCE == null) {
+            synchronized (MetaAuthDb.class) {
+                if (INSTANCE == null) {
+                    MetaListenerConfig config;
+                    try {
+                        config = MetaListenerConfig.fromConf(conf);
+                    } catch (IllegalArgumentException e) {
+                        throw new HiveMetaStoreException(e.getMessage(), e);
+                    }
+                    INSTANCE = new MetaAuthDb(config);
+                    LOGGER.info("元数据服务共用的鉴权库连接池初始化完成 {}", config.getAuthDbConfig());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    public MysqlUtil getMysqlUtil() {
+        return handle.getMysqlUtil();
+    }
+
+    public AuthDbConfig getConfig() {
+        return config.getAuthDbConfig();
+    }
+
+    /**
+     * @return 第一个监听初始化时校验过的监听参数
+     */
+    public MetaListenerConfig getListenerConfig() {
+        return config;
+    }
+}
@@ -1,10 +1,14 @@
 package com.wy.meta;
 
 import com.wy.exception.HiveMetaStoreException;
+import com.wy.metrics.AuthMetrics;
 import com.wy.utils.FieldDiff;
+import com.wy.utils.MetaListenerConfig;
 import com.wy.utils.MysqlUtil;
+import com.wy.utils.SqlInList;
 import com.wy.utils.UserUtil;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.HiveMetaStoreClient;
 import org.apache.hadoop.hive.metastore.MetaStoreEventListener;
 import org.apache.hadoop.hive.metastore.api.*;
 import org.apache.hadoop.hive.metastore.events.*;
@@ -13,8 +17,10 @@ import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigInteger;
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Stream;
@@ -34,69 +40,43 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(MyMetaStoreEventListener.class);
 
     private MysqlUtil mysqlUtil;
+    //事件处理耗时、同步出错次数、连接池状态的指标，整个元数据服务进程共用一个
+    private final AuthMetrics metrics = AuthMetrics.getInstance();
+    //异步写入鉴权库的管道，为null时说明没有开启，在元数据服务的处理线程上同步写入
+    private AuthWriteBehind writeBehind;
     //新增表信息用的sql
     String insertTbInfo = "{call InsertTableInfo(?,?,?,?)}";
     //删除表信息用的sql
     String dropTbInfo = "{call DeleteTableAndAuth(?)}";
     //更新表用的sql
     String updateTbInfo = "update db_tb_info set tb_fields = ? where db_tb_name=? ";
+    //回收删除字段权限时一条语句最多带的字段个数，补齐到2的幂次之后也不会超过mysql的占位符个数限制
+    private static final int MAX_IN_LIST = 16384;
 
     public MyMetaStoreEventListener(Configuration config) throws HiveMetaStoreException {
         super(config);
 
-        //初始化来连接池和线程池的配置参数
-        String url;
-        String driver;
-        Long timeout;
-        String username;
-        String password;
-        int hp_maxsize;
-        int hp_minidle;
-        long hp_id_timeout;
-        long hp_lefttime;
-
-        //初始化鉴权库的连接池
-        url = config.get("hive.auth.database.url");
-        driver = config.get("hive.auth.database.driver");
-        username = config.get("hive.auth.database.username");
-        password = config.get("hive.auth.database.password");
-
-        //数据库连接超时时间
-        BigInteger timeout_bi = new BigInteger(config.get("hive.auth.database.timeout"));
-        if ( timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0   ){
-            throw new HiveMetaStoreException("鉴权连接池连接超时时间超过预期Long值");
-        }
-        timeout = timeout_bi.longValue();
-
-        //数据库连接池大小校验
-        BigInteger hp_maxsize_bi = new BigInteger(config.get("hive.auth.database.meta.listener.hikari.pool.maxsize"));
-        if ( hp_maxsize_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_maxsize_bi.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0 ){
-            throw new HiveMetaStoreException("鉴权连接池大小超过预期Int值");
-        }
-        hp_maxsize = hp_maxsize_bi.intValue();
+        //鉴权库连接池和监听的参数整个元数据服务进程共用一份，只在第一个监听初始化时校验
+        MetaAuthDb metaAuthDb = MetaAuthDb.getInstance(config);
+        MetaListenerConfig listenerConfig = metaAuthDb.getListenerConfig();
+        mysqlUtil = metaAuthDb.getMysqlUtil();
 
-        //数据库连接池空闲连接大小校验
-        BigInteger hp_minidle_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.minidle"));
-        if ( hp_minidle_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_minidle_bi.compareTo(BigInteger.valueOf( hp_maxsize_bi.intValue() / 2 )) > 0   ){
-            throw new HiveMetaStoreException("鉴权连接池空闲连接大小超过预期Int值");
-        }
-        hp_minidle = hp_minidle_bi.intValue();
-
-        //数据库连接池空闲超时校验
-        BigInteger hp_id_timeout_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.idle.timeout"));
-        if ( hp_id_timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_id_timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0  ){
-            throw new HiveMetaStoreException("鉴权连接池空闲超时时间超过预期Long值");
+        //是否开启异步写入鉴权库，默认关闭
+        if (listenerConfig.isAsyncEnabled()) {
+            try {
+                WriteAheadLog wal = new WriteAheadLog(new File(listenerConfig.getWalDir()), listenerConfig.isWalSync());
+                writeBehind = new AuthWriteBehind(wal, mysqlUtil, listenerConfig.getAsyncBatch());
+            } catch (IOException e) {
+                throw new HiveMetaStoreException("鉴权库预写日志初始化失败 " + e.getMessage(), e);
+            }
         }
-        hp_id_timeout = hp_id_timeout_bi.longValue();
 
-        //数据库连接池连接最大存活时间校验
-        BigInteger hp_lefttime_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.max.lifetime"));
-        if (  hp_lefttime_bi.compareTo(hp_id_timeout_bi) < 0 || hp_lefttime_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0 ) {
-            throw new HiveMetaStoreException("鉴权连接池连接存在时间超过预期Long值");
+        //是否按元数据服务的通知日志追赶鉴权库，默认关闭
+        if (listenerConfig.isCatchUpEnabled()) {
+            AuthReconciler reconciler = new AuthReconciler(() -> new HiveMetaStoreClient(config), config, mysqlUtil,
+                    1, listenerConfig.getCatchUpBatch(), false, null);
+            new NotificationCatchUp(reconciler, mysqlUtil, listenerConfig.getCatchUpInterval(), listenerConfig.getCatchUpBatch()).start();
         }
-        hp_lefttime = hp_lefttime_bi.longValue();
-
-        mysqlUtil = new MysqlUtil(url,driver,timeout,username,password,hp_maxsize,hp_minidle,hp_id_timeout,hp_lefttime);
 
         System.out.println("Hive MetaStore Plugin Initialized! 元数据监控组件接入! ");
     }
@@ -109,6 +89,10 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
      */
     @Override
     public void onCreateTable(CreateTableEvent tableEvent) throws MetaException {
+        metrics.timeEvent("CREATE_TABLE", () -> syncCreateTable(tableEvent));
+    }
+
+    private void syncCreateTable(CreateTableEvent tableEvent) throws MetaException {
         //如果本次事件不成功，就什么都不干
         if (!tableEvent.getStatus()){
             return;
@@ -147,20 +131,32 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
         LOGGER.info("|当前执行用户是       ： " + userName);
         LOGGER.info("---------------------");
 
+        //处理表字段列表
+        Stream<String> cols = table.getSd().getCols().stream().map(col -> col.getName());
+        Stream<String> pars = table.getPartitionKeys().stream().map(par -> par.getName());
+        StringBuilder tmp = new StringBuilder();
+        cols.forEach(col -> {tmp.append(col).append(",");});
+        pars.forEach(par -> {tmp.append(par).append(",");});
+        tmp.deleteCharAt(tmp.length()-1);
+
+        //开启了异步写入时，只写本地预写日志，由后台线程写入鉴权库
+        if (writeBehind != null) {
+            try {
+                writeBehind.append(new WriteAheadLog.Record(WriteAheadLog.Record.CREATE_TABLE, owner, dbName+"."+tableName, tmp.toString(), location));
+            } catch (IOException e) {
+                throw new MetaException("写入鉴权库预写日志出现异常 - "+e.getMessage());
+            }
+            TableLocationTrie.getInstance().add(location, dbName+"."+tableName);
+            return;
+        }
+
         //下面就是按需将表信息按需写入鉴权库中
         Connection connection=null;
         try {
-            connection = mysqlUtil.getConnection(false);
+            connection = mysqlUtil.getConnection();
             CallableStatement callableStatement = connection.prepareCall(insertTbInfo);
             callableStatement.setString(1,owner);
             callableStatement.setString(2,dbName+"."+tableName);
-            //处理表字段列表
-            Stream<String> cols = table.getSd().getCols().stream().map(col -> col.getName());
-            Stream<String> pars = table.getPartitionKeys().stream().map(par -> par.getName());
-            StringBuilder tmp = new StringBuilder();
-            cols.forEach(col -> {tmp.append(col).append(",");});
-            pars.forEach(par -> {tmp.append(par).append(",");});
-            tmp.deleteCharAt(tmp.length()-1);
             callableStatement.setString(3,tmp.toString());
             //表路径
             callableStatement.setString(4,location);
@@ -171,6 +167,8 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
             } else {
                 LOGGER.info("表信息录入成功 表:{} owner:{} 字段:{}",dbName+"."+tableName,owner,tmp.toString());
             }
+            //同步维护建表检查路径冲突用的前缀树
+            TableLocationTrie.getInstance().add(location, dbName+"."+tableName);
         } catch (SQLException e) {
             throw new MetaException("录入表信息出现异常 - "+e.getMessage());
         } finally {
@@ -180,6 +178,10 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
 
     @Override
     public void onDropTable(DropTableEvent tableEvent) throws MetaException {
+        metrics.timeEvent("DROP_TABLE", () -> syncDropTable(tableEvent));
+    }
+
+    private void syncDropTable(DropTableEvent tableEvent) throws MetaException {
         //如果本次事件不成功，就什么都不干
         if (!tableEvent.getStatus()){
             return;
@@ -206,10 +208,21 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
         LOGGER.info("|当前执行用户是       ： " + userName);
         LOGGER.info("---------------------");
 
+        //开启了异步写入时，只写本地预写日志，由后台线程写入鉴权库
+        if (writeBehind != null) {
+            try {
+                writeBehind.append(new WriteAheadLog.Record(WriteAheadLog.Record.DROP_TABLE, dbName+"."+tableName, location));
+            } catch (IOException e) {
+                throw new MetaException("写入鉴权库预写日志出现异常 - "+e.getMessage());
+            }
+            TableLocationTrie.getInstance().remove(location, dbName+"."+tableName);
+            return;
+        }
+
         //将外部权限库中的表、字段全系数据删除
         Connection connection=null;
         try {
-            connection = mysqlUtil.getConnection(false);
+            connection = mysqlUtil.getConnection();
             CallableStatement callableStatement = connection.prepareCall(dropTbInfo);
             callableStatement.setString(1,dbName+"."+tableName);
             ResultSet resultSet = callableStatement.executeQuery();
@@ -217,6 +230,7 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
             resultSet.next();
             if (metaData.getColumnCount() == 3){
                 LOGGER.info("权限回收 {} {} {}",resultSet.getString("table_name"),resultSet.getString("auth_records_deleted"),resultSet.getString("info_records_deleted"));
+                TableLocationTrie.getInstance().remove(location, dbName+"."+tableName);
             } else if (metaData.getColumnCount() == 2) {
                 LOGGER.info("{} 表:{}",resultSet.getString("message"),resultSet.getString("table_name"));
             }
@@ -229,6 +243,10 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
 
     @Override
     public void onAlterTable(AlterTableEvent tableEvent) throws MetaException {
+        metrics.timeEvent("ALTER_TABLE", () -> syncAlterTable(tableEvent));
+    }
+
+    private void syncAlterTable(AlterTableEvent tableEvent) throws MetaException {
         //如果本次事件不成功，就什么都不干
         if (!tableEvent.getStatus()){
             return;
@@ -242,6 +260,11 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
         if ("MATERIALIZED_VIEW".equals(tableType) || "VIRTUAL_VIEW".equals(tableType))
             return;
 
+        //analyze、写入任务更新表属性这类改表事件字段结构没有变化，不需要比较字段，也不需要访问鉴权库
+        if (FieldDiff.sameSchema(oldtable, newTable)) {
+            return;
+        }
+
         //获取用户身份
         String userName = UserUtil.getUserName();
 
@@ -308,98 +331,229 @@ public class MyMetaStoreEventListener extends MetaStoreEventListener {
             LOGGER.info("新增字段 {}",addedFields);
         }
 
+        //只改了类型的字段，字段名列表不变，字段权限也不需要回收，这里只记录一下
+        if (!fieldDiff.modifiedFields.isEmpty()) {
+            LOGGER.info("修改类型的字段 {}",fieldDiff.modifiedFields);
+        }
+
         List<FieldSchema> deletedFields = fieldDiff.deletedFields;
+
+        //开启了异步写入时，字段权限回收和字段列表更新作为一个操作写本地预写日志，由后台线程写入鉴权库
+        if (writeBehind != null) {
+            if (!changed && (deletedFields == null || deletedFields.isEmpty())) {
+                return;
+            }
+            List<String> args = new ArrayList<>();
+            args.add(newTable.getDbName()+"."+newTable.getTableName());
+            args.add(fieldDiff.fieldNames);
+            if (deletedFields != null) {
+                LOGGER.info("删除字段 {}",deletedFields);
+                deletedFields.forEach(field -> args.add(field.getName()));
+            }
+            try {
+                writeBehind.append(new WriteAheadLog.Record(WriteAheadLog.Record.ALTER_TABLE, args.toArray(new String[0])));
+            } catch (IOException e) {
+                throw new MetaException("写入鉴权库预写日志出现异常 - "+e.getMessage());
+            }
+            return;
+        }
+
         // 对于判定为删除的字段，要做什么操作 通常是回收已经失效的权限数据
         if (deletedFields != null && !deletedFields.isEmpty() && deletedFields.size()!=0) {
             changed = true;
             LOGGER.info("删除字段 {}",deletedFields);
-            Connection connection = null;
-            try {
-                connection = mysqlUtil.getConnection(false);
-                StringBuilder sql = new StringBuilder();
-                //这个语句中 in 部分用占位符会出问题，所以反正要拼接就没有提升sql主体的作用域
-                sql.append("delete from db_tb_auth where db_tb_id in ")
-                        .append("(select db_tb_id from db_tb_info where db_tb_name='")
-                        .append(oldtable.getDbName()).append(".").append(oldtable.getTableName())
-                        .append("') and field in (");
-                //遍历需要删除的字段
-                for (int i = 0; i < deletedFields.size(); i++) {
-                    sql.append("'").append(deletedFields.get(i).getName()).append("',");
-                }
-                sql.delete(sql.length()-1,sql.length());
-                sql.append(")");
+        }
+
+        // 如果上面发生了字段的删除或者新增则要更新鉴权库中的表字段
+        // 后期改造要注意是否要考虑fieldDiff中旧字段发生改变的逻辑
+        if (changed) {
+            List<String> deletedNames = new ArrayList<>(deletedFields == null ? 0 : deletedFields.size());
+            if (deletedFields != null) {
+                deletedFields.forEach(field -> deletedNames.add(field.getName()));
+            }
+            syncFields(newTable.getDbName()+"."+newTable.getTableName(), fieldDiff.fieldNames, deletedNames);
+        }
 
-                int delete_auth = connection.prepareStatement(sql.toString()).executeUpdate();
+        //等等。。其他的情况
+    }
 
+    /**
+     * 回收删除字段的权限、更新表的字段列表，用同一个连接在一个事务中完成
+     * 两步分开提交的话，中间出现异常会留下字段列表已经没有这个字段、权限却还在(或者反过来)的不一致状态
+     * 删除的字段再多也只是一条 in 语句，加上更新字段列表和提交，一次改表只借一次连接
+     * @param dbTbName 库.表
+     * @param fieldNames 新的字段列表
+     * @param deletedNames 被删除的字段，可以为空
+     */
+    private void syncFields(String dbTbName, String fieldNames, List<String> deletedNames) throws MetaException {
+        Connection connection = null;
+        boolean transaction = !deletedNames.isEmpty();
+        try {
+            connection = mysqlUtil.getConnection();
+            if (transaction) {
+                connection.setAutoCommit(false);
+                int delete_auth = 0;
+                //字段 in 列表按2的幂次补齐长度，同样结构的语句可以命中预编译语句缓存
+                //replace columns 一次删掉上万个字段时按档位切分，不超过mysql单条语句的占位符个数限制
+                for (int from = 0; from < deletedNames.size(); from += MAX_IN_LIST) {
+                    List<String> chunk = deletedNames.subList(from, Math.min(from + MAX_IN_LIST, deletedNames.size()));
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                            "delete from db_tb_auth where db_tb_id in (select db_tb_id from db_tb_info where db_tb_name=?) and field in ("
+                                    + SqlInList.placeholders(chunk.size()) + ")");
+                    preparedStatement.setString(1, dbTbName);
+                    SqlInList.bind(preparedStatement, 2, chunk);
+                    delete_auth += preparedStatement.executeUpdate();
+                    preparedStatement.close();
+                }
                 if ( delete_auth != 0 ){
                     LOGGER.info("回收字段权限个数: {}",delete_auth);
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
-                throw new MetaException("回收删除字段权限出现异常"+e.getMessage());
-            } finally {
-                mysqlUtil.closeConnection(connection);
             }
-        }
 
-        // 如果上面发生了字段的删除或者新增则要更新鉴权库中的表字段
-        // 后期改造要注意是否要考虑fieldDiff中旧字段发生改变的逻辑
-        if (changed) {
-            Connection connection = null;
-            try {
-                connection = mysqlUtil.getConnection(false);
-
-                PreparedStatement preparedStatement = connection.prepareStatement(updateTbInfo);
-                preparedStatement.setString(1, fieldDiff.fieldNames);
-                preparedStatement.setString(2,newTable.getDbName()+"."+newTable.getTableName());
-                int i = preparedStatement.executeUpdate();
-                if ( i!=0 ){
-                    LOGGER.info("更新表信息字段列表，数据库返回行数: {}",i);
+            PreparedStatement preparedStatement = connection.prepareStatement(updateTbInfo);
+            preparedStatement.setString(1, fieldNames);
+            preparedStatement.setString(2, dbTbName);
+            int i = preparedStatement.executeUpdate();
+            preparedStatement.close();
+
+            if (transaction) {
+                connection.commit();
+            }
+            if ( i!=0 ){
+                LOGGER.info("更新表信息字段列表，数据库返回行数: {}",i);
+            }
+        } catch (SQLException e) {
+            if (transaction && connection != null) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ignored) {
+                    //连接本身已经不可用，回滚失败也没有关系，事务不会被提交
                 }
-            } catch (SQLException e) {
-                throw new MetaException("更新字段列表出现错误 "+e.getMessage());
-            } finally {
-                mysqlUtil.closeConnection(connection);
             }
+            throw new MetaException("回收删除字段权限、更新字段列表出现异常 "+e.getMessage());
+        } finally {
+            if (transaction && connection != null) {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                    //连接归还连接池时会被重置
+                }
+            }
+            mysqlUtil.closeConnection(connection);
         }
-
-        //等等。。其他的情况
     }
 
     @Override
     public void onAddPartition(AddPartitionEvent partitionEvent) throws MetaException {
+        metrics.timeEvent("ADD_PARTITION", () -> syncAddPartition(partitionEvent));
+    }
+
+    private void syncAddPartition(AddPartitionEvent partitionEvent) throws MetaException {
         //如果本次事件不成功，就什么都不干
         if (!partitionEvent.getStatus()){
             return;
         }
 
+        /*
+        MSCK REPAIR 或者补数时一个事件就有十几万个分区，所以这里不再每个分区打一行日志
+        而是边读迭代器边分批写入鉴权库的分区清单，最后一个事件只打一行汇总日志
+        分区清单只是给数据治理用的，不参与鉴权，这时元数据服务中的分区已经提交了
+        所以写鉴权库失败只记录日志和指标，不能让新增分区、MSCK REPAIR、动态分区写入因为它报错，差异由对账工具修正
+         */
+        Table table = partitionEvent.getTable();
+        String dbTbName = table.getDbName()+"."+table.getTableName();
+        long start = System.currentTimeMillis();
+        long count;
         try {
-            Table table = partitionEvent.getTable();
             Iterator<Partition> partitionIterator = partitionEvent.getPartitionIterator();
-            while(partitionIterator.hasNext()){
-                LOGGER.info("新增分区 {}.{} {}",table.getDbName(),table.getTableName(),partitionIterator.next().getValues());
+            if (writeBehind != null) {
+                count = appendPartitions(WriteAheadLog.Record.ADD_PARTITIONS, dbTbName, table, partitionIterator);
+            } else {
+                Connection connection = null;
+                try {
+                    connection = mysqlUtil.getConnection();
+                    count = PartitionInventory.addAll(connection, dbTbName, table, partitionIterator);
+                } finally {
+                    mysqlUtil.closeConnection(connection);
+                }
             }
         }catch (Exception e){
-            throw new MetaException("新增分区扫尾工作出现异常"+e.getMessage());
+            metrics.partitionSyncError();
+            LOGGER.error("新增分区 {} 写入鉴权库分区清单失败，请用 AuthReconciler --partitions {} 修正", dbTbName, dbTbName, e);
+            return;
+        }
+        if (count < 0) {
+            LOGGER.warn("新增分区 {} 鉴权库中不存在该表信息，分区清单没有写入", dbTbName);
+        } else {
+            LOGGER.info("新增分区 {} 个数:{} 耗时:{}ms", dbTbName, count, System.currentTimeMillis() - start);
         }
     }
 
     @Override
     public void onDropPartition(DropPartitionEvent partitionEvent) throws MetaException {
+        metrics.timeEvent("DROP_PARTITION", () -> syncDropPartition(partitionEvent));
+    }
+
+    private void syncDropPartition(DropPartitionEvent partitionEvent) throws MetaException {
         //如果本次事件不成功，就什么都不干
         if (!partitionEvent.getStatus()){
             return;
         }
 
+        Table table = partitionEvent.getTable();
+        String dbTbName = table.getDbName()+"."+table.getTableName();
+        long start = System.currentTimeMillis();
+        long count;
         try {
-            Table table = partitionEvent.getTable();
             Iterator<Partition> partitionIterator = partitionEvent.getPartitionIterator();
-            while(partitionIterator.hasNext()){
-                LOGGER.info("删除分区 {}.{} {}",table.getDbName(),table.getTableName(),partitionIterator.next().getValues());
+            if (writeBehind != null) {
+                count = appendPartitions(WriteAheadLog.Record.DROP_PARTITIONS, dbTbName, table, partitionIterator);
+            } else {
+                Connection connection = null;
+                try {
+                    connection = mysqlUtil.getConnection();
+                    count = PartitionInventory.dropAll(connection, dbTbName, table, partitionIterator);
+                } finally {
+                    mysqlUtil.closeConnection(connection);
+                }
             }
         }catch (Exception e){
-            throw new MetaException("删除分区扫尾工作出现异常"+e.getMessage());
+            metrics.partitionSyncError();
+            LOGGER.error("删除分区 {} 从鉴权库分区清单删除失败，请用 AuthReconciler --partitions {} 修正", dbTbName, dbTbName, e);
+            return;
+        }
+        if (count < 0) {
+            LOGGER.warn("删除分区 {} 鉴权库中不存在该表信息，分区清单没有删除", dbTbName);
+        } else {
+            LOGGER.info("删除分区 {} 个数:{} 耗时:{}ms", dbTbName, count, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 异步写入时，把分区按批写入本地预写日志，一批分区一条记录
+     * @param type 新增还是删除
+     * @return 分区个数
+     */
+    private long appendPartitions(byte type, String dbTbName, Table table, Iterator<Partition> partitionIterator) throws MetaException, IOException {
+        long count = 0;
+        List<String> args = new ArrayList<>();
+        args.add(dbTbName);
+        while (partitionIterator.hasNext()) {
+            Partition partition = partitionIterator.next();
+            args.add(PartitionInventory.partName(table, partition));
+            if (type == WriteAheadLog.Record.ADD_PARTITIONS) {
+                args.add(PartitionInventory.partLocation(partition));
+            }
+            count++;
+            if (count % PartitionInventory.CHUNK_SIZE == 0) {
+                writeBehind.append(new WriteAheadLog.Record(type, args.toArray(new String[0])));
+                args.subList(1, args.size()).clear();
+            }
+        }
+        if (args.size() > 1) {
+            writeBehind.append(new WriteAheadLog.Record(type, args.toArray(new String[0])));
         }
+        return count;
     }
 
     @Override
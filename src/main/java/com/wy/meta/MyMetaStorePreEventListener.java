@@ -1,9 +1,11 @@
 package com.wy.meta;
 
 import com.wy.exception.HiveMetaStoreException;
+import com.wy.metrics.AuthMetrics;
 import com.wy.utils.MysqlUtil;
 import com.wy.utils.UserUtil;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.metastore.MetaStorePreEventListener;
 import org.apache.hadoop.hive.metastore.api.Database;
 import org.apache.hadoop.hive.metastore.api.MetaException;
@@ -14,10 +16,6 @@ import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.math.BigInteger;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
 
@@ -31,70 +29,38 @@ public class MyMetaStorePreEventListener extends MetaStorePreEventListener {
     private static String META_ALLUXIO_ENABLE = "hive.metastore.part.alluxio.enable";
 
     private MysqlUtil mysqlUtil;
-    private String usedLocation = "SELECT db_tb_name FROM db_tb_info FORCE INDEX(表存储路径索引) WHERE ? like concat(tb_location,'%') ORDER BY tb_location DESC LIMIT 1";
+    //鉴权耗时、结果、连接池状态的指标，整个元数据服务进程共用一个
+    private final AuthMetrics metrics = AuthMetrics.getInstance();
 
     public MyMetaStorePreEventListener(Configuration config) {
         super(config);
 
-        //初始化来连接池和线程池的配置参数
-        String url;
-        String driver;
-        Long timeout;
-        String username;
-        String password;
-        int hp_maxsize;
-        int hp_minidle;
-        long hp_id_timeout;
-        long hp_lefttime;
-
-        //初始化鉴权库的连接池
-        url = config.get("hive.auth.database.url");
-        driver = config.get("hive.auth.database.driver");
-        username = config.get("hive.auth.database.username");
-        password = config.get("hive.auth.database.password");
-
-        //数据库连接超时时间
-        BigInteger timeout_bi = new BigInteger(config.get("hive.auth.database.timeout"));
-        if ( timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0   ){
-            throw new HiveMetaStoreException("鉴权连接池连接超时时间超过预期Long值");
-        }
-        timeout = timeout_bi.longValue();
-
-        //数据库连接池大小校验
-        BigInteger hp_maxsize_bi = new BigInteger(config.get("hive.auth.database.meta.listener.hikari.pool.maxsize"));
-        if ( hp_maxsize_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_maxsize_bi.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0 ){
-            throw new HiveMetaStoreException("鉴权连接池大小超过预期Int值");
-        }
-        hp_maxsize = hp_maxsize_bi.intValue();
-
-        //数据库连接池空闲连接大小校验
-        BigInteger hp_minidle_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.minidle"));
-        if ( hp_minidle_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_minidle_bi.compareTo(BigInteger.valueOf( hp_maxsize_bi.intValue() / 2 )) > 0   ){
-            throw new HiveMetaStoreException("鉴权连接池空闲连接大小超过预期Int值");
-        }
-        hp_minidle = hp_minidle_bi.intValue();
-
-        //数据库连接池空闲超时校验
-        BigInteger hp_id_timeout_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.idle.timeout"));
-        if ( hp_id_timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_id_timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0  ){
-            throw new HiveMetaStoreException("鉴权连接池空闲超时时间超过预期Long值");
-        }
-        hp_id_timeout = hp_id_timeout_bi.longValue();
-
-        //数据库连接池连接最大存活时间校验
-        BigInteger hp_lefttime_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.max.lifetime"));
-        if (  hp_lefttime_bi.compareTo(hp_id_timeout_bi) < 0 || hp_lefttime_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0 ) {
-            throw new HiveMetaStoreException("鉴权连接池连接存在时间超过预期Long值");
-        }
-        hp_lefttime = hp_lefttime_bi.longValue();
-
-        mysqlUtil = new MysqlUtil(url,driver,timeout,username,password,hp_maxsize,hp_minidle,hp_id_timeout,hp_lefttime);
+        //鉴权库连接池整个元数据服务进程共用一个，参数只在第一个监听初始化时校验
+        mysqlUtil = MetaAuthDb.getInstance(config).getMysqlUtil();
 
         System.out.println("Hive MetaStorePre Plugin Initialized! 元数据辅助组件接入! ");
     }
 
+    /**
+     * 按事件类型记录耗时，这里抛出的 MetaException 绝大多数是规则拒绝，统一记为拒绝，其他的运行时异常记为出错
+     */
     @Override
     public void onEvent(PreEventContext preEventContext) throws MetaException  {
+        long start = System.nanoTime();
+        String eventType = preEventContext.getEventType().name();
+        try {
+            checkEvent(preEventContext);
+        } catch (MetaException e) {
+            metrics.recordDecision(eventType, start, AuthMetrics.Decision.DENIED);
+            throw e;
+        } catch (RuntimeException e) {
+            metrics.recordDecision(eventType, start, AuthMetrics.Decision.ERROR);
+            throw e;
+        }
+        metrics.recordDecision(eventType, start, AuthMetrics.Decision.ALLOWED);
+    }
+
+    private void checkEvent(PreEventContext preEventContext) throws MetaException  {
         //下面会用到的变量
         Database db = null;
         Table table = null;
@@ -160,22 +126,17 @@ public class MyMetaStorePreEventListener extends MetaStorePreEventListener {
                     if ( location.length() > 500 ) {
                         throw new MetaException(dbName + "." + tableName +" 表存储路径的长度超过了500个字符");
                     }else if ( tableType.equals("EXTERNAL_TABLE") ) {
-                        //如果没有超过，且建的是个外表，检查是否存在已使用这个路径的表
-                        Connection connection = null;
+                        //如果没有超过，且建的是个外表，检查是否存在已使用这个路径的表，或者这个路径下面已经有其他表
+                        //建表语句中写的路径可能不带 hdfs://xxx 前缀，先按元数据服务的规则补全，和鉴权库中保存的格式保持一致
+                        String qualifiedLocation = preCreateTableEvent.getHandler().getWh().getDnsPath(new Path(location)).toString();
+                        String usedBy;
                         try {
-                            connection = mysqlUtil.getConnection(false);
-                            PreparedStatement preparedStatement = connection.prepareStatement(usedLocation);
-                            preparedStatement.setString(1, location);
-                            ResultSet resultSet = preparedStatement.executeQuery();
-                            resultSet.next();
-                            if ( resultSet.getRow() != 0 ) {
-                                //如果 执行了next 行号还是 0 则说明当前使用的路径没有被其他表使用，反之报错
-                                throw new MetaException("当前表存储路径 "+location+" 已经被 "+resultSet.getString("db_tb_name")+" 表使用");
-                            }
+                            usedBy = TableLocationTrie.getInstance().findConflict(qualifiedLocation, mysqlUtil);
                         } catch (SQLException e) {
                             throw new MetaException("检查建表时，是否存在已用表出现异常 "+e.getMessage());
-                        } finally {
-                            mysqlUtil.closeConnection(connection);
+                        }
+                        if ( usedBy != null ) {
+                            throw new MetaException("当前表存储路径 "+location+" 和 "+usedBy+" 表的存储路径重叠");
                         }
                     }
                 }
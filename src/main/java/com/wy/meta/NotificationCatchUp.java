@@ -0,0 +1,229 @@
+package com.wy.meta;
+
+import com.wy.utils.MysqlUtil;
+import org.apache.hadoop.hive.metastore.IMetaStoreClient;
+import org.apache.hadoop.hive.metastore.api.NotificationEvent;
+import org.apache.hadoop.hive.metastore.api.NotificationEventResponse;
+import org.apache.hadoop.hive.metastore.messaging.EventMessage;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 按元数据服务的通知日志追赶鉴权库
+ *
+ * 元数据监听只在事件发生时处理一次，写鉴权库失败(鉴权库宕机、网络抖动、元数据服务重启)的事件就丢了
+ * 元数据服务开启 DbNotificationListener 之后，每个DDL都会在元数据库的通知日志中留下一条递增编号的事件
+ * 这里在鉴权库 auth_sync_state 表中记录已经处理到的事件编号，后台线程定期从这个编号往后分页读取通知日志
+ * 把一页中建表、删表、改表、删库涉及的表收集起来，交给 AuthReconciler 按这些表在元数据服务中的最新状态批量修正
+ * 每页修正提交之后再推进事件编号，中途失败下次从原来的编号重新处理
+ *
+ * 修正以最新状态为准，不是逐条重放事件，所以同一页里同一张表的多个事件只处理一次
+ * 监听已经写成功的表、其他元数据服务实例已经处理过的页，再处理一次也没有副作用，整体效果是每个变化恰好生效一次
+ * 事件编号只会往前推进，多个元数据服务实例同时追赶时编号不会倒退
+ *
+ * 第一次启动时鉴权库中没有记录，从当前的事件编号开始，之前的差异用 AuthReconciler 全量对账修正
+ * 通知日志保留时间(hive.metastore.event.db.listener.timetolive)之外的事件被清理之后就追不回来了
+ * 这时客户端的 getNextNotification 发现返回的事件编号不连续会直接抛出 IllegalStateException
+ * 这里记录ERROR日志，把事件编号推进到当前的事件编号继续追赶，中间的差异需要用 AuthReconciler 全量对账
+ */
+public class NotificationCatchUp {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationCatchUp.class);
+
+    //auth_sync_state 中这个进度的名字
+    private static final String STATE_NAME = "hms_notification";
+    private static final String SELECT_STATE = "select event_id from auth_sync_state where name=?";
+    private static final String INSERT_STATE = "insert into auth_sync_state (name, event_id, update_time) " +
+            "select ?, ?, NOW() from dual where not exists (select 1 from auth_sync_state where name=?)";
+    //只往前推进
+    private static final String UPDATE_STATE = "update auth_sync_state set event_id=?, update_time=NOW() where name=? and event_id<?";
+    //删库时鉴权库中这个库下的所有表，用范围条件走 db_tb_name 的唯一索引，'/' 是 '.' 的下一个字符
+    private static final String SELECT_DB_TABLES = "select db_tb_name from db_tb_info where db_tb_name>=? and db_tb_name<?";
+
+    private static final String CREATE_TABLE = EventMessage.EventType.CREATE_TABLE.toString();
+    private static final String DROP_TABLE = EventMessage.EventType.DROP_TABLE.toString();
+    private static final String ALTER_TABLE = EventMessage.EventType.ALTER_TABLE.toString();
+    private static final String DROP_DATABASE = EventMessage.EventType.DROP_DATABASE.toString();
+
+    private final AuthReconciler reconciler;
+    private final MysqlUtil mysqlUtil;
+    private final long interval;
+    private final int batchSize;
+
+    /**
+     * @param reconciler 修正用的对账工具，和这个类在同一个线程上使用
+     * @param mysqlUtil 鉴权库连接池
+     * @param interval 两次追赶之间的间隔 毫秒
+     * @param batchSize 一页读取的事件个数
+     */
+    public NotificationCatchUp(AuthReconciler reconciler, MysqlUtil mysqlUtil, long interval, int batchSize) {
+        this.reconciler = reconciler;
+        this.mysqlUtil = mysqlUtil;
+        this.interval = interval;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 启动后台追赶线程
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "hive-auth-catch-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                catchUp();
+            } catch (Exception e) {
+                LOGGER.error("按通知日志追赶鉴权库失败，{}ms 之后重试", interval, e);
+                //连接可能已经断了，下次重新创建客户端
+                reconciler.closeClients();
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从记录的事件编号开始一页一页处理到最新
+     * @return 处理的事件个数
+     */
+    public long catchUp() throws TException, SQLException, InterruptedException {
+        long last = readCheckpoint();
+        IMetaStoreClient client = reconciler.client();
+        if (last < 0) {
+            long current = client.getCurrentNotificationEventId().getEventId();
+            writeCheckpoint(current, true);
+            LOGGER.info("鉴权库中没有通知日志的处理记录，从当前事件 {} 开始追赶，之前的差异请用 AuthReconciler 全量对账", current);
+            return 0;
+        }
+
+        long count = 0;
+        while (true) {
+            NotificationEventResponse response;
+            try {
+                response = client.getNextNotification(last, batchSize, null);
+            } catch (IllegalStateException e) {
+                //记录的位置之后的事件已经被清理，不跳过的话每次重试都是同样的异常，位置永远不会前进
+                long current = client.getCurrentNotificationEventId().getEventId();
+                LOGGER.error("通知日志中事件 {} 之后的部分事件已经被清理，这期间的变化无法追赶，跳到当前事件 {} 继续，请用 AuthReconciler 做一次全量对账",
+                        last, current);
+                writeCheckpoint(current, false);
+                last = current;
+                continue;
+            }
+            List<NotificationEvent> events = response == null ? null : response.getEvents();
+            if (events == null || events.isEmpty()) {
+                return count;
+            }
+
+            long start = System.currentTimeMillis();
+            Set<String> tables = new LinkedHashSet<>();
+            for (NotificationEvent event : events) {
+                String type = event.getEventType();
+                if (event.getDbName() == null) {
+                    continue;
+                }
+                String dbName = event.getDbName().toLowerCase();
+                if (CREATE_TABLE.equals(type) || DROP_TABLE.equals(type) || ALTER_TABLE.equals(type)) {
+                    if (event.getTableName() != null) {
+                        tables.add(dbName + "." + event.getTableName().toLowerCase());
+                    }
+                } else if (DROP_DATABASE.equals(type)) {
+                    tables.addAll(authTablesOf(dbName));
+                }
+            }
+            reconciler.reconcile(tables);
+
+            last = events.get(events.size() - 1).getEventId();
+            writeCheckpoint(last, false);
+            count += events.size();
+            LOGGER.info("按通知日志追赶鉴权库 事件:{} 涉及表:{} 处理到:{} 耗时:{}ms", events.size(), tables.size(), last, System.currentTimeMillis() - start);
+            if (events.size() < batchSize) {
+                return count;
+            }
+        }
+    }
+
+    /**
+     * @return 已经处理到的事件编号，没有记录时返回 -1
+     */
+    private long readCheckpoint() throws SQLException {
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            PreparedStatement preparedStatement = connection.prepareStatement(SELECT_STATE);
+            preparedStatement.setString(1, STATE_NAME);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            long eventId = resultSet.next() ? resultSet.getLong(1) : -1;
+            resultSet.close();
+            preparedStatement.close();
+            return eventId;
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 推进事件编号
+     * @param insert 是否是第一次写入记录
+     */
+    private void writeCheckpoint(long eventId, boolean insert) throws SQLException {
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            PreparedStatement preparedStatement;
+            if (insert) {
+                preparedStatement = connection.prepareStatement(INSERT_STATE);
+                preparedStatement.setString(1, STATE_NAME);
+                preparedStatement.setLong(2, eventId);
+                preparedStatement.setString(3, STATE_NAME);
+            } else {
+                preparedStatement = connection.prepareStatement(UPDATE_STATE);
+                preparedStatement.setLong(1, eventId);
+                preparedStatement.setString(2, STATE_NAME);
+                preparedStatement.setLong(3, eventId);
+            }
+            preparedStatement.executeUpdate();
+            preparedStatement.close();
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 鉴权库中一个库下的所有表
+     */
+    private Set<String> authTablesOf(String dbName) throws SQLException {
+        Set<String> tables = new LinkedHashSet<>();
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            PreparedStatement preparedStatement = connection.prepareStatement(SELECT_DB_TABLES);
+            preparedStatement.setString(1, dbName + ".");
+            preparedStatement.setString(2, dbName + "/");
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                tables.add(resultSet.getString(1));
+            }
+            resultSet.close();
+            preparedStatement.close();
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+        return tables;
+    }
+}
@@ -0,0 +1,164 @@
+package com.wy.meta;
+
+import com.wy.utils.SqlInList;
+import org.apache.hadoop.hive.metastore.Warehouse;
+import org.apache.hadoop.hive.metastore.api.MetaException;
+import org.apache.hadoop.hive.metastore.api.Partition;
+import org.apache.hadoop.hive.metastore.api.Table;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 鉴权库中的分区清单 db_tb_partition 的写入工具
+ *
+ * MSCK REPAIR 或者补数的时候一次会新增十几万个分区，原来每个分区打一行INFO日志，又慢又没有用
+ * 现在把分区的 所属表、分区名、分区路径 记录到鉴权库中，给数据治理用
+ *
+ * 写入时直接从事件的分区迭代器中边读边写，每攒够 CHUNK_SIZE 个分区拼成一条多行的 insert 或者一条 in 的 delete
+ * 任何时候内存中最多只有一批分区，不会把整个分区列表先读出来
+ *
+ * 分区名可能很长，不适合直接做唯一索引，所以唯一索引建在 表id + 分区名的md5 上
+ * 新增用 insert ignore ，重复执行没有副作用，异步写入重放时也是安全的
+ * 每批的行数和 in 列表的长度都按 SqlInList 的档位补齐，多出来的位置重复最后一个分区，最后一批不会每次都是一条新的sql
+ */
+public class PartitionInventory {
+
+    //一条语句最多包含多少个分区
+    public static final int CHUNK_SIZE = 500;
+
+    private static final String TABLE_ID = "select db_tb_id from db_tb_info where db_tb_name=?";
+
+    private PartitionInventory() {
+    }
+
+    /**
+     * 分区名，和hive中 show partitions 的格式一致，比如 dt=2025-06-17/hour=01
+     */
+    public static String partName(Table table, Partition partition) throws MetaException {
+        return Warehouse.makePartName(table.getPartitionKeys(), partition.getValues());
+    }
+
+    public static String partLocation(Partition partition) {
+        return partition.getSd() == null ? null : partition.getSd().getLocation();
+    }
+
+    /**
+     * 流式写入一个事件中所有新增的分区
+     * @param connection 鉴权库连接
+     * @param dbTbName 库.表
+     * @param table 表信息，用来生成分区名
+     * @param partitions 事件中的分区迭代器
+     * @return 写入的分区个数，表在鉴权库中不存在时返回 -1
+     */
+    public static long addAll(Connection connection, String dbTbName, Table table, Iterator<Partition> partitions) throws SQLException, MetaException {
+        String tableId = tableId(connection, dbTbName);
+        if (tableId == null) {
+            return -1;
+        }
+        long count = 0;
+        List<String> names = new ArrayList<>(CHUNK_SIZE);
+        List<String> locations = new ArrayList<>(CHUNK_SIZE);
+        while (partitions.hasNext()) {
+            Partition partition = partitions.next();
+            names.add(partName(table, partition));
+            locations.add(partLocation(partition));
+            if (names.size() == CHUNK_SIZE) {
+                count += insertChunk(connection, tableId, names, locations);
+                names.clear();
+                locations.clear();
+            }
+        }
+        if (!names.isEmpty()) {
+            count += insertChunk(connection, tableId, names, locations);
+        }
+        return count;
+    }
+
+    /**
+     * 流式删除一个事件中所有被删除的分区
+     * @return 删除的分区个数，表在鉴权库中不存在时返回 -1
+     */
+    public static long dropAll(Connection connection, String dbTbName, Table table, Iterator<Partition> partitions) throws SQLException, MetaException {
+        String tableId = tableId(connection, dbTbName);
+        if (tableId == null) {
+            return -1;
+        }
+        long count = 0;
+        List<String> names = new ArrayList<>(CHUNK_SIZE);
+        while (partitions.hasNext()) {
+            names.add(partName(table, partitions.next()));
+            if (names.size() == CHUNK_SIZE) {
+                count += deleteChunk(connection, tableId, names);
+                names.clear();
+            }
+        }
+        if (!names.isEmpty()) {
+            count += deleteChunk(connection, tableId, names);
+        }
+        return count;
+    }
+
+    /**
+     * 鉴权库中的表id
+     * @return 表不存在时返回null
+     */
+    public static String tableId(Connection connection, String dbTbName) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(TABLE_ID);
+        preparedStatement.setString(1, dbTbName);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        String tableId = resultSet.next() ? resultSet.getString(1) : null;
+        resultSet.close();
+        preparedStatement.close();
+        return tableId;
+    }
+
+    /**
+     * 一条多行的 insert 写入一批分区，已经存在的分区忽略
+     * @return 这一批的分区个数
+     */
+    public static int insertChunk(Connection connection, String tableId, List<String> names, List<String> locations) throws SQLException {
+        int rows = SqlInList.bucket(names.size());
+        StringBuilder sql = new StringBuilder("insert ignore into db_tb_partition (db_tb_id,part_hash,part_name,part_location) values ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "(?,md5(?),?,?)" : ",(?,md5(?),?,?)");
+        }
+        PreparedStatement preparedStatement = connection.prepareStatement(sql.toString());
+        int index = 1;
+        for (int i = 0; i < rows; i++) {
+            //补齐的行重复最后一个分区，insert ignore 会忽略它们
+            int row = Math.min(i, names.size() - 1);
+            preparedStatement.setString(index++, tableId);
+            preparedStatement.setString(index++, names.get(row));
+            preparedStatement.setString(index++, names.get(row));
+            preparedStatement.setString(index++, locations.get(row));
+        }
+        preparedStatement.executeUpdate();
+        preparedStatement.close();
+        return names.size();
+    }
+
+    /**
+     * 一条 in 条件的 delete 删除一批分区
+     * @return 实际删除的行数
+     */
+    public static int deleteChunk(Connection connection, String tableId, List<String> names) throws SQLException {
+        int bucket = SqlInList.bucket(names.size());
+        StringBuilder sql = new StringBuilder("delete from db_tb_partition where db_tb_id=? and part_hash in (");
+        for (int i = 0; i < bucket; i++) {
+            sql.append(i == 0 ? "md5(?)" : ",md5(?)");
+        }
+        sql.append(")");
+        PreparedStatement preparedStatement = connection.prepareStatement(sql.toString());
+        preparedStatement.setString(1, tableId);
+        SqlInList.bind(preparedStatement, 2, names);
+        int deleted = preparedStatement.executeUpdate();
+        preparedStatement.close();
+        return deleted;
+    }
+}
@@ -0,0 +1,349 @@
+package com.wy.meta;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.wy.utils.MysqlUtil;
+import com.wy.utils.SqlInList;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 元数据服务进程内的表存储路径前缀树
+ *
+ * 建外表时要检查路径是否和已有的表冲突，原来是每次建表都到鉴权库里执行一次
+ * WHERE ? like concat(tb_location,'%') ，这个条件用不上索引，每次都是全表扫描 db_tb_info
+ * 批量接入几万张外表的时候，建表速度完全被这个查询卡住
+ * 而且它只能查出 新路径在已有表路径下面 这一种情况，新路径是已有表路径的上级目录时查不出来
+ *
+ * 这里把鉴权库中所有表的路径按目录层级放在一棵前缀树里，每个节点是路径中的一级目录
+ * 检查时沿着新路径往下走一遍，就能同时知道：
+ *   1、路上是否经过了某张表的路径，也就是新路径在已有表路径下面，或者两者相同
+ *   2、走到头之后下面是否还有节点，也就是新路径是已有表路径的上级目录
+ * 复杂度只和路径的层级有关，和表的个数无关
+ *
+ * 这棵树在第一次检查时从鉴权库加载一次，之后由 MyMetaStoreEventListener 在建表、删表成功后同步维护
+ * 因为两个监听类在同一个元数据服务进程中，所以用进程级的单例共用
+ *
+ * 部署多个元数据服务实例时，其他实例建、删的表不会经过这个进程的监听，树里的内容会和鉴权库不一致，所以树的结果都要到鉴权库确认：
+ *   树中没有冲突时，用 tb_location 的唯一索引查一次：新路径和它每一级上级目录的精确匹配，加上以 新路径/ 开头的范围查询
+ *     查到的表说明是其他实例建的，顺便放进树里
+ *   树中有冲突但这张表是从鉴权库加载的，确认鉴权库中还有这张表，没有了说明在其他实例上被删了，从树里去掉之后接着找
+ *     这个进程自己建的表直接认为冲突，开启异步写入时它可能还没有写到鉴权库
+ * 这两个查询都走索引，代价和表的个数无关
+ */
+public class TableLocationTrie {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TableLocationTrie.class);
+
+    private static final TableLocationTrie INSTANCE = new TableLocationTrie();
+
+    private final Node root = new Node();
+    //是否已经从鉴权库加载过
+    private boolean loaded = false;
+    /*
+    没有加载之前发生的增删先记下来，加载完成之后按顺序再执行一遍
+    因为开启异步写入鉴权库时，加载时读到的鉴权库数据可能还没有包含刚刚建、删的表，增删本身重复执行没有副作用
+     */
+    private final List<Runnable> pending = new ArrayList<>();
+
+    private TableLocationTrie() {
+    }
+
+    /**
+     * 不连鉴权库的实例，单元测试中直接当作已经加载过
+     */
+    @VisibleForTesting
+    TableLocationTrie(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    public static TableLocationTrie getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 查找和这个路径冲突的表，没有加载过则先从鉴权库加载
+     * @param location 新表的路径，需要是带 scheme 和 authority 的完整路径，和鉴权库中保存的格式一致
+     * @param mysqlUtil 鉴权库连接池，只有第一次加载时会用到
+     * @return 冲突的表名 库.表 ，没有冲突返回null
+     * @throws SQLException 加载鉴权库数据出现异常
+     */
+    public synchronized String findConflict(String location, MysqlUtil mysqlUtil) throws SQLException {
+        if (!loaded) {
+            load(mysqlUtil);
+        }
+        List<String> segments = split(location);
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            Node node;
+            while ((node = find(segments)) != null) {
+                if (node.local || stillExists(connection, node.table, node.location)) {
+                    return node.table;
+                }
+                LOGGER.info("表 {} 在鉴权库中已经不存在，从表路径前缀树中删除 {}", node.table, node.location);
+                delete(node.location, node.table);
+            }
+            return findInDatabase(connection, segments);
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 只在树中查找冲突的表，不到鉴权库确认
+     * @return 冲突的表名，没有冲突返回null
+     */
+    @VisibleForTesting
+    synchronized String findInTrie(String location) {
+        Node node = find(split(location));
+        return node == null ? null : node.table;
+    }
+
+    /**
+     * 树中是否一张表都没有，删表之后空节点都被剪掉时为true
+     */
+    @VisibleForTesting
+    synchronized boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    /**
+     * 在树中查找和这个路径冲突的表的节点
+     * @return 没有冲突返回null
+     */
+    private Node find(List<String> segments) {
+        Node node = root;
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return null;
+            }
+            //新路径在这张表的路径下面，或者就是这张表的路径
+            if (node.table != null) {
+                return node;
+            }
+        }
+        //新路径是已有表路径的上级目录，随便找一张下面的表用来报错，删表时空节点都会被剪掉，所以一直往下走一定能找到
+        while (!node.children.isEmpty()) {
+            node = node.children.values().iterator().next();
+            if (node.table != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 从鉴权库加载的表是否还在，并且路径没有变
+     */
+    private static boolean stillExists(Connection connection, String table, String location) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement("select tb_location from db_tb_info where db_tb_name=?");
+        preparedStatement.setString(1, table);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        boolean exists = resultSet.next() && location.equals(resultSet.getString(1));
+        resultSet.close();
+        preparedStatement.close();
+        return exists;
+    }
+
+    /**
+     * 树中没有冲突时到鉴权库确认，查出来的表放进树里
+     * 列的排序规则不区分大小写，查出来的结果再按目录逐级比较一次
+     * @return 冲突的表名，没有冲突返回null
+     */
+    private String findInDatabase(Connection connection, List<String> segments) throws SQLException {
+        //新路径和它的每一级上级目录，带不带结尾的斜杠都算
+        List<String> ancestors = new ArrayList<>(segments.size() * 2);
+        StringBuilder path = new StringBuilder(segments.get(0));
+        for (int i = 1; i < segments.size(); i++) {
+            path.append('/').append(segments.get(i));
+            ancestors.add(path.toString());
+            ancestors.add(path + "/");
+        }
+        if (!ancestors.isEmpty()) {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select db_tb_name,tb_location from db_tb_info where tb_location in (" + SqlInList.placeholders(ancestors.size()) + ")");
+            SqlInList.bind(preparedStatement, 1, ancestors);
+            String table = readConflict(preparedStatement, segments, false);
+            if (table != null) {
+                return table;
+            }
+        }
+
+        //新路径下面的表，'0' 是 '/' 的下一个字符
+        PreparedStatement preparedStatement = connection.prepareStatement(
+                "select db_tb_name,tb_location from db_tb_info where tb_location>? and tb_location<? limit 16");
+        preparedStatement.setString(1, path + "/");
+        preparedStatement.setString(2, path + "0");
+        return readConflict(preparedStatement, segments, true);
+    }
+
+    /**
+     * 执行查询，找出按目录比较确实冲突的第一张表，放进树里
+     * @param descendant 查的是新路径下面的表还是上级目录的表
+     */
+    private String readConflict(PreparedStatement preparedStatement, List<String> segments, boolean descendant) throws SQLException {
+        String conflict = null;
+        ResultSet resultSet = preparedStatement.executeQuery();
+        while (conflict == null && resultSet.next()) {
+            String location = resultSet.getString("tb_location");
+            List<String> existing = split(location);
+            List<String> shorter = descendant ? segments : existing;
+            List<String> longer = descendant ? existing : segments;
+            if (longer.size() >= shorter.size() && longer.subList(0, shorter.size()).equals(shorter)) {
+                conflict = resultSet.getString("db_tb_name");
+                LOGGER.info("表路径前缀树中没有 {} {}，是其他元数据服务实例建的表，补充到树中", conflict, location);
+                put(location, conflict, false);
+            }
+        }
+        resultSet.close();
+        preparedStatement.close();
+        return conflict;
+    }
+
+    /**
+     * 建表成功后加入树中
+     * @param location 表路径
+     * @param table 库.表
+     */
+    public synchronized void add(String location, String table) {
+        if (location == null || location.isEmpty()) {
+            return;
+        }
+        if (!loaded) {
+            pending.add(() -> put(location, table, true));
+            return;
+        }
+        put(location, table, true);
+    }
+
+    /**
+     * 删表成功后从树中删掉，并剪掉删除后没有任何表的空节点
+     * @param location 表路径
+     * @param table 库.表，只有节点上记录的表是这张表时才删除
+     */
+    public synchronized void remove(String location, String table) {
+        if (location == null || location.isEmpty()) {
+            return;
+        }
+        if (!loaded) {
+            pending.add(() -> delete(location, table));
+            return;
+        }
+        delete(location, table);
+    }
+
+    private void delete(String location, String table) {
+        List<String> segments = split(location);
+        List<Node> path = new ArrayList<>(segments.size() + 1);
+        Node node = root;
+        path.add(node);
+        for (String segment : segments) {
+            node = node.children.get(segment);
+            if (node == null) {
+                return;
+            }
+            path.add(node);
+        }
+        if (!table.equals(node.table)) {
+            return;
+        }
+        node.table = null;
+        node.location = null;
+        for (int i = segments.size(); i > 0; i--) {
+            Node current = path.get(i);
+            if (current.table != null || !current.children.isEmpty()) {
+                break;
+            }
+            path.get(i - 1).children.remove(segments.get(i - 1));
+        }
+    }
+
+    /**
+     * 从鉴权库全量加载所有表的路径
+     */
+    private void load(MysqlUtil mysqlUtil) throws SQLException {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            //流式读取，表多的时候不在客户端缓存整个结果集
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                    "select db_tb_name,tb_location from db_tb_info where tb_location is not null",
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                String location = resultSet.getString("tb_location");
+                if (!location.isEmpty()) {
+                    put(location, resultSet.getString("db_tb_name"), false);
+                    count++;
+                }
+            }
+            resultSet.close();
+            preparedStatement.close();
+        } finally {
+            mysqlUtil.closeConnection(connection);
+        }
+        for (Runnable runnable : pending) {
+            runnable.run();
+        }
+        pending.clear();
+        loaded = true;
+        LOGGER.info("表路径前缀树加载完成 表个数:{} 耗时:{}ms", count, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param local 是否是这个进程的监听建的表
+     */
+    private void put(String location, String table, boolean local) {
+        Node node = root;
+        for (String segment : split(location)) {
+            node = node.children.computeIfAbsent(segment, k -> new Node());
+        }
+        node.table = table;
+        node.location = location;
+        node.local = local;
+    }
+
+    /**
+     * 把路径拆成逐级的目录，第一级是 scheme://authority ，没有的话是空字符串
+     * 多余的斜杠、结尾的斜杠都会被去掉，所以 hdfs://ns/a/b/ 和 hdfs://ns/a//b 是同一个路径
+     * 按目录比较而不是按字符串前缀比较，所以 /a/bc 不会被当成在 /a/b 下面
+     */
+    static List<String> split(String location) {
+        URI uri = new Path(location).toUri();
+        List<String> segments = new ArrayList<>();
+        segments.add(uri.getScheme() == null ? "" : uri.getScheme() + "://" + (uri.getAuthority() == null ? "" : uri.getAuthority()));
+        String path = uri.getPath();
+        if (path != null) {
+            for (String segment : path.split("/")) {
+                if (!segment.isEmpty()) {
+                    segments.add(segment);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        //以这个节点结尾的路径是哪张表的，不是表路径的中间节点为null
+        private String table;
+        //表的原始路径，删除时使用
+        private String location;
+        //是否是这个进程的监听建的表，不是的话用之前要到鉴权库确认
+        private boolean local;
+    }
+}
@@ -0,0 +1,341 @@
+package com.wy.meta;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 元数据监听写鉴权库操作的本地预写日志
+ *
+ * 日志由多个分段文件 wal-序号.log 组成，写满一定大小换下一个分段
+ * 每条记录的格式是：记录长度(int) + 记录内容 + 记录内容的CRC32(long)
+ * 记录内容是：操作类型(byte) + 参数个数(int) + 每个参数的 长度(int) + UTF-8字节
+ *
+ * 另外有一个 checkpoint 文件记录已经成功写入鉴权库的位置(分段序号 + 分段内偏移)
+ * 重启之后从这个位置开始重放，位置之前的分段文件会被删掉
+ * 进程在写一条记录的中途崩溃时，分段结尾会留下半条记录，重放时CRC校验不过就停在那里
+ *
+ * 鉴权库可用但仍然写入失败的记录，先追加到同目录下的死信文件 dead-letter.log 再跳过，由管理员按文件内容手动处理
+ */
+public class WriteAheadLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    //一个分段文件最大 64MB
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String DEAD_LETTER = "dead-letter.log";
+
+    private final File dir;
+    //每条记录写完是否马上刷盘，关闭的话进程崩溃不会丢数据，但机器掉电可能丢最后几条
+    private final boolean sync;
+
+    private long segment;
+    private FileChannel channel;
+
+    /**
+     * @param dir 日志目录，不存在则创建
+     * @param sync 每条记录写完是否马上刷盘
+     * @throws IOException 目录无法创建或者无法写入
+     */
+    public WriteAheadLog(File dir, boolean sync) throws IOException {
+        this.dir = dir;
+        this.sync = sync;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("无法创建鉴权库预写日志目录 " + dir);
+        }
+    }
+
+    /**
+     * 读取检查点之后所有还没有写入鉴权库的记录，然后新开一个分段用于后续的追加
+     * 只在启动时调用一次，并且要在第一次 append 之前调用
+     * @return 按写入顺序排列的记录
+     */
+    public synchronized List<Entry> recover() throws IOException {
+        long[] checkpoint = readCheckpoint();
+        List<Long> segments = listSegments();
+        List<Entry> entries = new ArrayList<>();
+        for (long seq : segments) {
+            if (seq < checkpoint[0]) {
+                continue;
+            }
+            readSegment(seq, seq == checkpoint[0] ? checkpoint[1] : 0, entries);
+        }
+        //旧分段结尾可能有半条记录，新的记录一律写到新分段中
+        segment = Math.max(checkpoint[0], segments.isEmpty() ? 0 : segments.get(segments.size() - 1)) + 1;
+        openSegment();
+        LOGGER.info("鉴权库预写日志恢复完成 目录:{} 待重放记录:{} 当前分段:{}", dir, entries.size(), segment);
+        return entries;
+    }
+
+    /**
+     * 追加一条记录
+     * @return 记录本身以及它在日志中的位置，写入鉴权库之后用这个位置更新检查点
+     */
+    public synchronized Entry append(Record record) throws IOException {
+        byte[] payload = record.encode();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length + 8);
+        buffer.putInt(payload.length).put(payload).putLong(crc.getValue());
+        buffer.flip();
+
+        if (channel.position() + buffer.remaining() > SEGMENT_SIZE && channel.position() > 0) {
+            channel.close();
+            segment++;
+            openSegment();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        return new Entry(record, segment, channel.position());
+    }
+
+    /**
+     * 更新检查点，并删除已经完全写入鉴权库的分段
+     * @param entry 最后一条已经写入鉴权库的记录
+     */
+    public void checkpoint(Entry entry) throws IOException {
+        File tmp = new File(dir, CHECKPOINT + ".tmp");
+        Files.write(tmp.toPath(), (entry.segment + "," + entry.offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long seq : listSegments()) {
+            if (seq < entry.segment) {
+                Files.deleteIfExists(segmentFile(seq).toPath());
+            }
+        }
+    }
+
+    /**
+     * 把一条要跳过的记录追加到死信文件并刷盘，成功之后才能推进检查点跳过它
+     * 每条记录一行：时间、操作类型、失败原因、各个参数，用制表符分隔，其中的制表符和换行转义成 \t \n
+     * @param entry 要跳过的记录
+     * @param reason 失败原因
+     */
+    public synchronized void deadLetter(Entry entry, String reason) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(Instant.now()).append('\t')
+                .append(entry.record.type).append('\t').append(escape(reason));
+        for (String arg : entry.record.args) {
+            line.append('\t').append(escape(arg));
+        }
+        line.append('\n');
+        try (FileChannel deadLetter = FileChannel.open(new File(dir, DEAD_LETTER).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                deadLetter.write(buffer);
+            }
+            deadLetter.force(false);
+        }
+    }
+
+    private static String escape(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, SEGMENT_PREFIX + seq + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * 读取一个分段中指定偏移之后的所有完整记录
+     */
+    private void readSegment(long seq, long from, List<Entry> entries) throws IOException {
+        File file = segmentFile(seq);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long offset = 0;
+            while (offset < from) {
+                long skipped = in.skip(from - offset);
+                if (skipped <= 0) {
+                    return;
+                }
+                offset += skipped;
+            }
+            while (true) {
+                byte[] payload;
+                long crcValue;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > SEGMENT_SIZE) {
+                        LOGGER.warn("鉴权库预写日志 {} 在偏移 {} 处记录长度异常，忽略之后的内容", file, offset);
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crcValue = in.readLong();
+                } catch (EOFException e) {
+                    //正常结束，或者结尾是写了一半的记录
+                    return;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != crcValue) {
+                    LOGGER.warn("鉴权库预写日志 {} 在偏移 {} 处校验失败，忽略之后的内容", file, offset);
+                    return;
+                }
+                offset += 4 + payload.length + 8;
+                entries.add(new Entry(Record.decode(payload), seq, offset));
+            }
+        }
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File file = new File(dir, CHECKPOINT);
+        if (!file.exists()) {
+            return new long[]{0, 0};
+        }
+        String[] parts = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(",");
+        return new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+    }
+
+    private List<Long> listSegments() {
+        String[] names = dir.list((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<Long> segments = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    //不是日志分段文件，忽略
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * 日志中的一条记录，以及它结束的位置
+     */
+    public static class Entry {
+        private final Record record;
+        private final long segment;
+        private final long offset;
+
+        private Entry(Record record, long segment, long offset) {
+            this.record = record;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public Record getRecord() {
+            return record;
+        }
+    }
+
+    /**
+     * 一条要写入鉴权库的操作
+     */
+    public static class Record {
+        //建表：owner、库.表、字段列表、表路径
+        public static final byte CREATE_TABLE = 1;
+        //删表：库.表、表路径
+        public static final byte DROP_TABLE = 2;
+        //改表字段：库.表、新的字段列表、被删除的字段...
+        public static final byte ALTER_TABLE = 3;
+        //新增一批分区：库.表、分区名1、分区路径1、分区名2、分区路径2...
+        public static final byte ADD_PARTITIONS = 4;
+        //删除一批分区：库.表、分区名1、分区名2...
+        public static final byte DROP_PARTITIONS = 5;
+
+        private final byte type;
+        private final List<String> args;
+
+        public Record(byte type, String... args) {
+            this.type = type;
+            this.args = Arrays.asList(args);
+        }
+
+        private Record(byte type, List<String> args) {
+            this.type = type;
+            this.args = args;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String arg(int i) {
+            return args.get(i);
+        }
+
+        public int argCount() {
+            return args.size();
+        }
+
+        private byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeInt(args.size());
+            for (String arg : args) {
+                if (arg == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] value = arg.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static Record decode(byte[] payload) {
+            ByteBuffer buffer = ByteBuffer.wrap(payload);
+            byte type = buffer.get();
+            int count = buffer.getInt();
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0) {
+                    args.add(null);
+                } else {
+                    args.add(new String(payload, buffer.position(), length, StandardCharsets.UTF_8));
+                    buffer.position(buffer.position() + length);
+                }
+            }
+            return new Record(type, args);
+        }
+
+        @Override
+        public String toString() {
+            return "type=" + type + " args=" + args;
+        }
+    }
+}
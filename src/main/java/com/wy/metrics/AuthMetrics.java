@@ -0,0 +1,258 @@
+package com.wy.metrics;
+
+import com.wy.utils.MysqlUtil;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsException;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.metrics2.lib.Interns;
+import org.apache.hadoop.metrics2.lib.MetricsRegistry;
+import org.apache.hadoop.metrics2.lib.MutableCounterLong;
+import org.apache.hadoop.metrics2.lib.MutableQuantiles;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 鉴权插件的 hadoop metrics2 指标源，整个进程一个
+ *
+ * hiveserver2 中由 MyHiveAuthorization 注册，元数据服务中由两个监听类注册，谁先用到谁注册，只注册一次
+ * 注册之后指标会出现在进程的 JMX 中，名字是 Hadoop:service=hiveauth,name=HiveAuth
+ * 已有的 JMX exporter 之类的采集方式不需要额外配置就能拿到
+ *
+ * 指标分三类：
+ *   延迟分位数：每种操作类型的鉴权耗时，以及鉴权中各个阶段(元数据获取、线程池排队、连接池等待、鉴权库查询)的耗时
+ *   鉴权结果计数：通过、拒绝、出错
+ *   资源状态：每个连接池的活跃、空闲、等待连接数，以及鉴权线程池的排队任务数、活跃线程数
+ */
+public class AuthMetrics implements MetricsSource {
+    private static final Log LOG = LogFactory.getLog(AuthMetrics.class);
+
+    //在 JMX 中的名字，以及 metrics2 的配置前缀(hadoop-metrics2-hiveauth.properties)
+    public static final String SOURCE_NAME = "HiveAuth";
+    public static final String PREFIX = "hiveauth";
+
+    //分位数的统计窗口，秒
+    private static final int QUANTILE_INTERVAL = 60;
+
+    private static volatile AuthMetrics instance;
+
+    /**
+     * 鉴权结果
+     */
+    public enum Decision {
+        ALLOWED, DENIED, ERROR
+    }
+
+    /**
+     * 一次鉴权中的阶段
+     */
+    public enum Phase {
+        //从元数据服务获取表信息
+        METASTORE_FETCH("PhaseMetastoreFetch"),
+        //任务提交到鉴权线程池之后，到开始执行之间的排队时间
+        QUEUE_WAIT("PhaseQueueWait"),
+        //从连接池拿到连接的等待时间
+        CONNECTION_WAIT("PhaseConnectionWait"),
+        //鉴权库查询的执行和结果读取
+        JDBC("PhaseJdbc");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+    }
+
+    /**
+     * 可能抛出受检异常的代码块
+     */
+    public interface Body<E extends Exception> {
+        void run() throws E;
+    }
+
+    private final MetricsRegistry registry = new MetricsRegistry(Interns.info(SOURCE_NAME, "hive 鉴权插件指标")).setContext(PREFIX);
+
+    private final MutableCounterLong allowed = registry.newCounter("DecisionsAllowed", "鉴权通过次数", 0L);
+    private final MutableCounterLong denied = registry.newCounter("DecisionsDenied", "鉴权拒绝次数", 0L);
+    private final MutableCounterLong errors = registry.newCounter("DecisionsError", "鉴权出错次数", 0L);
+    private final MutableCounterLong syncErrors = registry.newCounter("EventSyncError", "元数据事件同步鉴权库出错次数", 0L);
+    private final MutableCounterLong partitionSyncErrors = registry.newCounter("PartitionSyncError", "分区清单同步鉴权库出错次数", 0L);
+    private final MutableCounterLong auditDropped = registry.newCounter("AuditDropped", "审计缓冲区已满丢弃的记录数", 0L);
+    private final MutableCounterLong memoHits = registry.newCounter("DecisionMemoHit", "语句级通过结果缓存命中次数", 0L);
+
+    //指标名 -> 分位数，操作类型在运行中才知道，所以按需创建
+    private final Map<String, MutableQuantiles> quantiles = new ConcurrentHashMap<>();
+
+    //连接池名 -> 连接池和它配套的线程池
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    private AuthMetrics() {
+        for (Phase phase : Phase.values()) {
+            quantile(phase.metricName);
+        }
+    }
+
+    /**
+     * 获取进程中唯一的指标源，第一次调用时注册到 metrics2
+     */
+    public static AuthMetrics getInstance() {
+        if (instance == null) {
+            synchronized (AuthMetrics.class) {
+                if (instance == null) {
+                    AuthMetrics metrics = new AuthMetrics();
+                    try {
+                        //hiveserver2 和元数据服务默认都不会启动 metrics2，已经启动了的话这里什么都不做
+                        DefaultMetricsSystem.initialize(PREFIX);
+                        DefaultMetricsSystem.instance().register(SOURCE_NAME, "hive 鉴权插件指标", metrics);
+                    } catch (MetricsException e) {
+                        //同一个进程中由不同的类加载器加载了两份插件时会重名，指标只是不再输出，不影响鉴权
+                        LOG.warn("鉴权插件指标注册失败 " + e.getMessage());
+                    }
+                    instance = metrics;
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 记录一次鉴权的结果和耗时
+     * @param operation 操作类型，hiveserver2 中是 HiveOperationType，元数据服务中是 PreEventType
+     * @param startNanos 鉴权开始时的 System.nanoTime
+     * @param decision 鉴权结果
+     */
+    public void recordDecision(String operation, long startNanos, Decision decision) {
+        quantile("Check_" + operation).add(micros(startNanos));
+        switch (decision) {
+            case ALLOWED:
+                allowed.incr();
+                break;
+            case DENIED:
+                denied.incr();
+                break;
+            default:
+                errors.incr();
+        }
+    }
+
+    /**
+     * 记录一个阶段的耗时
+     * @param startNanos 阶段开始时的 System.nanoTime
+     */
+    public void recordPhase(Phase phase, long startNanos) {
+        quantile(phase.metricName).add(micros(startNanos));
+    }
+
+    /**
+     * 分区清单同步鉴权库失败一次，分区操作本身照常完成，清单的差异由对账工具修正
+     */
+    public void partitionSyncError() {
+        partitionSyncErrors.incr();
+    }
+
+    /**
+     * 审计日志缓冲区满了丢弃一条记录
+     */
+    public void auditDropped() {
+        auditDropped.incr();
+    }
+
+    /**
+     * 语句级通过结果缓存命中一次，整个语句没有访问元数据服务和鉴权库
+     */
+    public void memoHit() {
+        memoHits.incr();
+    }
+
+    /**
+     * 执行一个元数据事件的同步处理，记录耗时，出现异常时记一次同步出错
+     * @param event 事件类型
+     */
+    public <E extends Exception> void timeEvent(String event, Body<E> body) throws E {
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } catch (Exception e) {
+            syncErrors.incr();
+            throw e;
+        } finally {
+            quantile("Event_" + event).add(micros(start));
+        }
+    }
+
+    /**
+     * 登记一个连接池，之后它的状态会随指标输出
+     * @param name 连接池名，会作为指标名的前缀，重名时自动加序号
+     * @param mysqlUtil 连接池
+     * @param executor 配套的鉴权线程池，没有则为null
+     * @return 实际登记的名字，注销时使用
+     */
+    public String registerPool(String name, MysqlUtil mysqlUtil, ExecutorService executor) {
+        Pool pool = new Pool(mysqlUtil, executor);
+        String actual = name;
+        for (int i = 2; pools.putIfAbsent(actual, pool) != null; i++) {
+            actual = name + i;
+        }
+        return actual;
+    }
+
+    /**
+     * 连接池关闭时注销
+     */
+    public void unregisterPool(String name) {
+        pools.remove(name);
+    }
+
+    @Override
+    public void getMetrics(MetricsCollector collector, boolean all) {
+        MetricsRecordBuilder builder = collector.addRecord(registry.info());
+        registry.snapshot(builder, all);
+        for (Map.Entry<String, Pool> entry : pools.entrySet()) {
+            String name = entry.getKey();
+            Pool pool = entry.getValue();
+            HikariPoolMXBean poolBean = pool.mysqlUtil.getPoolMXBean();
+            if (poolBean != null) {
+                builder.addGauge(Interns.info(name + "Active", "正在使用的连接数"), poolBean.getActiveConnections())
+                        .addGauge(Interns.info(name + "Idle", "空闲连接数"), poolBean.getIdleConnections())
+                        .addGauge(Interns.info(name + "Pending", "等待连接的线程数"), poolBean.getThreadsAwaitingConnection())
+                        .addGauge(Interns.info(name + "Total", "连接总数"), poolBean.getTotalConnections());
+            }
+            if (pool.executor instanceof ThreadPoolExecutor) {
+                ThreadPoolExecutor executor = (ThreadPoolExecutor) pool.executor;
+                builder.addGauge(Interns.info(name + "ExecutorQueued", "鉴权线程池排队的任务数"), executor.getQueue().size())
+                        .addGauge(Interns.info(name + "ExecutorActive", "鉴权线程池正在执行任务的线程数"), executor.getActiveCount());
+            }
+        }
+    }
+
+    private MutableQuantiles quantile(String name) {
+        MutableQuantiles quantile = quantiles.get(name);
+        if (quantile == null) {
+            quantile = quantiles.computeIfAbsent(name, k ->
+                    registry.newQuantiles(k, k + " 耗时", "Ops", "LatencyMicros", QUANTILE_INTERVAL));
+        }
+        return quantile;
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+
+    private static class Pool {
+        private final MysqlUtil mysqlUtil;
+        private final ExecutorService executor;
+
+        private Pool(MysqlUtil mysqlUtil, ExecutorService executor) {
+            this.mysqlUtil = mysqlUtil;
+            this.executor = executor;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.wy.utils;
+
+import org.apache.hadoop.conf.Configuration;
+
+import java.math.BigInteger;
+import java.util.Objects;
+
+/**
+ * 鉴权库连接池的配置
+ *
+ * 从hive配置中读取 hive.auth.database.* 的参数并做好校验，校验不通过抛出 IllegalArgumentException
+ * 由调用方按各自的场景包装成对应的异常
+ *
+ * 这个类的对象是不可变的，并且实现了 equals 和 hashCode，可以直接作为共享连接池的key
+ * 配置完全一样的地方就共用同一个连接池
+ */
+public class AuthDbConfig {
+    private final String url;
+    private final String driver;
+    private final long timeout;
+    private final String username;
+    private final String password;
+    private final int hp_maxsize;
+    private final int hp_minidle;
+    private final long hp_id_timeout;
+    private final long hp_lefttime;
+
+    private AuthDbConfig(String url, String driver, long timeout, String username, String password, int hp_maxsize, int hp_minidle, long hp_id_timeout, long hp_lefttime) {
+        this.url = url;
+        this.driver = driver;
+        this.timeout = timeout;
+        this.username = username;
+        this.password = password;
+        this.hp_maxsize = hp_maxsize;
+        this.hp_minidle = hp_minidle;
+        this.hp_id_timeout = hp_id_timeout;
+        this.hp_lefttime = hp_lefttime;
+    }
+
+    /**
+     * 从配置中解析并校验鉴权库的连接池参数
+     * @param config hive的配置对象
+     * @param maxSizeKey 连接池大小的配置名，hiveserer2的鉴权组件和元数据服务的监听组件用的不是同一个
+     * @return 校验通过的配置
+     * @throws IllegalArgumentException 参数超出预期范围
+     */
+    public static AuthDbConfig fromConf(Configuration config, String maxSizeKey) {
+        String url = config.get("hive.auth.database.url");
+        String driver = config.get("hive.auth.database.driver");
+        String username = config.get("hive.auth.database.username");
+        String password = config.get("hive.auth.database.password");
+
+        //数据库连接超时时间
+        BigInteger timeout_bi = new BigInteger(config.get("hive.auth.database.timeout"));
+        if ( timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0   ){
+            throw new IllegalArgumentException("鉴权连接池连接超时时间超过预期Long值");
+        }
+
+        //数据库连接池大小校验
+        BigInteger hp_maxsize_bi = new BigInteger(config.get(maxSizeKey));
+        if ( hp_maxsize_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_maxsize_bi.compareTo(BigInteger.valueOf(Integer.MAX_VALUE)) > 0 ){
+            throw new IllegalArgumentException("鉴权连接池大小超过预期Int值");
+        }
+
+        //数据库连接池空闲连接大小校验
+        BigInteger hp_minidle_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.minidle"));
+        if ( hp_minidle_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_minidle_bi.compareTo(BigInteger.valueOf( hp_maxsize_bi.intValue() / 2 )) > 0   ){
+            throw new IllegalArgumentException("鉴权连接池空闲连接大小超过预期Int值");
+        }
+
+        //数据库连接池空闲超时校验
+        BigInteger hp_id_timeout_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.idle.timeout"));
+        if ( hp_id_timeout_bi.compareTo(BigInteger.valueOf(0)) < 0 || hp_id_timeout_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0  ){
+            throw new IllegalArgumentException("鉴权连接池空闲超时时间超过预期Long值");
+        }
+
+        //数据库连接池连接最大存活时间校验
+        BigInteger hp_lefttime_bi = new BigInteger(config.get("hive.auth.database.hikari.pool.max.lifetime"));
+        if (  hp_lefttime_bi.compareTo(hp_id_timeout_bi) < 0 || hp_lefttime_bi.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) > 0 ) {
+            throw new IllegalArgumentException("鉴权连接池连接存在时间超过预期Long值");
+        }
+
+        return new AuthDbConfig(url, driver, timeout_bi.longValue(), username, password,
+                hp_maxsize_bi.intValue(), hp_minidle_bi.intValue(), hp_id_timeout_bi.longValue(), hp_lefttime_bi.longValue());
+    }
+
+    /**
+     * 解析一个整数参数并校验范围，AuthorizerConfig 和 MetaListenerConfig 共用
+     * @param key 完整的参数名
+     * @param message 超出范围时的报错信息
+     * @throws IllegalArgumentException 参数不是数字或者超出范围
+     */
+    static long parseRange(Configuration conf, String key, String defaultValue, long min, long max, String message) {
+        BigInteger value;
+        try {
+            value = new BigInteger(conf.get(key, defaultValue).trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(message + " " + key, e);
+        }
+        if ( value.compareTo(BigInteger.valueOf(min)) < 0 || value.compareTo(BigInteger.valueOf(max)) > 0 ){
+            throw new IllegalArgumentException(message);
+        }
+        return value.longValue();
+    }
+
+    /**
+     * 按当前配置创建连接池
+     */
+    public MysqlUtil createMysqlUtil() {
+        return new MysqlUtil(url, driver, timeout, username, password, hp_maxsize, hp_minidle, hp_id_timeout, hp_lefttime);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public int getMaxSize() {
+        return hp_maxsize;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        AuthDbConfig that = (AuthDbConfig) o;
+        return timeout == that.timeout && hp_maxsize == that.hp_maxsize && hp_minidle == that.hp_minidle
+                && hp_id_timeout == that.hp_id_timeout && hp_lefttime == that.hp_lefttime
+                && Objects.equals(url, that.url) && Objects.equals(driver, that.driver)
+                && Objects.equals(username, that.username) && Objects.equals(password, that.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(url, driver, timeout, username, password, hp_maxsize, hp_minidle, hp_id_timeout, hp_lefttime);
+    }
+
+    /**
+     * 用于日志输出，不包含密码
+     */
+    @Override
+    public String toString() {
+        return "AuthDbConfig{url=" + url + ", username=" + username + ", maxsize=" + hp_maxsize + ", minidle=" + hp_minidle + "}";
+    }
+}
@@ -0,0 +1,170 @@
+package com.wy.utils;
+
+import com.wy.metrics.AuthMetrics;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 进程级别的鉴权库连接池、鉴权任务线程池的注册中心
+ *
+ * 原来 MyHiveAuthorization 每个会话都会new一个连接池和一个线程池，并且都不会被关闭
+ * 会话一多，hiveserver2上就会挂着成千上万的空闲连接和线程
+ *
+ * 现在按 AuthDbConfig 作为key，配置一样的所有会话共用同一套连接池和线程池
+ * hive没有给鉴权插件提供hiveserver2启动和关闭的回调，插件对象是 HiveAuthorizerFactory 在每个会话中new出来的，
+ * 所以共享资源只能在第一个会话初始化时懒创建，连接池在这时按minidle预先建好连接，后面的会话接入就不需要再等连接池启动
+ * 同样也没有会话结束的回调，不能按会话个数计数关闭
+ *
+ * 之前用虚引用跟踪会话对象，最后一个会话被GC回收后关闭连接池和线程池，但这样有两个问题：
+ *   空闲一段时间所有会话都被回收后连接池被关掉，下一个会话又要冷启动连接池
+ *   java8没有 reachabilityFence ，会话对象不可达时它提交的鉴权任务可能还在跑，连接池被关掉任务就会失败
+ * 所以现在计数的对象从会话换成了正在进行的鉴权：会话每次用到连接池时 enter ，用完 release
+ * 正常情况下所有会话的配置一样，只有一套资源；会话中 set 了连接池参数，或者配置变更后的新会话，会创建新的一套
+ * 注册中心最多保留 MAX_ENTRIES 套，超出上限时淘汰最久没有使用的一套：先从注册中心移除，等上面正在进行的鉴权都结束后关闭
+ * 持有淘汰资源的会话下一次 enter 时发现它已经退役，会重新按配置获取
+ *
+ * MetaAuthDb 、PermissionReplica 这种跟随进程生命周期的使用者用 acquirePinned 获取，它们的资源不会被淘汰
+ * 连接池的线程都是守护线程，不影响进程退出，空闲连接的数量由 hive.auth.database.hikari.pool.minidle 和 idle.timeout 控制
+ */
+public class AuthDbRegistry {
+    private static final Log LOG = LogFactory.getLog(AuthDbRegistry.class);
+
+    //最多同时保留几套配置不同的共享资源
+    static final int MAX_ENTRIES = 4;
+
+    //配置 -> 共享资源，按访问顺序排列，最前面的是最久没有使用的
+    private static final LinkedHashMap<AuthDbConfig, Handle> REGISTRY = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 获取共享资源并登记一次使用，用完之后必须调用 Handle.release
+     * 拿到的资源在 release 之前不会被关闭
+     * @param config 鉴权库连接池配置
+     * @param threadSize 鉴权任务线程池的大小
+     * @return 共享资源
+     */
+    public static Handle enter(AuthDbConfig config, int threadSize) {
+        while (true) {
+            Handle handle = acquire(config, threadSize, "AuthorizerPool", false);
+            //刚拿到就被其他会话的新配置挤出去了，重新获取一次，这时注册中心里已经没有它了
+            if (handle.enter()) {
+                return handle;
+            }
+        }
+    }
+
+    /**
+     * 获取跟随进程生命周期的共享资源，不会被淘汰，也不需要 release
+     * @param metricsName 创建时连接池状态在指标中的名字，已经创建过的以第一次的为准
+     */
+    public static Handle acquirePinned(AuthDbConfig config, int threadSize, String metricsName) {
+        return acquire(config, threadSize, metricsName, true);
+    }
+
+    private static Handle acquire(AuthDbConfig config, int threadSize, String metricsName, boolean pinned) {
+        synchronized (REGISTRY) {
+            Handle handle = REGISTRY.get(config);
+            if (handle == null) {
+                handle = new Handle(config, threadSize, metricsName);
+                REGISTRY.put(config, handle);
+                LOG.info("创建共享鉴权库资源 " + config);
+                evict();
+            }
+            if (pinned) {
+                handle.pinned = true;
+            }
+            return handle;
+        }
+    }
+
+    /**
+     * 超出上限时从最久没有使用的开始淘汰没有固定的资源，调用方持有 REGISTRY 的锁
+     */
+    private static void evict() {
+        Iterator<Map.Entry<AuthDbConfig, Handle>> iterator = REGISTRY.entrySet().iterator();
+        while (REGISTRY.size() > MAX_ENTRIES && iterator.hasNext()) {
+            Map.Entry<AuthDbConfig, Handle> entry = iterator.next();
+            if (!entry.getValue().pinned) {
+                iterator.remove();
+                LOG.info("共享鉴权库资源超过 " + MAX_ENTRIES + " 套，淘汰 " + entry.getKey());
+                entry.getValue().retire();
+            }
+        }
+    }
+
+    /**
+     * 共享的资源本体，进程内配置一样的使用者拿到的是同一个对象
+     */
+    public static class Handle {
+        private final MysqlUtil mysqlUtil;
+        private final ExecutorService executor;
+        private final String metricsName;
+        //由 REGISTRY 的锁保护
+        private boolean pinned;
+        //下面两个由当前对象的锁保护
+        private int users;
+        private boolean retired;
+
+        private Handle(AuthDbConfig config, int threadSize, String metricsName) {
+            this.mysqlUtil = config.createMysqlUtil();
+            AtomicInteger threadId = new AtomicInteger();
+            ThreadFactory threadFactory = r -> {
+                Thread thread = new Thread(r, "hive-auth-check-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            this.executor = Executors.newFixedThreadPool(threadSize, threadFactory);
+            this.metricsName = AuthMetrics.getInstance().registerPool(metricsName, mysqlUtil, executor);
+        }
+
+        /**
+         * 登记一次使用，资源已经被淘汰时返回false
+         */
+        private synchronized boolean enter() {
+            if (retired) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        /**
+         * 结束一次使用，被淘汰的资源在最后一次使用结束时关闭
+         */
+        public synchronized void release() {
+            users--;
+            if (retired && users == 0) {
+                close();
+            }
+        }
+
+        private synchronized void retire() {
+            retired = true;
+            if (users == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            executor.shutdown();
+            mysqlUtil.close();
+            AuthMetrics.getInstance().unregisterPool(metricsName);
+            LOG.info("关闭已淘汰的共享鉴权库资源 " + metricsName);
+        }
+
+        public MysqlUtil getMysqlUtil() {
+            return mysqlUtil;
+        }
+
+        public ExecutorService getExecutor() {
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.wy.utils;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * hiveserver2 一侧鉴权插件的调优参数
+ *
+ * 原来 MyHiveAuthorization 的构造器里每个参数都是一段 BigInteger 解析加范围校验，十几段几乎一样的代码
+ * 现在集中在这里解析、校验一次，和 AuthDbConfig 一样校验不通过抛出 IllegalArgumentException ，由调用方包装成对应的异常
+ * 鉴权库连接池的参数仍然由 AuthDbConfig 负责，这里只持有解析好的结果
+ *
+ * 这个类的对象是不可变的，每个会话初始化时解析一次
+ * 缓存、快照、审计日志这些进程级别的组件只认第一个会话的参数，批量鉴权、鉴权期限、show过滤这些按会话生效
+ */
+public class AuthorizerConfig {
+    private static final String PREFIX = "hive.auth.database.authorizer.";
+
+    private final AuthDbConfig authDbConfig;
+
+    //鉴权结果缓存
+    private final long cacheMaxSize;
+    private final long cacheTtl;
+    //字段权限位图索引
+    private final long indexMaxSize;
+    private final long indexTtl;
+    //表信息缓存
+    private final long tableCacheMaxSize;
+    private final long tableCacheTtl;
+    //批量鉴权
+    private final boolean batchCheck;
+    //语句鉴权期限
+    private final long statementTimeout;
+    private final int metastoreTimeoutPercent;
+    //内存权限快照和权限镜像
+    private final boolean snapshotEnabled;
+    private final long snapshotInterval;
+    private final String snapshotImageDir;
+    private final long snapshotImageMinInterval;
+    //拒绝结果缓存
+    private final long denyCacheMaxSize;
+    private final long denyCacheTtl;
+    //语句级通过结果缓存
+    private final long memoMaxSize;
+    private final long memoTtl;
+    //审计日志
+    private final String auditDir;
+    private final int auditBufferSize;
+    private final long auditFileSize;
+    private final int auditFileCount;
+    //show tables / show databases 过滤
+    private final boolean showFilter;
+    private final long showFilterTtl;
+    private final long showFilterMaxSize;
+
+    private AuthorizerConfig(Configuration conf) {
+        this.authDbConfig = AuthDbConfig.fromConf(conf, PREFIX + "hikari.pool.maxsize");
+
+        /*
+        鉴权结果缓存的最大条目数，默认 0 也就是不启用
+        没有启用权限快照时，只有经过当前hiveserver2的写操作会作废它，外部回收的权限最多存活时间之后才生效
+        启用了权限快照时，快照刷新发现权限变化的表马上作废
+        容量满了之后按最近最少使用淘汰，没有按访问频率的准入策略
+         */
+        this.cacheMaxSize = parse(conf, "cache.maxsize", "0", 0, Long.MAX_VALUE, "鉴权结果缓存大小超过预期Long值");
+        //鉴权结果缓存的最长存活时间，默认 60秒(60000)，权限先到期的话以权限到期时间为准
+        this.cacheTtl = parse(conf, "cache.ttl", "60000", 0, Long.MAX_VALUE, "鉴权结果缓存存活时间超过预期Long值");
+
+        //字段权限位图索引最多缓存多少个 用户+表 的权限，默认 0 也就是不启用
+        this.indexMaxSize = parse(conf, "index.maxsize", "0", 0, Long.MAX_VALUE, "字段权限索引大小超过预期Long值");
+        //字段权限位图索引中权限的存活时间，默认 60秒(60000)，回收的权限最多这么长时间生效
+        this.indexTtl = parse(conf, "index.ttl", "60000", 0, Long.MAX_VALUE, "字段权限索引存活时间超过预期Long值");
+
+        //表信息缓存的最大表个数，默认 50000，配置为 0 则不启用缓存
+        this.tableCacheMaxSize = parse(conf, "table.cache.maxsize", "50000", 0, Long.MAX_VALUE, "表信息缓存大小超过预期Long值");
+        //表信息缓存的存活时间，默认 30秒(30000)，owner变更之后最多这么长时间生效
+        this.tableCacheTtl = parse(conf, "table.cache.ttl", "30000", 0, Long.MAX_VALUE, "表信息缓存存活时间超过预期Long值");
+
+        //是否开启批量鉴权，默认关闭，也就是沿用一张表一个并行任务的方式
+        this.batchCheck = conf.getBoolean(PREFIX + "batch.enable", false);
+
+        //一个语句鉴权的总期限，默认 60秒(60000)，配置为 0 则不限制
+        this.statementTimeout = parse(conf, "statement.timeout", "60000", 0, Long.MAX_VALUE / 1000000, "语句鉴权期限超过预期Long值");
+        //总期限中元数据获取阶段最多占的百分比，默认 50，剩下的留给查鉴权库
+        this.metastoreTimeoutPercent = (int) parse(conf, "statement.timeout.metastore.percent", "50", 1, 99, "语句鉴权期限中元数据获取阶段的占比超过预期范围(1-99)");
+
+        //是否启用内存权限快照，默认关闭，以及快照的增量刷新间隔，默认 5秒(5000)
+        this.snapshotEnabled = conf.getBoolean(PREFIX + "snapshot.enable", false);
+        this.snapshotInterval = parse(conf, "snapshot.refresh.interval", "5000", 1, Long.MAX_VALUE / 10, "权限快照刷新间隔超过预期Long值");
+        //权限镜像目录，默认为空也就是不启用，同一台机器上的多个hiveserver2配置同一个目录时共用一份磁盘上的权限镜像
+        this.snapshotImageDir = conf.get(PREFIX + "snapshot.image.dir", "").trim();
+        //两次写出权限镜像之间的最小间隔，默认 30秒(30000)
+        this.snapshotImageMinInterval = parse(conf, "snapshot.image.min.interval", "30000", 0, Long.MAX_VALUE, "权限镜像写出最小间隔超过预期Long值");
+
+        //拒绝结果缓存的最大条目数，默认 0 也就是不启用
+        this.denyCacheMaxSize = parse(conf, "deny.cache.maxsize", "0", 0, Long.MAX_VALUE, "拒绝结果缓存大小超过预期Long值");
+        //拒绝结果缓存的最长存活时间，默认 5秒(5000)，没有启用权限快照时，新增的权限最多这么长时间生效
+        this.denyCacheTtl = parse(conf, "deny.cache.ttl", "5000", 0, Long.MAX_VALUE, "拒绝结果缓存存活时间超过预期Long值");
+
+        //语句级通过结果缓存的最大条目数，默认 0 也就是不启用，没有启用内存权限快照时即使配置了也不启用
+        this.memoMaxSize = parse(conf, "memo.maxsize", "0", 0, Long.MAX_VALUE, "语句鉴权结果缓存大小超过预期Long值");
+        //语句级通过结果缓存的最长存活时间，默认 30秒(30000)，权限先到期的话以权限到期时间为准
+        this.memoTtl = parse(conf, "memo.ttl", "30000", 0, Long.MAX_VALUE / 2, "语句鉴权结果缓存存活时间超过预期Long值");
+
+        /*
+        审计日志目录，默认为空也就是不启用
+        启用后每一次鉴权的用户、操作、表、字段、结果、拒绝原因、耗时写到这个目录下的 hive-auth-audit.log 中
+         */
+        this.auditDir = conf.get(PREFIX + "audit.dir", "");
+        //审计日志缓冲区能放多少条记录，默认 65536，写文件跟不上时超出的记录会被丢弃
+        this.auditBufferSize = (int) parse(conf, "audit.buffer.size", "65536", 1, 1 << 30, "审计日志缓冲区大小超过预期Int值");
+        //单个审计文件的大小上限，默认 256M(268435456)，超过之后滚动
+        this.auditFileSize = parse(conf, "audit.file.size", "268435456", 1, Long.MAX_VALUE, "审计文件大小超过预期Long值");
+        //保留的历史审计文件个数，默认 10
+        this.auditFileCount = (int) parse(conf, "audit.file.count", "10", 0, Integer.MAX_VALUE, "审计文件个数超过预期Int值");
+
+        //是否按用户过滤 show tables / show databases 的结果，默认关闭，也就是所有人都能看到所有的库表
+        this.showFilter = conf.getBoolean(PREFIX + "show.filter.enable", false);
+        //没有启用内存权限快照时，一个用户的可见库表缓存多久，以及库的owner缓存多久，默认 30秒(30000)
+        this.showFilterTtl = parse(conf, "show.filter.ttl", "30000", 1, Long.MAX_VALUE, "库表可见性缓存存活时间超过预期Long值");
+        //没有启用内存权限快照时，可见库表缓存最多缓存多少个用户，库的owner也最多缓存这么多个库，默认 10000，至少为 1
+        this.showFilterMaxSize = parse(conf, "show.filter.maxsize", "10000", 1, Long.MAX_VALUE, "库表可见性缓存大小超过预期Long值");
+    }
+
+    /**
+     * 从配置中解析并校验鉴权插件的所有参数
+     * @param conf hive的配置对象
+     * @return 校验通过的配置
+     * @throws IllegalArgumentException 参数不是数字或者超出预期范围
+     */
+    public static AuthorizerConfig fromConf(Configuration conf) {
+        return new AuthorizerConfig(conf);
+    }
+
+    /**
+     * 解析一个整数参数并校验范围
+     * @param key 去掉 hive.auth.database.authorizer. 前缀的参数名
+     * @param message 超出范围时的报错信息
+     */
+    private static long parse(Configuration conf, String key, String defaultValue, long min, long max, String message) {
+        return AuthDbConfig.parseRange(conf, PREFIX + key, defaultValue, min, max, message);
+    }
+
+    public AuthDbConfig getAuthDbConfig() {
+        return authDbConfig;
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    public long getIndexMaxSize() {
+        return indexMaxSize;
+    }
+
+    public long getIndexTtl() {
+        return indexTtl;
+    }
+
+    public long getTableCacheMaxSize() {
+        return tableCacheMaxSize;
+    }
+
+    public long getTableCacheTtl() {
+        return tableCacheTtl;
+    }
+
+    public boolean isBatchCheck() {
+        return batchCheck;
+    }
+
+    public long getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    public int getMetastoreTimeoutPercent() {
+        return metastoreTimeoutPercent;
+    }
+
+    public boolean isSnapshotEnabled() {
+        return snapshotEnabled;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * @return 权限镜像目录，没有配置时为空字符串
+     */
+    public String getSnapshotImageDir() {
+        return snapshotImageDir;
+    }
+
+    public long getSnapshotImageMinInterval() {
+        return snapshotImageMinInterval;
+    }
+
+    public long getDenyCacheMaxSize() {
+        return denyCacheMaxSize;
+    }
+
+    public long getDenyCacheTtl() {
+        return denyCacheTtl;
+    }
+
+    public long getMemoMaxSize() {
+        return memoMaxSize;
+    }
+
+    public long getMemoTtl() {
+        return memoTtl;
+    }
+
+    /**
+     * @return 审计日志目录，没有配置时为空字符串
+     */
+    public String getAuditDir() {
+        return auditDir;
+    }
+
+    public int getAuditBufferSize() {
+        return auditBufferSize;
+    }
+
+    public long getAuditFileSize() {
+        return auditFileSize;
+    }
+
+    public int getAuditFileCount() {
+        return auditFileCount;
+    }
+
+    public boolean isShowFilter() {
+        return showFilter;
+    }
+
+    public long getShowFilterTtl() {
+        return showFilterTtl;
+    }
+
+    public long getShowFilterMaxSize() {
+        return showFilterMaxSize;
+    }
+}
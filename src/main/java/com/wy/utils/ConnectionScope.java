@@ -0,0 +1,54 @@
+package com.wy.utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 一次鉴权过程中分配出去的连接
+ *
+ * 原来 MysqlUtil 中用一个所有鉴权共用的 ArrayList 记录分配出去的连接，一个语句被拒绝时关闭列表中的全部连接
+ * 这个列表没有任何同步，并行的鉴权任务同时往里面加会出现并发修改异常
+ * 并且会把同一个连接池上其他语句(比如同一个会话里异步执行的语句)还在用的连接也关掉，导致它们莫名其妙的查询失败
+ *
+ * 现在每个语句的鉴权过程用自己的 ConnectionScope 获取连接，closeAll 只关闭这个语句自己的连接
+ * 用无锁的并发队列记录，多个并行任务同时获取、归还连接不需要加锁
+ */
+public class ConnectionScope {
+    private final MysqlUtil mysqlUtil;
+    private final Queue<Connection> connections = new ConcurrentLinkedQueue<>();
+
+    ConnectionScope(MysqlUtil mysqlUtil) {
+        this.mysqlUtil = mysqlUtil;
+    }
+
+    /**
+     * 从连接池获取一个连接，并记录在当前范围内
+     */
+    public Connection getConnection() throws SQLException {
+        Connection connection = mysqlUtil.getConnection();
+        connections.add(connection);
+        return connection;
+    }
+
+    /**
+     * 归还单个连接
+     */
+    public void closeConnection(Connection connection) {
+        if (connection != null) {
+            connections.remove(connection);
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 归还当前范围内所有还没有归还的连接，不影响其他范围
+     */
+    public void closeAll() {
+        Connection connection;
+        while ((connection = connections.poll()) != null) {
+            mysqlUtil.closeConnection(connection);
+        }
+    }
+}
@@ -9,10 +9,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Stream;
 
 /**
  * 比较表字段变化的算法类
+ *
+ * 改表事件先用 sameSchema 判断结构是否变了，变了才创建 FieldDiff 做按名字、按类型的完整比较
  */
 public class FieldDiff {
     //新增的字段
@@ -30,34 +31,77 @@ public class FieldDiff {
     private List<FieldSchema> newtable_fields = null;
 
     public FieldDiff(AlterTableEvent tableEvent) {
-        this.oldtable_fields = getAllFields(tableEvent.getOldTable());
-        this.newtable_fields = getAllFields(tableEvent.getNewTable());
-        this.compareFieldLists(oldtable_fields, newtable_fields);
-        //处理出新表字段的列表
-        StringBuilder tmp = new StringBuilder();
-        newtable_fields.stream().map( f -> f.getName() ).forEach(name -> tmp.append(name).append(","));
-        tmp.deleteCharAt(tmp.length()-1);
-        this.fieldNames = tmp.toString();
+        this(tableEvent.getOldTable(), tableEvent.getNewTable());
     }
 
     public FieldDiff(PreAlterTableEvent tableEvent) {
-        this.oldtable_fields = getAllFields(tableEvent.getOldTable());
-        this.newtable_fields = getAllFields(tableEvent.getNewTable());
+        this(tableEvent.getOldTable(), tableEvent.getNewTable());
+    }
+
+    public FieldDiff(Table oldTable, Table newTable) {
+        this.oldtable_fields = getAllFields(oldTable);
+        this.newtable_fields = getAllFields(newTable);
         this.compareFieldLists(oldtable_fields, newtable_fields);
         //处理出新表字段的列表
         StringBuilder tmp = new StringBuilder();
-        newtable_fields.stream().map( f -> f.getName() ).forEach(name -> tmp.append(name).append(","));
-        tmp.deleteCharAt(tmp.length()-1);
+        for (FieldSchema field : newtable_fields) {
+            if (tmp.length() > 0) {
+                tmp.append(",");
+            }
+            tmp.append(field.getName());
+        }
         this.fieldNames = tmp.toString();
     }
 
+    /**
+     * 判断改表前后表结构(普通字段 + 分区字段的名字和类型)是否完全没变
+     *
+     * analyze 收集统计信息、写入任务更新表属性这类只改 parameters 的改表事件占了绝大多数
+     * 先比较字段个数，再按顺序逐个比较名字和类型，遇到第一个不同就返回，整个过程只扫字段列表，不创建任何对象
+     * 类型名包含了复杂类型中嵌套的字段，比如 struct<a:int,b:array<struct<c:string>>> ，所以嵌套结构的变化也能发现
+     * 结构变了才需要 new FieldDiff 做完整的比较
+     * @param oldTable 改表前
+     * @param newTable 改表后
+     * @return true 说明结构没有任何变化，不需要比较字段，也不需要更新鉴权库
+     */
+    public static boolean sameSchema(Table oldTable, Table newTable) {
+        List<FieldSchema> oldCols = columnsOf(oldTable);
+        List<FieldSchema> newCols = columnsOf(newTable);
+        List<FieldSchema> oldKeys = oldTable.getPartitionKeys();
+        List<FieldSchema> newKeys = newTable.getPartitionKeys();
+        if (sizeOf(oldCols) != sizeOf(newCols) || sizeOf(oldKeys) != sizeOf(newKeys)) {
+            return false;
+        }
+        return sameFields(oldCols, newCols) && sameFields(oldKeys, newKeys);
+    }
+
+    private static boolean sameFields(List<FieldSchema> oldFields, List<FieldSchema> newFields) {
+        int size = sizeOf(oldFields);
+        for (int i = 0; i < size; i++) {
+            FieldSchema oldField = oldFields.get(i);
+            FieldSchema newField = newFields.get(i);
+            if (!equalsWithNullCheck(oldField.getName(), newField.getName()) || !sameType(oldField.getType(), newField.getType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<FieldSchema> columnsOf(Table table) {
+        return table.getSd() == null ? null : table.getSd().getCols();
+    }
+
+    private static int sizeOf(List<FieldSchema> fields) {
+        return fields == null ? 0 : fields.size();
+    }
+
     /**
      * 解析出表的所有字段，普通字段 + 分区字段
      * @param table
      * @return
      */
     private List<FieldSchema> getAllFields(Table table) {
-        List<FieldSchema> allFields = new ArrayList<>();
+        List<FieldSchema> allFields = new ArrayList<>(sizeOf(columnsOf(table)) + sizeOf(table.getPartitionKeys()));
 
         // 添加普通字段
         if (table.getSd() != null && table.getSd().getCols() != null) {
@@ -97,8 +141,7 @@ public class FieldDiff {
                 // 不存在于旧字段map容器中，则为新增字段
                 this.addedFields.add(newField);
             } else {
-                // 检查字段是否被修改，由于比较方法中只比较了字段名
-                // 因此这里并不会有任何老字段被判定为修改
+                // 同名字段再比较类型，类型变了(包括复杂类型里面嵌套的字段变了)判定为修改
                 if (isFieldModified(oldField, newField)) {
                     this.modifiedFields.add(newField);
                 } else {
@@ -115,7 +158,8 @@ public class FieldDiff {
      * @return
      */
     private Map<String, FieldSchema> createFieldMap(List<FieldSchema> fields) {
-        Map<String, FieldSchema> map = new HashMap<>();
+        //按字段个数预设容量，万级字段的宽表也不会在比较过程中反复扩容
+        Map<String, FieldSchema> map = new HashMap<>((int) (fields.size() / 0.75f) + 1);
         for (FieldSchema field : fields) {
             map.put(field.getName(), field);
         }
@@ -134,18 +178,49 @@ public class FieldDiff {
             return true;
         }
 
+        // 比较类型
+        if (!sameType(oldField.getType(), newField.getType())) {
+            return true;
+        }
+
         // 可以根据需要添加更多比较项
 
         return false;
     }
 
+    /**
+     * 比较两个类型名，和 hive 一样不区分大小写，忽略空白，不创建新的字符串
+     */
+    private static boolean sameType(String oldType, String newType) {
+        if (oldType == null || newType == null) {
+            return oldType == newType;
+        }
+        if (oldType.equals(newType)) {
+            return true;
+        }
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < oldType.length() && Character.isWhitespace(oldType.charAt(i))) i++;
+            while (j < newType.length() && Character.isWhitespace(newType.charAt(j))) j++;
+            if (i == oldType.length() || j == newType.length()) {
+                return i == oldType.length() && j == newType.length();
+            }
+            if (Character.toLowerCase(oldType.charAt(i)) != Character.toLowerCase(newType.charAt(j))) {
+                return false;
+            }
+            i++;
+            j++;
+        }
+    }
+
     /**
      * 最终的比较方法，考虑空值
      * @param o1
      * @param o2
      * @return
      */
-    private boolean equalsWithNullCheck(Object o1, Object o2) {
+    private static boolean equalsWithNullCheck(Object o1, Object o2) {
         if (o1 == null && o2 == null) return true;
         if (o1 == null || o2 == null) return false;
         return o1.equals(o2);
@@ -0,0 +1,109 @@
+package com.wy.utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.metastore.conf.MetastoreConf;
+
+/**
+ * 元数据服务一侧监听组件的参数
+ *
+ * 和hiveserver2一侧的 AuthorizerConfig 一样，hive.auth.database.meta.listener.* 的参数集中在这里解析、校验一次
+ * 校验不通过抛出 IllegalArgumentException ，由调用方包装成 HiveMetaStoreException
+ * 由 MetaAuthDb 在第一个监听初始化时解析，同一个元数据服务进程中的两个监听拿到的是同一份
+ *
+ * 异步写入、通知日志追赶的参数只在对应的功能开启时才解析和校验，没开启时是默认值
+ */
+public class MetaListenerConfig {
+    private static final String PREFIX = "hive.auth.database.meta.listener.";
+
+    private final AuthDbConfig authDbConfig;
+
+    //异步写入鉴权库
+    private final boolean asyncEnabled;
+    private final String walDir;
+    private final boolean walSync;
+    private final int asyncBatch;
+    //按通知日志追赶鉴权库
+    private final boolean catchUpEnabled;
+    private final long catchUpInterval;
+    private final int catchUpBatch;
+
+    private MetaListenerConfig(Configuration conf) {
+        this.authDbConfig = AuthDbConfig.fromConf(conf, PREFIX + "hikari.pool.maxsize");
+
+        //是否开启异步写入鉴权库，默认关闭，开启时必须配置本地预写日志的目录
+        this.asyncEnabled = conf.getBoolean(PREFIX + "async.enable", false);
+        this.walDir = conf.get(PREFIX + "wal.dir", "");
+        this.walSync = conf.getBoolean(PREFIX + "wal.sync", true);
+        if (asyncEnabled) {
+            if (walDir.isEmpty()) {
+                throw new IllegalArgumentException("开启异步写入鉴权库时必须配置预写日志目录 hive.auth.database.meta.listener.wal.dir");
+            }
+            //一个事务最多写入多少个操作，默认 500
+            this.asyncBatch = (int) parse(conf, "async.batch", "500", 1, Integer.MAX_VALUE, "异步写入鉴权库批次大小超过预期Int值");
+        } else {
+            this.asyncBatch = 500;
+        }
+
+        //是否按元数据服务的通知日志追赶鉴权库，默认关闭，需要元数据服务开启 DbNotificationListener
+        this.catchUpEnabled = conf.getBoolean(PREFIX + "catchup.enable", false);
+        if (catchUpEnabled) {
+            //必须通过thrift连接元数据服务，嵌入模式的客户端会在进程中再初始化一遍元数据服务和这个监听
+            if (MetastoreConf.getVar(conf, MetastoreConf.ConfVars.THRIFT_URIS).isEmpty()) {
+                throw new IllegalArgumentException("开启通知日志追赶时必须配置元数据服务地址 hive.metastore.uris");
+            }
+            //两次追赶之间的间隔，默认 60000 毫秒
+            this.catchUpInterval = parse(conf, "catchup.interval", "60000", 1, Long.MAX_VALUE, "通知日志追赶间隔超过预期Long值");
+            //一页读取的事件个数，默认 1000
+            this.catchUpBatch = (int) parse(conf, "catchup.batch", "1000", 1, Integer.MAX_VALUE, "通知日志追赶批次大小超过预期Int值");
+        } else {
+            this.catchUpInterval = 60000;
+            this.catchUpBatch = 1000;
+        }
+    }
+
+    /**
+     * 从配置中解析并校验监听组件的所有参数
+     * @param conf 元数据服务的配置
+     * @return 校验通过的配置
+     * @throws IllegalArgumentException 参数不是数字、超出预期范围或者缺少必须的配置
+     */
+    public static MetaListenerConfig fromConf(Configuration conf) {
+        return new MetaListenerConfig(conf);
+    }
+
+    private static long parse(Configuration conf, String key, String defaultValue, long min, long max, String message) {
+        return AuthDbConfig.parseRange(conf, PREFIX + key, defaultValue, min, max, message);
+    }
+
+    public AuthDbConfig getAuthDbConfig() {
+        return authDbConfig;
+    }
+
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    public String getWalDir() {
+        return walDir;
+    }
+
+    public boolean isWalSync() {
+        return walSync;
+    }
+
+    public int getAsyncBatch() {
+        return asyncBatch;
+    }
+
+    public boolean isCatchUpEnabled() {
+        return catchUpEnabled;
+    }
+
+    public long getCatchUpInterval() {
+        return catchUpInterval;
+    }
+
+    public int getCatchUpBatch() {
+        return catchUpBatch;
+    }
+}
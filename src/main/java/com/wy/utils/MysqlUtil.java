@@ -1,11 +1,12 @@
 package com.wy.utils;
 
+import com.wy.metrics.AuthMetrics;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.ArrayList;
 
 /**
  * 作者: wangyang <br/>
@@ -17,7 +18,6 @@ import java.util.ArrayList;
 public class MysqlUtil {
     private HikariDataSource dataSource ;
     private HikariConfig config;
-    private ArrayList<Connection> conns;
     /**
      * 全参数构造，使用时的数值类型检查不写在这里，是因为参数性质的异常在服务或者模块被调起时爆发，比开始跑服务new这个对象才爆出来合理
      * @param url
@@ -43,23 +43,41 @@ public class MysqlUtil {
         config.setIdleTimeout(hp_id_timeout);
         config.setMaxLifetime(hp_lefttime);
 
+        /*
+        开启mysql驱动的预编译语句缓存，鉴权语句都是占位符绑定并且 in 列表按2的幂次补齐的，结构固定的语句只有几十种
+        cachePrepStmts 在驱动端按sql缓存预编译语句，连接上重复执行同样的sql不用再解析
+        useServerPrepStmts 使用服务端预编译，mysql对同一条语句只做一次解析和执行计划
+        prepStmtCacheSize 是每个连接最多缓存的语句数，开启服务端预编译后缓存的每条语句在mysql上都占着一个预编译语句
+            所有实例的所有连接加起来受mysql全局的 max_prepared_stmt_count (默认16382)限制，超过之后所有客户端的预编译都会失败
+            鉴权常用的语句按档位算下来几十条，所以默认只缓存 64 条
+        这些参数如果在 jdbc url 中也写了，以 url 中的为准
+         */
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "64");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "4096");
+
         dataSource = new HikariDataSource(config);
-        conns = new ArrayList<Connection>(hp_maxsize);
     }
 
     /**
-     * 获取连接的方法
-     *
-     * @param useFlag 是否标记使用
+     * 获取连接的方法，需要在出现问题时统一回收一批连接的，用 openScope 获取
      */
-    public Connection getConnection(boolean useFlag) throws SQLException {
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
         Connection connection = dataSource.getConnection();
-        if (useFlag) {
-            conns.add(connection);
-        }
+        //连接池满了的时候这里会阻塞，这段时间单独统计，用来判断连接池大小是否合适
+        AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.CONNECTION_WAIT, start);
         return connection;
     }
 
+    /**
+     * 开启一个连接范围，范围内获取的连接可以一次性全部回收，不影响其他范围的连接
+     */
+    public ConnectionScope openScope() {
+        return new ConnectionScope(this);
+    }
+
     /**
      * 关闭单个连接的方法，但是不关连接池
      */
@@ -74,14 +92,18 @@ public class MysqlUtil {
     }
 
     /**
-     * 关闭所有连接的方法，但是不关连接池
+     * 连接池的运行状态，活跃、空闲、等待连接数等，给指标输出用
      */
-    public void closeAllConnection() {
-        if (conns != null && !conns.isEmpty()) {
-            for (Connection connection : conns) {
-                closeConnection(connection);
-            }
-            conns.clear();
+    public HikariPoolMXBean getPoolMXBean() {
+        return dataSource.getHikariPoolMXBean();
+    }
+
+    /**
+     * 关闭整个连接池，关闭之后这个对象就不能再用了
+     */
+    public void close() {
+        if (dataSource != null && !dataSource.isClosed()) {
+            dataSource.close();
         }
     }
 
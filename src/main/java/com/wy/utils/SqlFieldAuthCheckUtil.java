@@ -1,16 +1,38 @@
 package com.wy.utils;
 
+import com.wy.cache.DenyCache;
+import com.wy.cache.FieldAuthCache;
+import com.wy.cache.PermissionImage;
+import com.wy.cache.PermissionIndex;
+import com.wy.cache.PermissionReplica;
+import com.wy.cache.PermissionSnapshot;
+import com.wy.cache.TableGrant;
+import com.wy.exception.AuthDeniedException;
+import com.wy.metrics.AuthMetrics;
 import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzPluginException;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 这类是用来对字段鉴权的工具类
@@ -23,9 +45,54 @@ public class SqlFieldAuthCheckUtil {
      * @param username 当前任务的提交人，也就是打开会话的用户
      * @param executor 用来并行任务的线程池对象
      * @param mysqlUtil 并行任务查询权限库的连接池对象
+     * @param fieldAuthCache 进程级的鉴权结果缓存，为null时表示不启用缓存
      * @throws Exception 这里先抛出了一个总的异常，因为调用这里的时候也是抛出去打断鉴权，没有其他的处理要求
      */
-    public static void checkPermissions(Map<String, List<String>> tableFieldMap, String username,ExecutorService executor,MysqlUtil mysqlUtil) throws HiveAuthzPluginException {
+    public static void checkPermissions(Map<String, List<String>> tableFieldMap, String username,ExecutorService executor,MysqlUtil mysqlUtil,FieldAuthCache fieldAuthCache) throws HiveAuthzPluginException {
+        StatementCheck statementCheck = new StatementCheck(username, executor, mysqlUtil, fieldAuthCache, null, null, null, false, StatementDeadline.unlimited());
+        try {
+            statementCheck.submit(tableFieldMap);
+        } catch (HiveAuthzPluginException e) {
+            statementCheck.cancel();
+            throw e;
+        }
+        statementCheck.await();
+    }
+
+    /**
+     * 一个语句的字段鉴权过程
+     *
+     * checkPermissions 要求调用之前就准备好所有表的鉴权字段，而一个语句的表信息是按库分批从元数据服务获取的
+     * 这个类把 提交鉴权任务 和 等待鉴权结果 拆开，每一批表信息拿到之后马上 submit 开始查鉴权库
+     * 不用等所有表的元数据都拿到，所有批次都提交之后再 await 等待全部的结果
+     *
+     * submit 允许被多个线程同时调用，await 只能在所有 submit 结束之后由发起鉴权的线程调用一次
+     * 批量模式下 submit 只是收集，await 的时候一次性查询
+     *
+     * 启用了字段权限位图索引时，不再按访问字段去查鉴权库，而是加载用户对表的全部有效权限后在内存中比较
+     * 索引中已经有的表在 submit 时直接判定，没有的才需要加载
+     *
+     * 启用了内存权限快照时，submit 先用快照判定，快照中有权限的表直接通过，不访问鉴权库
+     * 快照中没有权限或者权限已经到期的表，再按上面的方式去查鉴权库，这样刚刚新增的权限也不用等快照刷新
+     *
+     * 启用了拒绝结果缓存时，快照判定之后剩下的表先查拒绝缓存，命中就直接用缓存的报错信息拒绝，不再查鉴权库
+     * 各种方式查鉴权库得到的拒绝结果都会放进这个缓存
+     *
+     * await 最多等到语句鉴权期限的截止时间，超时后对还在执行的鉴权查询调用 Statement.cancel
+     * 只中断线程的话，阻塞在网络读上的 mysql 驱动是不会响应的，取消之后查询马上报错返回，连接在任务的 finally 中还给连接池
+     * 在当前线程中执行的批量、位图索引加载查询，则用 setQueryTimeout 交给驱动在期限到达时取消
+     */
+    public static class StatementCheck {
+        private final String username;
+        private final ExecutorService executor;
+        private final MysqlUtil mysqlUtil;
+        private final FieldAuthCache fieldAuthCache;
+        private final PermissionIndex permissionIndex;
+        private final PermissionReplica permissionReplica;
+        private final DenyCache denyCache;
+        private final boolean batch;
+        private final StatementDeadline deadline;
+
         /*
         1-1
         errorOccurred通知其他并行任务，是否触发没有权限异常的标志，使得其他任务如果在刚开始阶段就不在继续了
@@ -65,12 +132,74 @@ public class SqlFieldAuthCheckUtil {
 
              所以综合来说，多线程且非自带Atomic能解决的场景下，不会用volatile，而是去用锁
         */
-        AtomicBoolean errorOccurred = new AtomicBoolean(false);
+        private final AtomicBoolean errorOccurred = new AtomicBoolean(false);
 
-        //1-2 存放所有并行鉴权任务的回调对象
-        List<Future<?>> futures = new ArrayList<>(tableFieldMap.entrySet().size());
+        //1-2 存放所有并行鉴权任务的回调对象，可能被多个线程同时提交，所以用并发队列
+        private final Queue<Future<?>> futures = new ConcurrentLinkedQueue<>();
+
+        //批量模式下收集的所有表和字段
+        private final Map<String, List<String>> batchMap = new ConcurrentHashMap<>();
+
+        //并行任务中正在执行的鉴权查询，超时或者放弃鉴权时逐个取消
+        private final Set<Statement> runningStatements = ConcurrentHashMap.newKeySet();
+
+        //这个语句的并行任务从这里获取连接，回收时只回收这个语句自己的连接，不影响同一个连接池上的其他语句
+        private final ConnectionScope connectionScope;
+
+        //鉴权通过时，这个语句用到的所有字段权限中最早的到期时间戳(毫秒)，语句级别的通过结果最多缓存到这个时间
+        private final AtomicLong grantExpireAt = new AtomicLong(Long.MAX_VALUE);
+
+        /**
+         * @param username 当前任务的提交人，也就是打开会话的用户
+         * @param executor 用来并行任务的线程池对象
+         * @param mysqlUtil 查询权限库的连接池对象
+         * @param fieldAuthCache 进程级的鉴权结果缓存，为null时表示不启用缓存
+         * @param permissionIndex 进程级的字段权限位图索引，为null时表示不启用
+         * @param permissionReplica 进程级的内存权限快照，为null时表示不启用
+         * @param denyCache 进程级的拒绝结果缓存，为null时表示不启用
+         * @param batch 是否使用批量鉴权
+         * @param deadline 这个语句的鉴权期限
+         */
+        public StatementCheck(String username, ExecutorService executor, MysqlUtil mysqlUtil, FieldAuthCache fieldAuthCache, PermissionIndex permissionIndex, PermissionReplica permissionReplica, DenyCache denyCache, boolean batch, StatementDeadline deadline) {
+            this.username = username;
+            this.executor = executor;
+            this.mysqlUtil = mysqlUtil;
+            this.fieldAuthCache = fieldAuthCache;
+            this.permissionIndex = permissionIndex;
+            this.permissionReplica = permissionReplica;
+            this.denyCache = denyCache;
+            this.batch = batch;
+            this.deadline = deadline;
+            this.connectionScope = mysqlUtil.openScope();
+        }
+
+        /**
+         * 提交一批表的鉴权任务，不等待结果
+         * @param tableFieldMap 表为key，需鉴权字段List为value的一个map集合
+         * @throws HiveAuthzPluginException 之前提交的任务已经检查出了权限问题
+         */
+        public void submit(Map<String, List<String>> tableFieldMap) throws HiveAuthzPluginException {
+            PermissionSnapshot snapshot = permissionReplica == null ? null : permissionReplica.getSnapshot();
+            if (snapshot != null) {
+                tableFieldMap = filterBySnapshot(snapshot, tableFieldMap);
+            } else {
+                PermissionImage image = permissionReplica == null ? null : permissionReplica.getImage();
+                if (image != null) {
+                    tableFieldMap = filterByImage(image, tableFieldMap);
+                }
+            }
+            if (denyCache != null) {
+                rejectByDenyCache(tableFieldMap);
+            }
+            if (permissionIndex != null) {
+                submitWithIndex(tableFieldMap);
+                return;
+            }
+            if (batch) {
+                batchMap.putAll(tableFieldMap);
+                return;
+            }
 
-        try {
             // 2-1 for循环遍历表-字段map，提交所有鉴权任务
             for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
                 //2-2 如果前面提交到线程池的任务检查出了权限问题，就没有必要再继续提交后续的鉴权任务了
@@ -81,7 +210,19 @@ public class SqlFieldAuthCheckUtil {
                 //2-3 提交鉴权任务,并保存回调对象
                 String table = entry.getKey();
                 List<String> fields = entry.getValue();
+
+                //缓存中已经有这个用户对这批字段的通过结果，就不用再去查鉴权库了
+                if (fieldAuthCache != null) {
+                    long allowedUntil = fieldAuthCache.allowedUntil(username, table, fields);
+                    if (allowedUntil > 0) {
+                        noteGrantExpiry(grantExpireAt, allowedUntil);
+                        continue;
+                    }
+                }
+                long queued = System.nanoTime();
                 futures.add(executor.submit( () -> {
+                    //线程池满的时候任务要排队，这段时间单独统计，用来判断线程池和连接池的大小是否合适
+                    AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.QUEUE_WAIT, queued);
                     //2-4 如果其他提交到线程池的任务，在当前线程任务开始开始前检查出了权限问题，就没有必要在执行了
                     if (errorOccurred.get()) {
                         return;
@@ -89,43 +230,374 @@ public class SqlFieldAuthCheckUtil {
 
                     try {
                         // 2-4 提交鉴权子任务
-                        checkAuth(table,fields,executor,errorOccurred,mysqlUtil,username);
+                        checkAuth(table,fields,executor,errorOccurred,connectionScope,username,fieldAuthCache,denyCache,runningStatements,grantExpireAt);
                     } catch (Exception e) {
-                        throw new RuntimeException(e.getMessage());
+                        throw new RuntimeException(e.getMessage(), e);
                     }
                 } ));
             }
+        }
 
-            // 3-1 前面的循环提交完所有任务，或遇到需要停止的标记 errorOccurred.get为 true时(此时会抛出中断异常)，程序会执行到此处执行到此，通过回调对象来做对应的操作
-            for (Future<?> future : futures) {
-                /*
-                3-2 get方法会阻塞当前主进程，从而等待子线程结束，得到一个子线程回调结果
-                    当然这个结果是啥不重要，重要的是所有子线程执行完，可以在上面提交任务中
-                    改成用java.util.concurrent.CountDownLatch但是效果是一样的
-                */
-                future.get();
-            }
-
-        } catch (Exception e){
-            // 保险起见，调用一下数据库连接池的资源回收已经分配出去的连接
-            mysqlUtil.closeAllConnection();
-            // 子线程任务中鉴权或者是其他任何异常，停止线程池的所有任务，释放资源
+        /**
+         * 等待所有已提交的鉴权任务结束
+         * @throws HiveAuthzPluginException 有任何一张表权限不够，鉴权过程出现异常，或者超过了语句的鉴权期限
+         */
+        public void await() throws HiveAuthzPluginException {
+            if (batch && permissionIndex != null) {
+                checkWithIndex(batchMap);
+                return;
+            }
+            if (batch) {
+                checkPermissionsBatch(batchMap, username, mysqlUtil, fieldAuthCache, denyCache, deadline, grantExpireAt);
+                return;
+            }
+
+            try {
+                // 3-1 前面提交完所有任务，或遇到需要停止的标记 errorOccurred.get为 true时(此时会抛出中断异常)，程序会执行到此处执行到此，通过回调对象来做对应的操作
+                for (Future<?> future : futures) {
+                    /*
+                    3-2 get方法会阻塞当前主进程，从而等待子线程结束，得到一个子线程回调结果
+                        当然这个结果是啥不重要，重要的是所有子线程执行完，可以在上面提交任务中
+                        改成用java.util.concurrent.CountDownLatch但是效果是一样的
+                        最多等到语句鉴权期限的截止时间
+                    */
+                    if (deadline.isUnlimited()) {
+                        future.get();
+                    } else {
+                        future.get(Math.max(deadline.remaining(), 0), TimeUnit.MILLISECONDS);
+                    }
+                }
+
+            } catch (Exception e){
+                // 子线程任务中鉴权或者是其他任何异常，停止线程池的所有任务，释放资源
+                cancel();
+
+                //异常传递，子任务中的拒绝要保持拒绝的类型，报错信息不变
+                if (e instanceof TimeoutException) {
+                    throw deadline.timeout("鉴权库查询");
+                }else if (e instanceof HiveAuthzPluginException) {
+                    throw (HiveAuthzPluginException) e;
+                }else if (isDenied(e)) {
+                    throw new AuthDeniedException(e.getMessage());
+                }else {
+                    throw new HiveAuthzPluginException(e.getMessage());
+                }
+            }finally {
+                // 所有鉴权任务的相关流程执行完成，释放这个语句还没有归还的连接
+                connectionScope.closeAll();
+                futures.clear();
+            }
+        }
+
+        /**
+         * 所有提交的表都鉴权通过之后，这些表用到的字段权限中最早的到期时间戳(毫秒)
+         * 全部是owner或者临时表，没有用到任何字段权限时返回 Long.MAX_VALUE
+         */
+        public long getGrantExpireAt() {
+            return grantExpireAt.get();
+        }
+
+        /**
+         * 用内存快照判定一批表
+         * @return 快照不能判定通过的表，需要继续查鉴权库
+         */
+        private Map<String, List<String>> filterBySnapshot(PermissionSnapshot snapshot, Map<String, List<String>> tableFieldMap) {
+            long now = System.currentTimeMillis();
+            Map<String, List<String>> remaining = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+                TableGrant grant = snapshot.getGrant(username, entry.getKey());
+                if (!grant.isExpired(now) && grant.allows(entry.getValue())) {
+                    noteGrantExpiry(grantExpireAt, grant.getExpireAt());
+                    continue;
+                }
+                remaining.put(entry.getKey(), entry.getValue());
+            }
+            return remaining;
+        }
+
+        /**
+         * 用其他进程写出的权限镜像判定一批表，判定方式和快照相同，只是直接在映射的内存上查找
+         * @return 镜像不能判定通过的表，需要继续查鉴权库
+         */
+        private Map<String, List<String>> filterByImage(PermissionImage image, Map<String, List<String>> tableFieldMap) {
+            long now = System.currentTimeMillis();
+            Map<String, List<String>> remaining = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+                long expireAt = image.allowedUntil(username, entry.getKey(), entry.getValue(), now);
+                if (expireAt != PermissionImage.NOT_ALLOWED) {
+                    noteGrantExpiry(grantExpireAt, expireAt);
+                    continue;
+                }
+                remaining.put(entry.getKey(), entry.getValue());
+            }
+            return remaining;
+        }
+
+        /**
+         * 拒绝缓存中有任何一张表的拒绝结果，就直接拒绝整个语句
+         * @throws HiveAuthzPluginException 缓存的拒绝信息
+         */
+        private void rejectByDenyCache(Map<String, List<String>> tableFieldMap) throws HiveAuthzPluginException {
+            for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+                String message = denyCache.getDenial(username, entry.getKey(), entry.getValue());
+                if (message != null) {
+                    errorOccurred.compareAndSet(false, true);
+                    throw new AuthDeniedException(message);
+                }
+            }
+        }
+
+        /**
+         * 位图索引模式下提交一批表的鉴权
+         * 索引中已有的表当场判定，其余的表：批量模式下先收集起来在 await 时一次加载，否则每张表一个并行任务加载
+         */
+        private void submitWithIndex(Map<String, List<String>> tableFieldMap) throws HiveAuthzPluginException {
+            for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+                if (errorOccurred.get()) {
+                    break;
+                }
+                String table = entry.getKey();
+                List<String> fields = entry.getValue();
+
+                TableGrant grant = permissionIndex.getIfPresent(username, table);
+                if (grant != null && grant.allows(fields)) {
+                    noteGrantExpiry(grantExpireAt, grant.getExpireAt());
+                    continue;
+                }
+                //内存中判定为没有权限的，也要重新加载一次，这样刚刚新增的权限可以马上生效
+                if (batch) {
+                    batchMap.put(table, fields);
+                    continue;
+                }
+                long queued = System.nanoTime();
+                futures.add(executor.submit( () -> {
+                    AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.QUEUE_WAIT, queued);
+                    if (errorOccurred.get()) {
+                        return;
+                    }
+                    Map<String, List<String>> single = new HashMap<>(1);
+                    single.put(table, fields);
+                    try {
+                        checkWithIndex(single);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                } ));
+            }
+        }
+
+        /**
+         * 从鉴权库加载这些表的全部有效权限到位图索引中，然后逐表判定
+         * @throws HiveAuthzPluginException 有任何一张表权限不够，或者查询鉴权库出现异常
+         */
+        private void checkWithIndex(Map<String, List<String>> tableFieldMap) throws HiveAuthzPluginException {
+            if (tableFieldMap.isEmpty()) {
+                return;
+            }
+            Map<String, TableGrant> grants;
+            try {
+                grants = permissionIndex.load(username, tableFieldMap.keySet(), mysqlUtil, deadline.queryTimeoutSeconds());
+            } catch (SQLTimeoutException e) {
+                errorOccurred.compareAndSet(false, true);
+                throw deadline.timeout("鉴权库查询");
+            } catch (SQLException e) {
+                errorOccurred.compareAndSet(false, true);
+                throw new HiveAuthzPluginException("字段鉴权 - 鉴权库查询异常 "+e.getMessage());
+            }
+            for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+                TableGrant grant = grants.get(entry.getKey());
+                if (!grant.allows(entry.getValue())) {
+                    errorOccurred.compareAndSet(false, true);
+                    String message = denyMessage(username, entry.getKey(), entry.getValue(), grant.grantedAmong(entry.getValue()));
+                    if (denyCache != null) {
+                        denyCache.putDenial(username, entry.getKey(), entry.getValue(), message);
+                    }
+                    throw new AuthDeniedException(message);
+                }
+                noteGrantExpiry(grantExpireAt, grant.getExpireAt());
+            }
+        }
+
+        /**
+         * 放弃这个语句的鉴权，停止所有还没有结束的任务
+         * 调用方在提交过程中自己发现了问题(比如owner校验不通过)时使用
+         */
+        public void cancel() {
+            errorOccurred.set(true);
+            // 先取消还在鉴权库上执行的查询，阻塞在查询上的任务会马上报错返回，并在 finally 中归还连接
+            for (Statement statement : runningStatements) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    //查询已经结束或者连接已经关闭，不需要再取消
+                }
+            }
+            // 保险起见，回收这个语句已经分配出去的连接
+            connectionScope.closeAll();
             for (Future<?> future : futures) {
                 future.cancel(true);
             }
             futures.clear();
+            batchMap.clear();
+        }
+    }
+
+    /**
+     * 批量鉴权方法，和 checkPermissions 的结果、报错信息完全一样，区别在于执行方式
+     *
+     * checkPermissions 是一张表一个并行任务，每个任务各拿一个连接各查一次
+     * 一个几十张表关联的ETL语句就要同时占用几十个连接，连接池小的时候任务就得排队
+     * 这里则是把一个语句涉及的所有表、所有字段用一个查询一次性查回来，在内存里按表算出缺失的字段
+     * 整个语句的鉴权只占用一个连接、一次网络往返
+     *
+     * @param tableFieldMap 表为key，需鉴权字段List为value的一个map集合
+     * @param username 当前任务的提交人，也就是打开会话的用户
+     * @param mysqlUtil 查询权限库的连接池对象
+     * @param fieldAuthCache 进程级的鉴权结果缓存，为null时表示不启用缓存
+     * @param denyCache 进程级的拒绝结果缓存，为null时表示不启用
+     * @param deadline 语句的鉴权期限，查询超过期限时由驱动取消
+     * @param grantExpireAt 鉴权通过时，在这里记录用到的字段权限中最早的到期时间戳(毫秒)
+     * @throws HiveAuthzPluginException 有任何一张表权限不够，或者查询鉴权库出现异常、超时
+     */
+    public static void checkPermissionsBatch(Map<String, List<String>> tableFieldMap, String username, MysqlUtil mysqlUtil, FieldAuthCache fieldAuthCache, DenyCache denyCache, StatementDeadline deadline, AtomicLong grantExpireAt) throws HiveAuthzPluginException {
+        //1、先把缓存里已经通过的表去掉，剩下的才需要查库
+        Map<String, List<String>> uncheckedMap = new HashMap<>(tableFieldMap.size());
+        Set<String> allFields = new LinkedHashSet<>();
+        for (Map.Entry<String, List<String>> entry : tableFieldMap.entrySet()) {
+            long allowedUntil = fieldAuthCache == null ? 0 : fieldAuthCache.allowedUntil(username, entry.getKey(), entry.getValue());
+            if (allowedUntil > 0) {
+                noteGrantExpiry(grantExpireAt, allowedUntil);
+                continue;
+            }
+            uncheckedMap.put(entry.getKey(), entry.getValue());
+            allFields.addAll(entry.getValue());
+        }
+        if (uncheckedMap.isEmpty()) {
+            return;
+        }
+
+        /*
+        2、拼出一次性查询所有表的sql
+        表名 in 和 字段 in 是分开的两个条件，所以查回来的数据可能会多出 A表的字段名恰好等于B表访问字段 这种无关数据
+        这些数据在下面内存计算的时候，按表去匹配各自要访问的字段，自然就被忽略掉了
+         */
+        StringBuilder sql = new StringBuilder();
+        sql.append("select b.db_tb_name,a.field,timestampdiff(SECOND,NOW(),a.last_time) as grant_ttl ")
+                .append("from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id ")
+                .append("inner join user_info c on a.user_id=c.user_id ")
+                .append("where c.user_name=? and b.db_tb_name in (");
+        sql.append(SqlInList.placeholders(uncheckedMap.size()));
+        sql.append(") and a.field in (");
+        sql.append(SqlInList.placeholders(allFields.size()));
+        sql.append(") and a.last_time>=NOW() and a.auth_flag>=1 ");
 
-            //异常传递
-            if (e instanceof HiveAuthzPluginException) {
-                throw (HiveAuthzPluginException) e;
-            }else {
-                throw new HiveAuthzPluginException(e.getMessage());
+        //3、查询结果按 表 -> 字段 -> 权限剩余秒数 收集起来，同一个字段有多条权限时取最晚到期的那个
+        Map<String, Map<String, Long>> grantedMap = new HashMap<>(uncheckedMap.size());
+        Connection connection = null;
+        try {
+            connection = mysqlUtil.getConnection();
+            long jdbcStart = System.nanoTime();
+            /*
+            这里用只向前、只读的结果集，并且fetchSize设置成Integer.MIN_VALUE
+            对于mysql驱动来说这就是流式读取，数据一行一行的从服务端取回来，不会在客户端先缓存整个结果集
+            也不需要像 checkAuth 那样为了调用 last 而使用可滚动结果集
+             */
+            PreparedStatement preparedStatement = connection.prepareStatement(sql.toString(),
+                    ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Integer.MIN_VALUE);
+            preparedStatement.setQueryTimeout(deadline.queryTimeoutSeconds());
+            preparedStatement.setString(1, username);
+            int index = SqlInList.bind(preparedStatement, 2, uncheckedMap.keySet());
+            SqlInList.bind(preparedStatement, index, allFields);
+
+            ResultSet resultSet = preparedStatement.executeQuery();
+            while (resultSet.next()) {
+                grantedMap.computeIfAbsent(resultSet.getString("db_tb_name"), k -> new HashMap<>())
+                        .merge(resultSet.getString("field"), resultSet.getLong("grant_ttl") * 1000, Math::max);
             }
-        }finally {
-            // 所有鉴权任务的相关流程执行完成，释放所有连接池和线程池的资源
-            mysqlUtil.closeAllConnection();
-            futures.clear();
+            resultSet.close();
+            AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.JDBC, jdbcStart);
+        } catch (SQLTimeoutException e) {
+            throw deadline.timeout("鉴权库查询");
+        } catch (SQLException e) {
+            throw new HiveAuthzPluginException("字段鉴权 - 鉴权库查询异常 "+e.getMessage());
+        } finally {
+            mysqlUtil.closeConnection(connection);
         }
+
+        //4、在内存中按表计算缺失的字段，报错信息和单表鉴权时保持一致
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<String>> entry : uncheckedMap.entrySet()) {
+            String table = entry.getKey();
+            List<String> fields = entry.getValue();
+            Map<String, Long> granted = grantedMap.getOrDefault(table, new HashMap<>());
+
+            long grantTtl = Long.MAX_VALUE;
+            boolean denied = false;
+            for (String field : new HashSet<>(fields)) {
+                Long ttl = granted.get(field);
+                if (ttl == null) {
+                    denied = true;
+                    break;
+                }
+                grantTtl = Math.min(grantTtl, ttl);
+            }
+
+            if (denied) {
+                List<String> owned = new ArrayList<>();
+                for (String field : fields) {
+                    if (granted.containsKey(field)) {
+                        owned.add(field);
+                    }
+                }
+                String message = denyMessage(username, table, fields, owned);
+                if (denyCache != null) {
+                    denyCache.putDenial(username, table, fields, message);
+                }
+                throw new AuthDeniedException(message);
+            }
+
+            noteGrantExpiry(grantExpireAt, now + grantTtl);
+            if (fieldAuthCache != null) {
+                fieldAuthCache.putAllowed(username, table, fields, grantTtl);
+            }
+        }
+    }
+
+    /**
+     * 把一个通过结果的到期时间合并到语句的最早到期时间中
+     */
+    private static void noteGrantExpiry(AtomicLong grantExpireAt, long expireAt) {
+        grantExpireAt.accumulateAndGet(expireAt, Math::min);
+    }
+
+    /**
+     * 并行任务的异常经过 RuntimeException、ExecutionException 两层包装，这里顺着 cause 找原本是不是拒绝
+     */
+    private static boolean isDenied(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof AuthDeniedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 拼接没有权限时的报错信息，各种鉴权方式的报错保持一致
+     * @param username 用户
+     * @param table 库.表
+     * @param fields 访问的字段
+     * @param owned 访问字段中已有权限的字段
+     */
+    static String denyMessage(String username, String table, List<String> fields, List<String> owned) {
+        StringBuilder sb = new StringBuilder("[ ");
+        for (String field : owned) {
+            sb.append(field).append(" ");
+        }
+        sb.append("]");
+        return "字段鉴权 - 用户:"+username+" 对"+table+" 没有足够的权限，访问字段："+fields+" 已有权限："+sb.toString();
     }
 
     /**
@@ -134,11 +606,15 @@ public class SqlFieldAuthCheckUtil {
      * @param fields 字段集合
      * @param executor
      * @param errorOccurred
-     * @param mysqlUtil
+     * @param connectionScope 所属语句的连接范围
      * @param username
+     * @param fieldAuthCache
+     * @param denyCache
+     * @param runningStatements 执行中的查询要登记在这里，语句鉴权超时的时候由等待的线程取消
+     * @param grantExpireAt 鉴权通过时，在这里记录这批字段权限中最早的到期时间戳(毫秒)
      * @throws HiveAuthzPluginException
      */
-    private static void checkAuth(String table, List<String> fields, ExecutorService executor, AtomicBoolean errorOccurred, MysqlUtil mysqlUtil,String username) throws HiveAuthzPluginException {
+    private static void checkAuth(String table, List<String> fields, ExecutorService executor, AtomicBoolean errorOccurred, ConnectionScope connectionScope,String username,FieldAuthCache fieldAuthCache,DenyCache denyCache,Set<Statement> runningStatements,AtomicLong grantExpireAt) throws HiveAuthzPluginException {
         /* 2-5
          获取是否外部原因需要中断任务，interrupted在获取中断标识之后
          会把已有的中断状态设置为默认为false，其实本身是一种中断信号的接力棒，如果上游发出中断要求
@@ -158,29 +634,38 @@ public class SqlFieldAuthCheckUtil {
         // 2-6 得到并处理鉴权结果
         StringBuilder sql = new StringBuilder();
 
-        // 用 StringBuilder 而不用 ？ 替换 是因为字段集合需要拼接，直接使用占位符会出现问题
-        sql.append("select a.field,a.auth_flag,a.last_time ")
+        /*
+        用户、表、字段全部用占位符绑定，字段 in 列表的长度按 SqlInList 向上取到2的幂次
+        这样同样结构的鉴权语句只有几十种，连接池开启的预编译语句缓存可以命中，也不会有引号拼接导致的注入问题
+        grant_ttl 是权限还剩多少秒到期，用数据库的时间来算，避免和hiveserver2所在机器的时钟、时区不一致
+         */
+        sql.append("select a.field,a.auth_flag,a.last_time,timestampdiff(SECOND,NOW(),a.last_time) as grant_ttl ")
                 .append("from db_tb_auth a inner join db_tb_info b on a.db_tb_id=b.db_tb_id ")
                 .append("inner join user_info c on a.user_id=c.user_id ")
-                .append("where c.user_name='").append(username).append("' and b.db_tb_name='").append(table).append("' and a.field in (");
-
-        for (String f:fields) {
-            sql.append("'").append(f).append("',");
-        }
-
-        //删掉最后的一个 ,
-        sql.delete(sql.length()-1,sql.length());
-
-        sql.append(") and a.last_time>=NOW() and a.auth_flag>=1 ");
+                .append("where c.user_name=? and b.db_tb_name=? and a.field in (")
+                .append(SqlInList.placeholders(fields.size()))
+                .append(") and a.last_time>=NOW() and a.auth_flag>=1 ");
 
         Connection connection = null;
+        PreparedStatement preparedStatement = null;
         //是否发生权限异常，不用上面的errorOccurred是因为不能达到触发预期
         boolean auth_err_flag = false;
         try {
-            connection = mysqlUtil.getConnection(true);
-            ResultSet resultSet = connection.prepareStatement(sql.toString(),
+            connection = connectionScope.getConnection();
+            long jdbcStart = System.nanoTime();
+            preparedStatement = connection.prepareStatement(sql.toString(),
                     ResultSet.TYPE_SCROLL_INSENSITIVE,
-                    ResultSet.CONCUR_READ_ONLY).executeQuery();
+                    ResultSet.CONCUR_READ_ONLY);
+            //先登记再检查一次是否已经放弃，避免在取消之后才登记的查询没人取消
+            runningStatements.add(preparedStatement);
+            if (errorOccurred.get()) {
+                return;
+            }
+            preparedStatement.setString(1, username);
+            preparedStatement.setString(2, table);
+            SqlInList.bind(preparedStatement, 3, fields);
+            ResultSet resultSet = preparedStatement.executeQuery();
+            AuthMetrics.getInstance().recordPhase(AuthMetrics.Phase.JDBC, jdbcStart);
 
             //复用stringbuilder，这个字符串缓冲器在子任务内，不会有线程安全问题
             sql.delete(0,sql.length());
@@ -196,9 +681,22 @@ public class SqlFieldAuthCheckUtil {
                 sql.append("]");
                 //更新线程池任务状态，如果是false就更新为true
                 errorOccurred.compareAndSet(false, true);
-                throw new HiveAuthzPluginException("字段鉴权 - 用户:"+username+" 对"+table+" 没有足够的权限，访问字段："+fields+" 已有权限："+sql.toString());
+                String message = "字段鉴权 - 用户:"+username+" 对"+table+" 没有足够的权限，访问字段："+fields+" 已有权限："+sql.toString();
+                if (denyCache != null) {
+                    denyCache.putDenial(username, table, fields, message);
+                }
+                throw new AuthDeniedException(message);
+            }
+            //除此之外权限正常通过，按这批字段里最早到期的那个权限记录到缓存中
+            long grantTtl = Long.MAX_VALUE;
+            resultSet.beforeFirst();
+            while (resultSet.next()){
+                grantTtl = Math.min(grantTtl, resultSet.getLong("grant_ttl") * 1000);
+            }
+            noteGrantExpiry(grantExpireAt, System.currentTimeMillis() + grantTtl);
+            if (fieldAuthCache != null) {
+                fieldAuthCache.putAllowed(username, table, fields, grantTtl);
             }
-            //除此之外权限正常通过
 
         } catch (SQLException e) {
             //发生sql异常的时候，和字段鉴权异常一样，定制所有的任务，并保障后面资源回收表示正常，不过一般不会正常不会发生这个异常
@@ -206,12 +704,15 @@ public class SqlFieldAuthCheckUtil {
             auth_err_flag = true;
             throw new HiveAuthzPluginException("字段鉴权 - 鉴权库查询异常 "+e.getMessage());
         } finally {
+            if (preparedStatement != null) {
+                runningStatements.remove(preparedStatement);
+            }
             //关闭本次任务用的数据库连接
-            mysqlUtil.closeConnection(connection);
-            // 如果出现权限报错则此处回收所有数据库连接池线程资源，至于任务并行的线程池在最外层监听任务的地方回收
-            // 这样在执行流程上可以使得连接池在此处回收完成后，上面的任务并行线程池再开始最后释放线程任务
+            connectionScope.closeConnection(connection);
+            // 如果出现权限报错则此处回收这个语句的所有数据库连接，至于任务并行的线程池在最外层监听任务的地方回收
+            // 这样在执行流程上可以使得连接在此处回收完成后，上面的任务并行线程池再开始最后释放线程任务
             if (auth_err_flag){
-                mysqlUtil.closeAllConnection();
+                connectionScope.closeAll();
             }
         }
 
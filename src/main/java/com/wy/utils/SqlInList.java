@@ -0,0 +1,71 @@
+package com.wy.utils;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * 拼接和绑定 in (?,?,...) 条件的工具类
+ *
+ * 鉴权语句的 in 列表长度随访问的字段数、表数变化，如果按实际个数拼占位符，每种长度都是一条不同的sql
+ * mysql 端、驱动端的预编译语句缓存几乎命中不了，每次鉴权都要重新解析、生成执行计划
+ *
+ * 这里把 in 列表的长度向上取到2的幂次，多出来的位置重复绑定最后一个值
+ * in 条件里面值重复不影响查询结果，这样不管访问多少个字段，同一个查询最多只有几十种不同的sql
+ */
+public class SqlInList {
+
+    //每个长度档位的占位符，按档位的幂次下标缓存，最多到 2^30
+    private static final String[] PLACEHOLDERS = new String[31];
+
+    private SqlInList() {
+    }
+
+    /**
+     * 长度为 n 的 in 列表实际使用的占位符个数，也就是大于等于 n 的最小的2的幂次
+     */
+    public static int bucket(int n) {
+        if (n <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * 长度为 n 的 in 列表的占位符，不包含两边的括号
+     */
+    public static String placeholders(int n) {
+        int bucket = bucket(n);
+        int power = Integer.numberOfTrailingZeros(bucket);
+        String placeholders = PLACEHOLDERS[power];
+        if (placeholders == null) {
+            StringBuilder sb = new StringBuilder(bucket * 2);
+            for (int i = 0; i < bucket; i++) {
+                sb.append(i == 0 ? "?" : ",?");
+            }
+            placeholders = sb.toString();
+            //并发时重复生成也没有关系，内容是一样的
+            PLACEHOLDERS[power] = placeholders;
+        }
+        return placeholders;
+    }
+
+    /**
+     * 从 index 开始绑定 in 列表的值，不够档位长度的部分重复绑定最后一个值
+     * @param preparedStatement 用 placeholders 拼出来的语句
+     * @param index 第一个占位符的下标
+     * @param values in 列表的值，不能为空
+     * @return 下一个占位符的下标
+     */
+    public static int bind(PreparedStatement preparedStatement, int index, Collection<String> values) throws SQLException {
+        String last = null;
+        for (String value : values) {
+            preparedStatement.setString(index++, value);
+            last = value;
+        }
+        for (int i = values.size(); i < bucket(values.size()); i++) {
+            preparedStatement.setString(index++, last);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,101 @@
+package com.wy.utils;
+
+import org.apache.hadoop.hive.ql.security.authorization.plugin.HiveAuthzPluginException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个语句的鉴权期限
+ *
+ * 鉴权库卡住的时候，原来等待鉴权结果的 future.get 没有超时，hiveserver2 的编译线程会一直挂着
+ * 后面的语句在编译锁上越堆越多，所以每个语句的鉴权要有一个总的期限
+ *
+ * 总期限分成两段：从元数据服务获取表信息最多用总期限的一部分，剩下的全部留给查鉴权库
+ * 元数据提前拿完的话，省下的时间也归鉴权库，所以鉴权库阶段看的是总期限
+ */
+public class StatementDeadline {
+
+    private static final StatementDeadline UNLIMITED = new StatementDeadline(0, 0, 0);
+
+    //总期限 毫秒，0 表示不限制
+    private final long timeout;
+    //元数据获取阶段和整个语句的截止时间，System.nanoTime
+    private final long metastoreDeadline;
+    private final long deadline;
+
+    private StatementDeadline(long timeout, long metastoreDeadline, long deadline) {
+        this.timeout = timeout;
+        this.metastoreDeadline = metastoreDeadline;
+        this.deadline = deadline;
+    }
+
+    /**
+     * 从现在开始计时
+     * @param timeout 总期限 毫秒，0 表示不限制
+     * @param metastorePercent 元数据获取阶段最多占总期限的百分比
+     */
+    public static StatementDeadline start(long timeout, int metastorePercent) {
+        if (timeout <= 0) {
+            return UNLIMITED;
+        }
+        long now = System.nanoTime();
+        long total = TimeUnit.MILLISECONDS.toNanos(timeout);
+        return new StatementDeadline(timeout, now + total / 100 * metastorePercent, now + total);
+    }
+
+    /**
+     * 不限制期限，和原来的行为一样
+     */
+    public static StatementDeadline unlimited() {
+        return UNLIMITED;
+    }
+
+    public boolean isUnlimited() {
+        return timeout <= 0;
+    }
+
+    /**
+     * 元数据获取阶段还剩多少毫秒，不限制时返回 Long.MAX_VALUE
+     */
+    public long metastoreRemaining() {
+        return isUnlimited() ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(metastoreDeadline - System.nanoTime());
+    }
+
+    /**
+     * 整个语句还剩多少毫秒，不限制时返回 Long.MAX_VALUE
+     */
+    public long remaining() {
+        return isUnlimited() ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+    }
+
+    /**
+     * 给 Statement.setQueryTimeout 用的秒数，向上取整并且至少 1 秒，不限制时返回 0
+     * mysql 驱动在查询超时的时候会自己发出取消，和 Statement.cancel 的效果一样
+     */
+    public int queryTimeoutSeconds() {
+        if (isUnlimited()) {
+            return 0;
+        }
+        long seconds = (Math.max(remaining(), 0) + 999) / 1000;
+        return (int) Math.min(Math.max(seconds, 1), Integer.MAX_VALUE);
+    }
+
+    /**
+     * 元数据获取阶段已经超时则报错
+     * @throws HiveAuthzPluginException 超时
+     */
+    public void checkMetastore() throws HiveAuthzPluginException {
+        if (metastoreRemaining() <= 0) {
+            throw timeout("元数据获取");
+        }
+    }
+
+    /**
+     * 超时的报错
+     * @param phase 超时的阶段
+     */
+    public HiveAuthzPluginException timeout(String phase) {
+        return new HiveAuthzPluginException("鉴权超时 - 语句鉴权超过 " + timeout + "ms 的期限，超时阶段：" + phase
+                + "，鉴权库或元数据服务响应过慢，可以稍后重试或调整 hive.auth.database.authorizer.statement.timeout");
+    }
+}
@@ -0,0 +1,89 @@
+package com.wy.cache;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionSnapshotTest {
+
+    private static final long FAR = Long.MAX_VALUE / 2;
+
+    private static Map<String, PermissionSnapshot.TableEntry.Builder> builders(PermissionSnapshot.TableEntry.Builder... builders) {
+        Map<String, PermissionSnapshot.TableEntry.Builder> map = new HashMap<>();
+        for (PermissionSnapshot.TableEntry.Builder builder : builders) {
+            map.put(builder.id, builder);
+        }
+        return map;
+    }
+
+    /**
+     * db.a 的owner是 owner，u1 有 c1 的权限；db.b 的owner是 owner，u3 有 c1 的权限
+     */
+    private static PermissionSnapshot initial() {
+        PermissionSnapshot.TableEntry.Builder a = new PermissionSnapshot.TableEntry.Builder("id1", "db.a", "c1,c2", "owner");
+        a.addGrant("u1", "c1", FAR);
+        PermissionSnapshot.TableEntry.Builder b = new PermissionSnapshot.TableEntry.Builder("id2", "db.b", "c1", "owner");
+        b.addGrant("u3", "c1", FAR);
+        return PermissionSnapshot.build(1, builders(a, b));
+    }
+
+    @Test
+    public void buildIndexesGrantsAndVisibility() {
+        PermissionSnapshot snapshot = initial();
+
+        assertTrue(snapshot.getGrant("u1", "db.a").allows(Collections.singletonList("c1")));
+        assertFalse(snapshot.getGrant("u1", "db.a").allows(Collections.singletonList("c2")));
+        assertFalse(snapshot.getGrant("u2", "db.a").allows(Collections.singletonList("c1")));
+        assertTrue(snapshot.getVisibility("u1").isTableVisible("db", "a"));
+        assertFalse(snapshot.getVisibility("u1").isTableVisible("db", "b"));
+        assertTrue(snapshot.getVisibility("owner").isTableVisible("db", "b"));
+    }
+
+    @Test
+    public void applyLeavesOldSnapshotUntouched() {
+        PermissionSnapshot old = initial();
+        //db.a 的权限从 u1 换成了 u2
+        PermissionSnapshot.TableEntry.Builder a = new PermissionSnapshot.TableEntry.Builder("id1", "db.a", "c1,c2", "owner");
+        a.addGrant("u2", "c2", FAR);
+
+        PermissionSnapshot next = old.apply(2, new HashSet<>(Collections.singletonList("id1")), builders(a));
+
+        assertEquals(2, next.getChangeId());
+        assertFalse(next.getGrant("u1", "db.a").allows(Collections.singletonList("c1")));
+        assertTrue(next.getGrant("u2", "db.a").allows(Collections.singletonList("c2")));
+        assertFalse(next.getVisibility("u1").isDatabaseVisible("db"));
+        assertTrue(next.getVisibility("u2").isTableVisible("db", "a"));
+        //没有变化的表和用户照常可见
+        assertTrue(next.getVisibility("u3").isTableVisible("db", "b"));
+        assertTrue(next.getVisibility("owner").isTableVisible("db", "a"));
+
+        //旧快照上看到的还是修改之前的状态
+        assertEquals(1, old.getChangeId());
+        assertTrue(old.getGrant("u1", "db.a").allows(Collections.singletonList("c1")));
+        assertFalse(old.getGrant("u2", "db.a").allows(Collections.singletonList("c2")));
+        assertTrue(old.getVisibility("u1").isTableVisible("db", "a"));
+        assertFalse(old.getVisibility("u2").isDatabaseVisible("db"));
+    }
+
+    @Test
+    public void applyRemovesDroppedTable() {
+        PermissionSnapshot old = initial();
+
+        //变化的表id在重新加载的数据中没有，说明表被删除了
+        PermissionSnapshot next = old.apply(2, new HashSet<>(Collections.singletonList("id1")), builders());
+
+        assertEquals(1, next.tableCount());
+        assertFalse(next.getGrant("u1", "db.a").allows(Collections.singletonList("c1")));
+        assertFalse(next.getVisibility("owner").isTableVisible("db", "a"));
+        assertTrue(next.getVisibility("owner").isTableVisible("db", "b"));
+        assertEquals(2, old.tableCount());
+        assertTrue(old.getVisibility("owner").isTableVisible("db", "a"));
+    }
+}
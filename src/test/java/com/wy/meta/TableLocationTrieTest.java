@@ -0,0 +1,64 @@
+package com.wy.meta;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TableLocationTrieTest {
+
+    @Test
+    public void splitNormalizesSlashes() {
+        assertEquals(Arrays.asList("hdfs://ns", "a", "b"), TableLocationTrie.split("hdfs://ns/a/b/"));
+        assertEquals(Arrays.asList("hdfs://ns", "a", "b"), TableLocationTrie.split("hdfs://ns/a//b"));
+        assertEquals(Arrays.asList("", "a", "b"), TableLocationTrie.split("/a/b"));
+    }
+
+    @Test
+    public void findsExactAncestorAndDescendantConflicts() {
+        TableLocationTrie trie = new TableLocationTrie(true);
+        trie.add("hdfs://ns/warehouse/db.db/t1", "db.t1");
+
+        //同一个路径
+        assertEquals("db.t1", trie.findInTrie("hdfs://ns/warehouse/db.db/t1/"));
+        //新路径在已有表的下面
+        assertEquals("db.t1", trie.findInTrie("hdfs://ns/warehouse/db.db/t1/p=1"));
+        //新路径是已有表的上级目录
+        assertEquals("db.t1", trie.findInTrie("hdfs://ns/warehouse/db.db"));
+        //按目录比较，不是字符串前缀
+        assertNull(trie.findInTrie("hdfs://ns/warehouse/db.db/t10"));
+        //不同的集群
+        assertNull(trie.findInTrie("hdfs://other/warehouse/db.db/t1"));
+    }
+
+    @Test
+    public void removePrunesEmptyNodes() {
+        TableLocationTrie trie = new TableLocationTrie(true);
+        trie.add("hdfs://ns/warehouse/db.db/t1", "db.t1");
+        trie.add("hdfs://ns/warehouse/db.db/t2", "db.t2");
+
+        trie.remove("hdfs://ns/warehouse/db.db/t1", "db.t1");
+        assertNull(trie.findInTrie("hdfs://ns/warehouse/db.db/t1"));
+        //剪掉 t1 之后上级目录仍然能找到 t2
+        assertEquals("db.t2", trie.findInTrie("hdfs://ns/warehouse"));
+
+        trie.remove("hdfs://ns/warehouse/db.db/t2", "db.t2");
+        assertTrue(trie.isEmpty());
+        assertNull(trie.findInTrie("hdfs://ns/warehouse"));
+    }
+
+    @Test
+    public void removeIgnoresOtherTable() {
+        TableLocationTrie trie = new TableLocationTrie(true);
+        trie.add("hdfs://ns/warehouse/db.db/t1", "db.t1");
+
+        //同一个路径上记录的是另一张表时不删除
+        trie.remove("hdfs://ns/warehouse/db.db/t1", "db.other");
+        assertEquals("db.t1", trie.findInTrie("hdfs://ns/warehouse/db.db/t1"));
+        assertFalse(trie.isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+package com.wy.meta;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteAheadLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static WriteAheadLog.Record create(String table) {
+        return new WriteAheadLog.Record(WriteAheadLog.Record.CREATE_TABLE, "owner", table, "a,b", "hdfs://ns/warehouse/" + table);
+    }
+
+    private static WriteAheadLog open(File dir) throws IOException {
+        return new WriteAheadLog(dir, true);
+    }
+
+    @Test
+    public void recoverReplaysRecordsAfterCheckpoint() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = open(dir);
+        assertTrue(wal.recover().isEmpty());
+        WriteAheadLog.Entry first = wal.append(create("db.t1"));
+        wal.append(create("db.t2"));
+        wal.append(create("db.t3"));
+        wal.checkpoint(first);
+        wal.close();
+
+        List<WriteAheadLog.Entry> recovered = open(dir).recover();
+        assertEquals(2, recovered.size());
+        assertEquals("db.t2", recovered.get(0).getRecord().arg(1));
+        assertEquals("db.t3", recovered.get(1).getRecord().arg(1));
+        assertEquals(WriteAheadLog.Record.CREATE_TABLE, recovered.get(0).getRecord().getType());
+        assertEquals(4, recovered.get(0).getRecord().argCount());
+    }
+
+    @Test
+    public void recoverStopsAtTornTail() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = open(dir);
+        wal.recover();
+        wal.append(create("db.t1"));
+        wal.append(create("db.t2"));
+        wal.close();
+
+        //模拟写一条记录的中途崩溃：只写了长度和一部分内容
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "wal-1.log"), "rw")) {
+            file.seek(file.length());
+            file.writeInt(100);
+            file.write(new byte[10]);
+        }
+
+        List<WriteAheadLog.Entry> recovered = open(dir).recover();
+        assertEquals(2, recovered.size());
+        assertEquals("db.t2", recovered.get(1).getRecord().arg(1));
+    }
+
+    @Test
+    public void recoverStopsAtCrcMismatch() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = open(dir);
+        wal.recover();
+        wal.append(create("db.t1"));
+        wal.append(create("db.t2"));
+        wal.append(create("db.t3"));
+        wal.close();
+
+        //改掉第二条记录内容中的一个字节，CRC校验不过，它和之后的记录都不再重放
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "wal-1.log"), "rw")) {
+            int firstLength = file.readInt();
+            long second = 4 + firstLength + 8;
+            file.seek(second + 4 + 2);
+            int b = file.read();
+            file.seek(second + 4 + 2);
+            file.write(b ^ 0xFF);
+        }
+
+        List<WriteAheadLog.Entry> recovered = open(dir).recover();
+        assertEquals(1, recovered.size());
+        assertEquals("db.t1", recovered.get(0).getRecord().arg(1));
+    }
+
+    @Test
+    public void checkpointDeletesOlderSegments() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = open(dir);
+        wal.recover();
+        wal.append(create("db.t1"));
+        wal.close();
+
+        //重新打开后新的记录写到下一个分段
+        wal = open(dir);
+        assertEquals(1, wal.recover().size());
+        WriteAheadLog.Entry entry = wal.append(create("db.t2"));
+        assertTrue(new File(dir, "wal-2.log").exists());
+        wal.checkpoint(entry);
+        wal.close();
+
+        assertFalse(new File(dir, "wal-1.log").exists());
+        assertTrue(open(dir).recover().isEmpty());
+    }
+
+    @Test
+    public void deadLetterEscapesArguments() throws IOException {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = open(dir);
+        wal.recover();
+        WriteAheadLog.Entry entry = wal.append(new WriteAheadLog.Record(WriteAheadLog.Record.DROP_TABLE, "db.t\t1", "hdfs://ns/a\nb"));
+        wal.deadLetter(entry, "boom");
+        wal.close();
+
+        List<String> lines = Files.readAllLines(new File(dir, "dead-letter.log").toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        String[] columns = lines.get(0).split("\t");
+        assertEquals(5, columns.length);
+        assertEquals("2", columns[1]);
+        assertEquals("boom", columns[2]);
+        assertEquals("db.t\\t1", columns[3]);
+        assertEquals("hdfs://ns/a\\nb", columns[4]);
+    }
+}
@@ -0,0 +1,80 @@
+package com.wy.utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class AuthorizerConfigTest {
+
+    /**
+     * 鉴权库连接池的必填参数加上传入的参数，按 key, value 成对传入
+     * 测试的classpath上guava版本和hadoop不一致，Configuration.set 用不了，所以拼一个xml资源
+     */
+    private static Configuration conf(String... keyValues) {
+        StringBuilder xml = new StringBuilder("<configuration>");
+        String[] required = {"hive.auth.database.timeout", "30000",
+                "hive.auth.database.authorizer.hikari.pool.maxsize", "4",
+                "hive.auth.database.hikari.pool.minidle", "1",
+                "hive.auth.database.hikari.pool.idle.timeout", "600000",
+                "hive.auth.database.hikari.pool.max.lifetime", "1800000"};
+        for (String[] pairs : new String[][]{required, keyValues}) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                xml.append("<property><name>").append(pairs[i]).append("</name><value>")
+                        .append(pairs[i + 1]).append("</value></property>");
+            }
+        }
+        xml.append("</configuration>");
+        Configuration conf = new Configuration(false);
+        conf.addResource(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)));
+        return conf;
+    }
+
+    @Test
+    public void defaultsWhenNothingIsConfigured() {
+        AuthorizerConfig config = AuthorizerConfig.fromConf(conf());
+        assertEquals(0, config.getCacheMaxSize());
+        assertEquals(50000, config.getTableCacheMaxSize());
+        assertEquals(60000, config.getStatementTimeout());
+        assertEquals(50, config.getMetastoreTimeoutPercent());
+        assertFalse(config.isSnapshotEnabled());
+        assertEquals("", config.getSnapshotImageDir());
+        assertEquals(65536, config.getAuditBufferSize());
+        assertEquals(10000, config.getShowFilterMaxSize());
+    }
+
+    @Test
+    public void outOfRangeValueIsRejectedWithItsMessage() {
+        try {
+            AuthorizerConfig.fromConf(conf("hive.auth.database.authorizer.statement.timeout.metastore.percent", "100"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("语句鉴权期限中元数据获取阶段的占比超过预期范围(1-99)", e.getMessage());
+        }
+    }
+
+    @Test
+    public void showFilterMaxSizeMustBePositive() {
+        try {
+            AuthorizerConfig.fromConf(conf("hive.auth.database.authorizer.show.filter.maxsize", "0"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("库表可见性缓存大小超过预期Long值", e.getMessage());
+        }
+    }
+
+    @Test
+    public void nonNumericValueIsRejected() {
+        try {
+            AuthorizerConfig.fromConf(conf("hive.auth.database.authorizer.memo.ttl", "30s"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("语句鉴权结果缓存存活时间超过预期Long值 hive.auth.database.authorizer.memo.ttl", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.wy.utils;
+
+import org.apache.hadoop.hive.metastore.api.FieldSchema;
+import org.apache.hadoop.hive.metastore.api.StorageDescriptor;
+import org.apache.hadoop.hive.metastore.api.Table;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FieldDiffTest {
+
+    private static Table table(List<FieldSchema> cols, List<FieldSchema> partitionKeys) {
+        Table table = new Table();
+        table.setDbName("db");
+        table.setTableName("t");
+        StorageDescriptor sd = new StorageDescriptor();
+        sd.setCols(cols);
+        table.setSd(sd);
+        table.setPartitionKeys(partitionKeys);
+        return table;
+    }
+
+    private static FieldSchema field(String name, String type) {
+        return new FieldSchema(name, type, null);
+    }
+
+    @Test
+    public void sameSchemaIgnoresParametersAndTypeFormatting() {
+        Table oldTable = table(Arrays.asList(field("a", "int"), field("s", "struct<x:int,y:string>")),
+                Collections.singletonList(field("dt", "string")));
+        Table newTable = table(Arrays.asList(field("a", "INT"), field("s", "struct<x:int, y:string>")),
+                Collections.singletonList(field("dt", "string")));
+        newTable.putToParameters("numRows", "100");
+
+        assertTrue(FieldDiff.sameSchema(oldTable, newTable));
+    }
+
+    @Test
+    public void sameSchemaDetectsNestedAndPartitionChanges() {
+        Table oldTable = table(Arrays.asList(field("a", "int"), field("s", "struct<x:int,y:string>")),
+                Collections.singletonList(field("dt", "string")));
+
+        //嵌套结构中的字段改名
+        Table nested = table(Arrays.asList(field("a", "int"), field("s", "struct<x:int,z:string>")),
+                Collections.singletonList(field("dt", "string")));
+        assertFalse(FieldDiff.sameSchema(oldTable, nested));
+
+        //字段改名
+        Table renamed = table(Arrays.asList(field("b", "int"), field("s", "struct<x:int,y:string>")),
+                Collections.singletonList(field("dt", "string")));
+        assertFalse(FieldDiff.sameSchema(oldTable, renamed));
+
+        //字段个数一样，但有一个从普通字段挪到了分区字段
+        Table moved = table(Collections.singletonList(field("a", "int")),
+                Arrays.asList(field("s", "struct<x:int,y:string>"), field("dt", "string")));
+        assertFalse(FieldDiff.sameSchema(oldTable, moved));
+    }
+
+    @Test
+    public void diffClassifiesFields() {
+        Table oldTable = table(new ArrayList<>(Arrays.asList(field("a", "int"), field("b", "string"), field("c", "int"))),
+                Collections.singletonList(field("dt", "string")));
+        Table newTable = table(new ArrayList<>(Arrays.asList(field("a", "int"), field("c", "bigint"), field("d", "string"))),
+                Collections.singletonList(field("dt", "string")));
+
+        FieldDiff diff = new FieldDiff(oldTable, newTable);
+
+        assertEquals(Collections.singletonList("b"), names(diff.deletedFields));
+        assertEquals(Collections.singletonList("d"), names(diff.addedFields));
+        assertEquals(Collections.singletonList("c"), names(diff.modifiedFields));
+        assertEquals(Arrays.asList("a", "dt"), names(diff.unchangedFields));
+        assertEquals("a,c,d,dt", diff.fieldNames);
+    }
+
+    private static List<String> names(List<FieldSchema> fields) {
+        List<String> names = new ArrayList<>();
+        for (FieldSchema field : fields) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+}
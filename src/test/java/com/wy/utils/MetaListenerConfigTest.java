@@ -0,0 +1,81 @@
+package com.wy.utils;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class MetaListenerConfigTest {
+
+    /**
+     * 鉴权库连接池的必填参数加上传入的参数，按 key, value 成对传入
+     * 测试的classpath上guava版本和hadoop不一致，Configuration.set 用不了，所以拼一个xml资源
+     */
+    private static Configuration conf(String... keyValues) {
+        StringBuilder xml = new StringBuilder("<configuration>");
+        String[] required = {"hive.auth.database.timeout", "30000",
+                "hive.auth.database.meta.listener.hikari.pool.maxsize", "4",
+                "hive.auth.database.hikari.pool.minidle", "1",
+                "hive.auth.database.hikari.pool.idle.timeout", "600000",
+                "hive.auth.database.hikari.pool.max.lifetime", "1800000"};
+        for (String[] pairs : new String[][]{required, keyValues}) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                xml.append("<property><name>").append(pairs[i]).append("</name><value>")
+                        .append(pairs[i + 1]).append("</value></property>");
+            }
+        }
+        xml.append("</configuration>");
+        Configuration conf = new Configuration(false);
+        conf.addResource(new ByteArrayInputStream(xml.toString().getBytes(StandardCharsets.UTF_8)));
+        return conf;
+    }
+
+    @Test
+    public void disabledFeaturesSkipTheirKeys() {
+        //功能没有开启时，对应的参数即使写错了也不校验
+        MetaListenerConfig config = MetaListenerConfig.fromConf(conf("hive.auth.database.meta.listener.async.batch", "0"));
+        assertFalse(config.isAsyncEnabled());
+        assertFalse(config.isCatchUpEnabled());
+        assertEquals(4, config.getAuthDbConfig().getMaxSize());
+    }
+
+    @Test
+    public void asyncRequiresWalDir() {
+        try {
+            MetaListenerConfig.fromConf(conf("hive.auth.database.meta.listener.async.enable", "true"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("开启异步写入鉴权库时必须配置预写日志目录 hive.auth.database.meta.listener.wal.dir", e.getMessage());
+        }
+    }
+
+    @Test
+    public void asyncBatchIsValidated() {
+        MetaListenerConfig config = MetaListenerConfig.fromConf(conf("hive.auth.database.meta.listener.async.enable", "true",
+                "hive.auth.database.meta.listener.wal.dir", "/tmp/wal"));
+        assertEquals(500, config.getAsyncBatch());
+        try {
+            MetaListenerConfig.fromConf(conf("hive.auth.database.meta.listener.async.enable", "true",
+                    "hive.auth.database.meta.listener.wal.dir", "/tmp/wal",
+                    "hive.auth.database.meta.listener.async.batch", "0"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("异步写入鉴权库批次大小超过预期Int值", e.getMessage());
+        }
+    }
+
+    @Test
+    public void catchUpRequiresThriftUris() {
+        try {
+            MetaListenerConfig.fromConf(conf("hive.auth.database.meta.listener.catchup.enable", "true"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("开启通知日志追赶时必须配置元数据服务地址 hive.metastore.uris", e.getMessage());
+        }
+    }
+}
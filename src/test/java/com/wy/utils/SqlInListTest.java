@@ -0,0 +1,63 @@
+package com.wy.utils;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SqlInListTest {
+
+    @Test
+    public void bucketRoundsUpToPowerOfTwo() {
+        assertEquals(1, SqlInList.bucket(0));
+        assertEquals(1, SqlInList.bucket(1));
+        assertEquals(2, SqlInList.bucket(2));
+        assertEquals(4, SqlInList.bucket(3));
+        assertEquals(512, SqlInList.bucket(512));
+        assertEquals(1024, SqlInList.bucket(513));
+    }
+
+    @Test
+    public void placeholdersUseBucketLength() {
+        assertEquals("?", SqlInList.placeholders(1));
+        assertEquals("?,?,?,?", SqlInList.placeholders(3));
+        //同一个档位复用同一个字符串
+        assertSame(SqlInList.placeholders(5), SqlInList.placeholders(8));
+    }
+
+    @Test
+    public void bindPadsWithLastValue() throws SQLException {
+        Map<Integer, String> bound = new TreeMap<>();
+        PreparedStatement preparedStatement = recording(bound);
+
+        int next = SqlInList.bind(preparedStatement, 2, Arrays.asList("a", "b", "c"));
+
+        assertEquals(6, next);
+        assertEquals("a", bound.get(2));
+        assertEquals("b", bound.get(3));
+        assertEquals("c", bound.get(4));
+        assertEquals("c", bound.get(5));
+        assertEquals(4, bound.size());
+    }
+
+    /**
+     * 只记录 setString 调用的 PreparedStatement
+     */
+    private static PreparedStatement recording(Map<Integer, String> bound) {
+        return (PreparedStatement) Proxy.newProxyInstance(SqlInListTest.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    if ("setString".equals(method.getName())) {
+                        bound.put((Integer) args[0], (String) args[1]);
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}